@@ -3,52 +3,83 @@ package edu.stanford.sid;
 import edu.stanford.sid.database.MonitorInfo;
 import edu.stanford.sid.util.CalendarUtil;
 
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
-import java.text.DateFormat;
 import java.text.ParseException;
 
 
 /**
  * A class that contains metadata information and get methods for information
- * contained in the file's metadata.
+ * contained in the file's metadata.<p>
+ * 
+ * To keep millions of data files in memory cheaply, the start and end times
+ * are kept as epoch milliseconds, the site, monitor and station IDs are
+ * interned so every file of a monitor shares the same strings, and any other
+ * metadata is kept in a small array of keys and values.  DataFiles are
+ * written with a compact binary encoding by write(DataOutput), which is also
+ * used when a DataFile is serialized.
  * 
  * @author Scott Winegarden, scottw@sun.stanford.edu
  * 
  */
-public class DataFile implements Serializable
+public class DataFile implements Externalizable
 {
 	/**
-	 * DataFile class version 1.
+	 * DataFile class version 2, the compact binary encoding.
 	 */
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
+	
+	// The version of the binary encoding written by write(DataOutput).
+	private static final int ENCODING_VERSION = 1;
+	
+	// Date format for the metadata time variables.
+	private static final String METADATA_DATE_FORMAT = "y-M-d H:m:s";
+	
+	private static final String STRING_DATE_FORMAT = "yyyy.MM.dd_HH:mm:ss";
 	
-	// Date format class for the metadata time variables.
-	private DateFormat METADATA_DATE_FORMAT = CalendarUtil
-			.getSimpleDateFormat("y-M-d H:m:s");
+	// Date format used to give the time variables back as metadata values.
+	private static final String METADATA_OUTPUT_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
 	
-	private DateFormat STRING_DATE_FORMAT = CalendarUtil
-			.getSimpleDateFormat("yyyy.MM.dd_HH:mm:ss");
+	// Marks a start or end time that is missing or could not be parsed.
+	private static final long NO_TIME = Long.MIN_VALUE;
 	
-	// This is a regular expression to retrieve metadata variables from
-	// file text lines.
-	private static final Pattern METADATA_REGEX = Pattern
-			.compile("^#(.*)=(.*)$");
+	// The size of the reads used to parse the metadata header.
+	private static final int HEADER_BLOCK_SIZE = 4096;
+	
+	// The size of the first read from the end of the file to find the last line.
+	private static final int TAIL_BLOCK_SIZE = 1024;
+	
+	private static final String[] NO_METADATA = new String[0];
 	
 	// This is a reference to the file on the filesystem.
 	private File file;
 	
-	// A map of metadata keys to metadata values.
-	private Map<String, String> metadata;
+	// The metadata values every data file has, interned.
+	private String site;
+	private String monitor;
+	private String station;
+	
+	// The start and end times in epoch milliseconds.
+	private long startMillis = NO_TIME;
+	private long endMillis = NO_TIME;
 	
-	private Calendar startTime;
-	private Calendar endTime;
+	// Any other metadata, as alternating keys and values.
+	private String[] otherMetadata = NO_METADATA;
 	
 	/**
 	 * A test method for the class. This is not used outside testing.
@@ -66,6 +97,14 @@ public class DataFile implements Serializable
 		}
 	}
 	
+	/**
+	 * This constructor is only for Externalizable, it creates an empty
+	 * DataFile for readExternal to fill in.
+	 */
+	public DataFile()
+	{
+	}
+	
 	/**
 	 * This constructor creates a DataFile object from the specified File.
 	 * 
@@ -101,16 +140,7 @@ public class DataFile implements Serializable
 			Calendar startTime, Calendar endTime)
 			throws DataFileFormatException
 	{
-		file = new File(path);
-		
-		metadata = new HashMap<String, String>();
-		metadata.put("Site", site);
-		metadata.put("MonitorID", monitor);
-		metadata.put("StationID", station);
-		this.startTime = startTime;
-		this.endTime = endTime;
-		
-		verifyData();
+		this(path, site, monitor, station, startTime, endTime, NO_METADATA);
 	}
 	
 	/**
@@ -120,18 +150,8 @@ public class DataFile implements Serializable
 			Calendar startTime, Calendar endTime, String longitude,
 			String latitude) throws DataFileFormatException
 	{
-		file = new File(path);
-		
-		metadata = new HashMap<String, String>();
-		metadata.put("Site", site);
-		metadata.put("MonitorID", monitor);
-		metadata.put("StationID", station);
-		metadata.put("Longitude", longitude);
-		metadata.put("Latitude", latitude);
-		this.startTime = startTime;
-		this.endTime = endTime;
-		
-		verifyData();
+		this(path, site, monitor, station, startTime, endTime, new String[] {
+				"Longitude", longitude, "Latitude", latitude });
 	}
 	
 	/**
@@ -141,19 +161,28 @@ public class DataFile implements Serializable
 			Calendar startTime, Calendar endTime, String longitude,
 			String latitude, String dataMin, String dataMax)
 			throws DataFileFormatException
+	{
+		this(path, site, monitor, station, startTime, endTime, new String[] {
+				"Longitude", longitude, "Latitude", latitude,
+				"DataMin", dataMin, "DataMax", dataMax });
+	}
+	
+	/**
+	 * Private helper constructor for the constructors that take the metadata
+	 * directly.
+	 */
+	private DataFile(String path, String site, String monitor, String station,
+			Calendar startTime, Calendar endTime, String[] otherMetadata)
+			throws DataFileFormatException
 	{
 		file = new File(path);
 		
-		metadata = new HashMap<String, String>();
-		metadata.put("Site", site);
-		metadata.put("MonitorID", monitor);
-		metadata.put("StationID", station);
-		metadata.put("Longitude", longitude);
-		metadata.put("Latitude", latitude);
-		metadata.put("DataMin", dataMin);
-		metadata.put("DataMax", dataMax);
-		this.startTime = startTime;
-		this.endTime = endTime;
+		this.site = intern(site);
+		this.monitor = intern(monitor);
+		this.station = intern(station);
+		if (startTime != null) startMillis = startTime.getTimeInMillis();
+		if (endTime != null) endMillis = endTime.getTimeInMillis();
+		this.otherMetadata = compactMetadata(otherMetadata);
 		
 		verifyData();
 	}
@@ -166,73 +195,258 @@ public class DataFile implements Serializable
 	{
 		file = new File(path);
 		
-		this.metadata = new HashMap<String, String>();
-		for (String key : metadata.keySet())
+		setMetadata(metadata, METADATA_DATE_FORMAT);
+		
+		verifyData();
+	}
+	
+	/**
+	 * Moves the metadata out of the given map into the fields of this data
+	 * file.  The time variables are parsed with the given date format.
+	 */
+	private void setMetadata(Map<String, String> metadata, String dateFormat)
+	{
+		Map<String, String> remaining = new HashMap<String, String>(metadata);
+		
+		site = intern(remaining.remove("Site"));
+		monitor = intern(remaining.remove("MonitorID"));
+		station = intern(remaining.remove("StationID"));
+		startMillis = parseTime(remaining.remove("UTC_StartTime"), dateFormat);
+		endMillis = parseTime(remaining.remove("UTC_EndTime"), dateFormat);
+		
+		String[] other = new String[remaining.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> entry : remaining.entrySet())
+		{
+			other[i++] = entry.getKey();
+			other[i++] = entry.getValue();
+		}
+		otherMetadata = compactMetadata(other);
+	}
+	
+	/**
+	 * Removes null values from an array of alternating keys and values, and
+	 * interns the keys.
+	 */
+	private static String[] compactMetadata(String[] metadata)
+	{
+		int count = 0;
+		for (int i = 0; i < metadata.length; i += 2)
 		{
-			this.metadata.put(key, metadata.get(key));
+			if (metadata[i] != null && metadata[i + 1] != null) count += 2;
 		}
+		if (count == 0) { return NO_METADATA; }
 		
-		verifyData();
+		String[] compact = new String[count];
+		int j = 0;
+		for (int i = 0; i < metadata.length; i += 2)
+		{
+			if (metadata[i] != null && metadata[i + 1] != null)
+			{
+				compact[j++] = metadata[i].intern();
+				compact[j++] = metadata[i + 1];
+			}
+		}
+		return compact;
+	}
+	
+	private static String intern(String value)
+	{
+		return value == null ? null : value.intern();
+	}
+	
+	/**
+	 * Parses a time variable with the given date format.
+	 * 
+	 * @return the time in epoch milliseconds, or NO_TIME if the value is
+	 *         missing or has a bad format.
+	 */
+	private static long parseTime(String value, String dateFormat)
+	{
+		if (value == null) { return NO_TIME; }
+		try
+		{
+			return CalendarUtil.getSimpleDateFormat(dateFormat).parse(value).getTime();
+		} catch (ParseException e)
+		{
+			return NO_TIME;
+		}
 	}
 	
 	
 	/**
 	 * Private helper method for the constructor.
 	 * 
-	 * This method reads the metadata from the file and places it in a new
-	 * HashMap.
+	 * This method reads the metadata from the file.  Only the comment lines at
+	 * the top of the file are read, if the file has no end time in its
+	 * metadata, it is taken from the last line of the file, which is found by
+	 * reading the file backwards from its end.
 	 * 
 	 * @throws IOException
 	 *             if the file cannot be read.
 	 */
 	private void parseMetadata() throws IOException
 	{
-		metadata = new HashMap<String, String>(); // Create a new hashmap for
-													// the metadata.
-		try(Scanner in = new Scanner(file))// Opens the data file.
+		Map<String, String> metadata = new HashMap<String, String>();
+		try
 		{
-			String nextLine = in.nextLine(); // Read the first line.
-		
-			while (nextLine.equals("") || nextLine.startsWith("#")) // While we are
-																// 	in comments.
+			if (parseHeader(metadata)) // Only look further if there are data
+										// lines in the file.
 			{
-				//Use the old method of splitting metadata entries.
-				if (nextLine.length() > 0)
+				if (metadata.get("MonitorID") == null)
+				{
+					String name = file.getName();
+					String[] parts = name.split("(_|\\.)");
+					metadata.put("MonitorID", parts[3]);
+				}
+				
+				if (parseTime(metadata.get("UTC_EndTime"), METADATA_DATE_FORMAT) == NO_TIME)
 				{
-					nextLine = nextLine.replaceFirst("#\\s*", "");
-					;
-					String[] keyValue = nextLine.split("\\s*=\\s*");
-					if (keyValue.length == 2)
+					String lastLine = readLastLine();
+					if (lastLine != null)
 					{
-						metadata.put(keyValue[0], keyValue[1]);
+						int comma = lastLine.indexOf(',');
+						metadata.put("UTC_EndTime", comma < 0 ? lastLine : lastLine.substring(0, comma));
 					}
 				}
-			
-				if (!in.hasNextLine()) { return; } // We are done if no more lines
-												// in the file.
-				nextLine = in.nextLine(); // Read the next line.
 			}
+		}catch(Exception e)
+		{
+			e.printStackTrace();
+		}
 		
-			if (getMonitor() == null)
+		setMetadata(metadata, METADATA_DATE_FORMAT);
+	}
+	
+	/**
+	 * Reads the comment lines at the top of the file into the metadata map,
+	 * stopping at the first data line.
+	 * 
+	 * @return true if the file has a data line after its header.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	private boolean parseHeader(Map<String, String> metadata) throws IOException
+	{
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), HEADER_BLOCK_SIZE))
+		{
+			byte[] line = new byte[256];
+			
+			while (true)
+			{
+				int length = 0;
+				int b;
+				while ((b = in.read()) != -1 && b != '\n')
+				{
+					if (length == line.length)
+					{
+						line = Arrays.copyOf(line, length * 2);
+					}
+					line[length++] = (byte) b;
+				}
+				
+				if (length > 0 && line[length - 1] == '\r')
+				{
+					length--;
+				}
+				
+				if (length > 0)
+				{
+					if (line[0] != '#') { return true; } // The first data line.
+					
+					putMetadata(line, length, metadata);
+				}
+				
+				if (b == -1) { return false; }
+			}
+		}
+	}
+	
+	/**
+	 * Splits a metadata line of the form "# key = value" and puts it in the
+	 * metadata map.  Lines without exactly one '=' are ignored.
+	 */
+	private static void putMetadata(byte[] line, int length, Map<String, String> metadata)
+	{
+		int equals = -1;
+		for (int i = 1; i < length; i++)
+		{
+			if (line[i] == '=')
 			{
-				String name = file.getName();
-				String[] parts = name.split("(_|\\.)");
-				metadata.put("MonitorID", parts[3]);
+				if (equals != -1) { return; }
+				equals = i;
 			}
+		}
+		if (equals == -1) { return; }
+		
+		int keyStart = skipWhitespace(line, 1, equals);
+		int keyEnd = trimWhitespace(line, keyStart, equals);
+		int valueStart = skipWhitespace(line, equals + 1, length);
+		int valueEnd = trimWhitespace(line, valueStart, length);
+		
+		if (valueStart == valueEnd) { return; }
+		
+		metadata.put(new String(line, keyStart, keyEnd - keyStart, StandardCharsets.ISO_8859_1),
+				new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+	}
+	
+	private static int skipWhitespace(byte[] line, int start, int end)
+	{
+		while (start < end && line[start] <= ' ')
+		{
+			start++;
+		}
+		return start;
+	}
+	
+	private static int trimWhitespace(byte[] line, int start, int end)
+	{
+		while (end > start && line[end - 1] <= ' ')
+		{
+			end--;
+		}
+		return end;
+	}
+	
+	/**
+	 * Reads the last non blank line of the file by reading blocks backwards
+	 * from the end of the file.
+	 * 
+	 * @return the last line, or null if the file is blank.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	private String readLastLine() throws IOException
+	{
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			long fileLength = in.length();
+			int blockSize = TAIL_BLOCK_SIZE;
 			
-			if (getEndTime() == null)
+			while (true)
 			{
-				while (in.hasNextLine())
+				long blockStart = Math.max(0, fileLength - blockSize);
+				byte[] block = new byte[(int) (fileLength - blockStart)];
+				in.seek(blockStart);
+				in.readFully(block);
+				
+				int lineEnd = trimWhitespace(block, 0, block.length);
+				int lineStart = lineEnd;
+				while (lineStart > 0 && block[lineStart - 1] != '\n')
 				{
-					nextLine = in.nextLine();
+					lineStart--;
 				}
-			
-				String[] parts = nextLine.split(",");
-				metadata.put("UTC_EndTime", parts[0]);
+				
+				// If the line starts in this block we are done, otherwise the
+				// line is longer than the block, so read a larger block.
+				if (lineStart > 0 || blockStart == 0)
+				{
+					if (lineStart == lineEnd) { return null; }
+					return new String(block, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+				}
+				
+				blockSize *= 4;
 			}
-		}catch(Exception e)
-		{
-			e.printStackTrace();
 		}
 	}
 	
@@ -241,8 +455,7 @@ public class DataFile implements Serializable
 	 */
 	private void parseMetadataJSOC(String data) throws IOException
 	{
-		metadata = new HashMap<String, String>(); // Create a new hashmap for
-													// the metadata.
+		Map<String, String> metadata = new HashMap<String, String>();
 		Scanner in = new Scanner(data); // Opens the string.
 		
 		in.useDelimiter("\n");
@@ -271,12 +484,7 @@ public class DataFile implements Serializable
 			}
 		}
 		
-		try
-		{
-			startTime = getTimeString("UTC_StartTime");
-			endTime = getTimeString("UTC_EndTime");
-		} catch (Exception e)
-		{}
+		setMetadata(metadata, STRING_DATE_FORMAT);
 	}
 	
 	/**
@@ -300,10 +508,10 @@ public class DataFile implements Serializable
 			if (getStation() == null) { throw new DataFileFormatException(
 					"No station ID."); }
 			
-			if (getStartTime() == null) // Make sure we have a start time.
+			if (startMillis == NO_TIME) // Make sure we have a start time.
 			{ throw new DataFileFormatException("Bad start time format."); }
 			
-			if (getEndTime() == null) // Make sure we have a end time.
+			if (endMillis == NO_TIME) // Make sure we have a end time.
 			{ throw new DataFileFormatException("Bad end time format."); }
 		} catch (Exception e) // If we have any other error, pass it on as an
 								// unknown error.
@@ -313,74 +521,137 @@ public class DataFile implements Serializable
 	}
 	
 	/**
-	 * This returns a calendar object containing the time the value of the
-	 * specified key of the metadata represents.
+	 * Writes this data file in the compact binary encoding.
 	 * 
-	 * @param key
-	 *            metadata key containing the time to create the calendar for.
-	 * @return a calendar object of the time in the value of the key.
-	 * @throws ParseException
-	 *             if the date is of bad format.
+	 * @param out the output to write to.
+	 * @throws IOException if the output cannot be written.
 	 */
-	private Calendar getTime(String key) throws ParseException
+	public void write(DataOutput out) throws IOException
 	{
-		Calendar startTime = CalendarUtil.getCalendar();
-		startTime.setTime(METADATA_DATE_FORMAT.parse(getMetadataValue(key)));
-		return startTime;
+		out.writeByte(ENCODING_VERSION);
+		out.writeUTF(file.getPath());
+		out.writeUTF(site);
+		out.writeUTF(monitor);
+		out.writeUTF(station);
+		out.writeLong(startMillis);
+		out.writeLong(endMillis);
+		out.writeShort(otherMetadata.length / 2);
+		for (String s : otherMetadata)
+		{
+			out.writeUTF(s);
+		}
 	}
 	
-	
-	private Calendar getTimeString(String key) throws ParseException
+	/**
+	 * Reads a data file written by write(DataOutput).
+	 * 
+	 * @param in the input to read from.
+	 * @return the data file.
+	 * @throws IOException if the input cannot be read, or was not written by
+	 *             write(DataOutput).
+	 */
+	public static DataFile read(DataInput in) throws IOException
 	{
-		Calendar startTime = CalendarUtil.getCalendar();
-		startTime.setTime(STRING_DATE_FORMAT.parse(getMetadataValue(key)));
-		return startTime;
+		DataFile dataFile = new DataFile();
+		dataFile.readFields(in);
+		return dataFile;
 	}
 	
 	/**
-	 * Returns a calendar representing the UTC_StartTime metadata value.
-	 * 
-	 * @return
+	 * Fills in the fields of this data file from the compact binary encoding.
 	 */
-	public Calendar getStartTime()
+	private void readFields(DataInput in) throws IOException
 	{
-		try
+		int version = in.readUnsignedByte();
+		if (version != ENCODING_VERSION) { throw new IOException(
+				"Unknown DataFile encoding version: " + version); }
+		
+		file = new File(in.readUTF());
+		site = in.readUTF().intern();
+		monitor = in.readUTF().intern();
+		station = in.readUTF().intern();
+		startMillis = in.readLong();
+		endMillis = in.readLong();
+		
+		int count = in.readUnsignedShort();
+		if (count == 0)
+		{
+			otherMetadata = NO_METADATA;
+		} else
 		{
-			if (startTime == null)
+			otherMetadata = new String[count * 2];
+			for (int i = 0; i < otherMetadata.length; i += 2)
 			{
-				startTime = getTime("UTC_StartTime");
+				otherMetadata[i] = in.readUTF().intern();
+				otherMetadata[i + 1] = in.readUTF();
 			}
-			return startTime;
-		} catch (ParseException e)
-		{
-			return null;
-		} catch (NullPointerException e)
-		{
-			return null;
 		}
 	}
 	
 	/**
-	 * Returns a calendar representing the UTC_StartTime metadata value.
+	 * Serializes this data file with the compact binary encoding.
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException
+	{
+		write(out);
+	}
+	
+	/**
+	 * Deserializes this data file from the compact binary encoding.
+	 */
+	public void readExternal(ObjectInput in) throws IOException
+	{
+		readFields(in);
+	}
+	
+	/**
+	 * Returns a calendar set to the given epoch milliseconds, or null for
+	 * NO_TIME.
+	 */
+	private static Calendar toCalendar(long millis)
+	{
+		if (millis == NO_TIME) { return null; }
+		Calendar calendar = CalendarUtil.getCalendar();
+		calendar.setTimeInMillis(millis);
+		return calendar;
+	}
+	
+	/**
+	 * Returns a calendar representing the UTC_StartTime metadata value.  Each
+	 * call returns a new calendar, so the caller may change it.
+	 * 
+	 * @return
+	 */
+	public Calendar getStartTime()
+	{
+		return toCalendar(startMillis);
+	}
+	
+	/**
+	 * Returns a calendar representing the UTC_EndTime metadata value.  Each
+	 * call returns a new calendar, so the caller may change it.
 	 * 
 	 * @return
 	 */
 	public Calendar getEndTime()
 	{
-		try
-		{
-			if (endTime == null)
-			{
-				endTime = getTime("UTC_EndTime");
-			}
-			return endTime;
-		} catch (ParseException e)
-		{
-			return null;
-		} catch (NullPointerException e)
-		{
-			return null;
-		}
+		return toCalendar(endMillis);
+	}
+	
+	/**
+	 * @return the UTC_StartTime metadata value in epoch milliseconds.
+	 */
+	public long getStartMillis()
+	{
+		return startMillis;
+	}
+	
+	/**
+	 * @return the UTC_EndTime metadata value in epoch milliseconds.
+	 */
+	public long getEndMillis()
+	{
+		return endMillis;
 	}
 	
 	/**
@@ -388,7 +659,7 @@ public class DataFile implements Serializable
 	 */
 	public String getSite()
 	{
-		return getMetadataValue("Site");
+		return site;
 	}
 	
 	/**
@@ -396,7 +667,7 @@ public class DataFile implements Serializable
 	 */
 	public String getMonitor()
 	{
-		return getMetadataValue("MonitorID");
+		return monitor;
 	}
 	
 	/**
@@ -405,7 +676,7 @@ public class DataFile implements Serializable
 	 */
 	public String getStation()
 	{
-		return getMetadataValue("StationID");
+		return station;
 	}
 	
 	/**
@@ -416,7 +687,32 @@ public class DataFile implements Serializable
 	 */
 	public String getMetadataValue(String key)
 	{
-		return metadata.get(key);
+		switch (key)
+		{
+			case "Site":
+				return site;
+			case "MonitorID":
+				return monitor;
+			case "StationID":
+				return station;
+			case "UTC_StartTime":
+				return formatTime(startMillis);
+			case "UTC_EndTime":
+				return formatTime(endMillis);
+		}
+		
+		for (int i = 0; i < otherMetadata.length; i += 2)
+		{
+			if (otherMetadata[i].equals(key)) { return otherMetadata[i + 1]; }
+		}
+		return null;
+	}
+	
+	private static String formatTime(long millis)
+	{
+		if (millis == NO_TIME) { return null; }
+		return CalendarUtil.getSimpleDateFormat(METADATA_OUTPUT_DATE_FORMAT)
+				.format(new java.util.Date(millis));
 	}
 	
 	/**
@@ -6,12 +6,17 @@ import edu.stanford.sid.util.StationLatitudeLongitude;
 import edu.stanford.sid.graphing.GoesOverlay;
 import edu.stanford.sid.eds.GoesDataSource;
 import edu.stanford.sid.eds.GoesFlareStrength;
+import edu.stanford.sid.util.SingleFlight;
+import edu.stanford.sid.util.WeightedCache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.Timer;
@@ -22,6 +27,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import edu.stanford.sid.database.*;
 
 import java.util.*;
@@ -42,6 +48,19 @@ extends HttpServlet
 	
 	//These represent the format of the time in the Query string, as well as the time in the data file.
 	private static final String QUERY_DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH.mm.ss";
+	
+	//How long browsers and the plot cache may keep a plot, in seconds.
+	private static final int PLOT_MAX_AGE = 600;
+	
+	//The default size of the plot cache, in bytes.
+	private static final long DEFAULT_PLOT_CACHE_BYTES = 32L * 1024 * 1024;
+	
+	//How often the LatestPlotRefresher looks for index changes, in milliseconds.
+	private static final long REFRESH_CHECK_INTERVAL = 60 * 1000;
+	
+	//The plot sizes offered by latest.jsp.
+	private static final int[] PRERENDER_XRESOLUTIONS = { 1000, 1300, 1600 };
+	private static final int[] PRERENDER_YRESOLUTIONS = { 200, 300, 375 };
     
     //This is the filesystem's local directory, and the visible address of the public directory.
 	private File publicDirectory;
@@ -51,6 +70,63 @@ extends HttpServlet
     
     private static DataFileIndex index;
     
+    /**
+     * An encoded plot, and the strong ETag of its bytes.
+     */
+    private static class RenderedPlot
+    {
+    	private byte[] png;
+    	private String etag;
+    	private long created;
+    }
+    
+    /**
+     * The parameters of a plot, in the normal form used for the plot cache key.
+     */
+    private static class PlotQuery
+    {
+    	private Calendar startTime;
+    	private Calendar endTime;
+    	private int xres = 800;
+    	private int yres = 300;
+    	private java.util.TimeZone tz = CalendarUtil.DEFAULT_TIME_ZONE;
+    	private Locale locale = Locale.US;
+    	
+    	//	Indicates whether to display monitor sunrises and sunsets.
+    	private boolean mss = true;
+    	
+    	//	Indicates whether to display station sunrises and sunsets.
+    	private boolean sss = true;
+    	
+    	private boolean goes = false;
+    	private String flareStrength = "C2.0";
+    	
+    	//The requested monitor identifiers, sorted.  Empty for all monitors.
+    	private TreeSet<String> monitorIDs = new TreeSet<String>();
+    	
+    	/**
+    	 * Builds the key of the plot in the plot cache.  Everything that changes how
+    	 * the plot is drawn is part of the key, in a normal form, so queries that
+    	 * differ only in the order of their monitors share a plot.
+    	 */
+    	private String getKey()
+    	{
+    		return String.format("%d %d %dx%d %s %s %b %b %s %s %d",
+    				startTime.getTimeInMillis(), endTime.getTimeInMillis(), xres, yres,
+    				tz.getID(), locale, mss, sss, goes ? flareStrength : "-",
+    				monitorIDs, index.getGeneration());
+    	}
+    }
+    
+    //Encoded plots by their normalized query and the index generation they were drawn from.
+    private WeightedCache<String, RenderedPlot> plotCache;
+    
+    //The plots being drawn, by the same keys.
+    private SingleFlight<String, RenderedPlot> plotFlight = new SingleFlight<String, RenderedPlot>();
+    
+    //Runs the LatestPlotRefresher.
+    private Timer refreshTimer;
+    
     /**
      * Initializes the servlet with the values of the <init-param> entries in web.xml.
      * 
@@ -63,6 +139,127 @@ extends HttpServlet
         fileDeletionTimer = new java.util.Timer();
         
         index = DataFileIndex.getInstance(this.getServletContext());
+        
+        long plotCacheBytes = DEFAULT_PLOT_CACHE_BYTES;
+        if(this.getInitParameter("plot-cache-bytes") != null)
+        {
+        	plotCacheBytes = Long.parseLong(this.getInitParameter("plot-cache-bytes").trim());
+        }
+        plotCache = new WeightedCache<String, RenderedPlot>(plotCacheBytes, new WeightedCache.Weigher<String, RenderedPlot>()
+        {
+        	public long weigh(String key, RenderedPlot plot)
+        	{
+        		return plot.png.length + key.length() * 2 + 128;
+        	}
+        });
+        
+        ArrayList<Locale> locales = new ArrayList<Locale>();
+        String localeNames = this.getInitParameter("prerender-locales") == null ? "en_US" : this.getInitParameter("prerender-locales");
+        for(String name : localeNames.split(","))
+        {
+        	if(name.trim().length() == 0) continue;
+        	String[] parts = name.trim().split("_", 3);
+        	locales.add(new Locale(parts[0], parts.length > 1 ? parts[1] : "", parts.length > 2 ? parts[2] : ""));
+        }
+        
+        refreshTimer = new Timer("latest-plot-refresher", true);
+        refreshTimer.schedule(new LatestPlotRefresher(locales), REFRESH_CHECK_INTERVAL, REFRESH_CHECK_INTERVAL);
+    }
+    
+    /**
+     * Stops pre-rendering plots.
+     */
+    public void destroy()
+    {
+    	refreshTimer.cancel();
+    }
+    
+    /**
+     * Keeps the plots that latest.jsp shows by default in the plot cache.  Every
+     * REFRESH_CHECK_INTERVAL it looks at the generation of the index, and when the
+     * index has changed, or the plots are about to expire, it draws the plots of the
+     * newest day with data: one per monitor and one with every monitor superimposed,
+     * at each of the sizes latest.jsp offers.  The first visitors after an update are
+     * then served from the cache instead of waiting for the plots to be drawn.<p>
+     * 
+     * The plot key includes the browser's locale, so the plots are drawn for each
+     * locale in the prerender-locales init-param.
+     */
+    private class LatestPlotRefresher
+    extends TimerTask
+    {
+    	private List<Locale> locales;
+    	private long generation = -1;
+    	private long refreshed = 0;
+    	
+    	private LatestPlotRefresher(List<Locale> locales)
+    	{
+    		this.locales = locales;
+    	}
+    	
+    	public void run()
+    	{
+    		if(!index.isUpdateComplete()) return;
+    		if(index.getGeneration() == generation
+    				&& System.currentTimeMillis() - refreshed < PLOT_MAX_AGE * 1000L / 2) return;
+    		
+    		generation = index.getGeneration();
+    		refreshed = System.currentTimeMillis();
+    		
+    		try
+    		{
+    			Collection<Calendar> days = index.getDaysWithData(null);
+    			if(days.isEmpty()) return;
+    			
+    			Calendar startTime = null;
+    			for(Calendar day : days)
+    			{
+    				if(startTime == null || day.after(startTime)) startTime = day;
+    			}
+    			Calendar endTime = CalendarUtil.duplicate(startTime);
+    			endTime.add(Calendar.DATE, 1);
+    			
+    			//One set of monitors per plot, the empty set superimposes every monitor.
+    			ArrayList<Collection<String>> monitorSets = new ArrayList<Collection<String>>();
+    			monitorSets.add(Collections.<String>emptySet());
+    			for(MonitorInfo mi : index.getFilesFromTimeRange(startTime, endTime).getMonitorInfo())
+    			{
+    				monitorSets.add(Collections.singleton(mi.getIdentifier()));
+    			}
+    			
+    			int count = 0;
+    			for(Locale locale : locales)
+    			{
+    				for(Collection<String> monitorIDs : monitorSets)
+    				{
+    					for(int i = 0;i < PRERENDER_XRESOLUTIONS.length;i++)
+    					{
+    						//These are the defaults of latest.jsp, which inverts its overlay flags.
+    						PlotQuery query = new PlotQuery();
+    						query.startTime = CalendarUtil.duplicate(startTime);
+    						query.endTime = CalendarUtil.duplicate(endTime);
+    						query.xres = PRERENDER_XRESOLUTIONS[i];
+    						query.yres = PRERENDER_YRESOLUTIONS[i];
+    						query.tz = java.util.TimeZone.getTimeZone("GMT");
+    						query.locale = locale;
+    						query.mss = true;
+    						query.sss = true;
+    						query.goes = true;
+    						query.monitorIDs.addAll(monitorIDs);
+    						
+    						drawPlot(query, true);
+    						count++;
+    					}
+    				}
+    			}
+    			
+    			log(String.format("Pre-rendered %d latest plots in %d ms, plot cache: %s",
+    					count, System.currentTimeMillis() - refreshed, plotCache));
+    		}catch(Exception e)
+    		{
+    			log("Cannot pre-render the latest plots", e);
+    		}
+    	}
     }
     
     /**
@@ -73,32 +270,20 @@ extends HttpServlet
      * A valid query string is of the form:
      * 		?starttime=2006-05-06T11.36.15&stoptime=2006-05-07T9.36.15&res=1400x600&monitor=WSO$NLK$ref
      * 
-     * 
+     * Encoded plots are kept in a cache for up to PLOT_MAX_AGE seconds, keyed by the
+     * normalized query and the generation of the index, and are sent with a strong
+     * ETag so browsers that already have the plot get a 304 instead.  The size of the
+     * cache in bytes is set by the plot-cache-bytes init-param.
      */
     public void doGet(HttpServletRequest request, HttpServletResponse response)
     throws IOException
     {	
     	try{
     		// Declare default variables.
-    		Calendar startTime = CalendarUtil.getCalendar();
-    		Calendar endTime = CalendarUtil.getCalendar();
-    		
-    		int xres = 800;
-    		int yres = 300;
-    		
-    		Collection<MonitorInfo> monitors = new HashSet<MonitorInfo>();
-    		
-    		
-    		java.util.TimeZone tz = CalendarUtil.DEFAULT_TIME_ZONE;
-    		
-    		//	Indicates whether to display monitor sunrises and sunsets.
-    		boolean mss = true;
-    		
-    		//	Indicates whether to display station sunrises and sunsets.
-    		boolean sss = true;
-    		
-    		boolean goes = false;
-    		String flareStrength = "C2.0";
+    		PlotQuery query = new PlotQuery();
+    		query.startTime = CalendarUtil.getCalendar();
+    		query.endTime = CalendarUtil.getCalendar();
+    		query.locale = request.getLocale();
     		
     		String startTimeString = request.getParameter("starttime");
     		String endTimeString = request.getParameter("endtime");
@@ -107,14 +292,21 @@ extends HttpServlet
     		{
     			DateFormat queryFormat = CalendarUtil.getSimpleDateFormat(QUERY_DATE_FORMAT_STRING);
 		
-    			startTime.setTime(queryFormat.parse(startTimeString));
-    			endTime.setTime(queryFormat.parse(endTimeString));
+    			query.startTime.setTime(queryFormat.parse(startTimeString));
+    			query.endTime.setTime(queryFormat.parse(endTimeString));
     			
-    			//Sanity check, if more than a month of data, don't bother.
-    			Calendar temp = (Calendar)startTime.clone();
-    			temp.add(Calendar.MONTH, 1);
+    			//Sanity check, plots are drawn from the sample pyramids so they may span up to a year,
+    			//but retrieving more than a month of files is not worth copying.
+    			Calendar temp = (Calendar)query.startTime.clone();
+    			if(request.getServletPath().equals("/retrieve"))
+    			{
+    				temp.add(Calendar.MONTH, 1);
+    			}else
+    			{
+    				temp.add(Calendar.YEAR, 1);
+    			}
     			
-    			if(endTime.after(temp))
+    			if(query.endTime.after(temp))
     			{
     				throw new RuntimeException("Time Range Too Long.");
     			}
@@ -133,29 +325,20 @@ extends HttpServlet
     		{
     			String[] xyres = request.getParameter("res").split("x");
     			
-    			xres = Integer.parseInt(xyres[0]);
-    			yres = Integer.parseInt(xyres[1]);
+    			query.xres = Integer.parseInt(xyres[0]);
+    			query.yres = Integer.parseInt(xyres[1]);
     		}
     		
-    		DataFileList files = index.getFilesFromTimeRange(startTime, endTime);
-    		
     		// Monitor List
     		if(request.getParameterMap().containsKey("monitor"))
     		{
-    			Collection<String> monitorIDs = Arrays.asList(request.getParameterValues("monitor"));
-    			for(MonitorInfo mi : files.getMonitorInfo())
-    			{
-    				if(monitorIDs.contains(mi.getIdentifier())) monitors.add(mi);
-    			}
+    			query.monitorIDs.addAll(Arrays.asList(request.getParameterValues("monitor")));
     		}
     		
-    		files = files.filterByMonitors(monitors);
-    		
-    		
     		// TimeZone
     		if(request.getParameterMap().containsKey("TZ"))
     		{
-    			tz = java.util.TimeZone.getTimeZone(request.getParameter("TZ"));
+    			query.tz = java.util.TimeZone.getTimeZone(request.getParameter("TZ"));
     		}
     		
     		// Monitor Sunrise and Sunset overlay.
@@ -163,7 +346,7 @@ extends HttpServlet
     		{
     			try
     			{
-    				mss = Boolean.parseBoolean(request.getParameter("mss"));
+    				query.mss = Boolean.parseBoolean(request.getParameter("mss"));
     			}catch(Exception e){}
     		}
     		
@@ -172,7 +355,7 @@ extends HttpServlet
     		{
     			try
     			{
-    				sss = Boolean.parseBoolean(request.getParameter("sss"));
+    				query.sss = Boolean.parseBoolean(request.getParameter("sss"));
     			}catch(Exception e){}
     		}
     		
@@ -181,7 +364,7 @@ extends HttpServlet
     		{
     			try
     			{
-    				goes = Boolean.parseBoolean(request.getParameter("goes"));
+    				query.goes = Boolean.parseBoolean(request.getParameter("goes"));
     			}catch(Exception e){}
     		}
     		
@@ -190,13 +373,15 @@ extends HttpServlet
     		{
     			try
     			{
-    				flareStrength = request.getParameter("goesFlareStrength");
+    				query.flareStrength = request.getParameter("goesFlareStrength");
     			}catch(Exception e){}
     		}
     		
     		// Check if they want a plot or download links.
     		if(request.getServletPath().equals("/retrieve"))
     		{
+    			DataFileList files = getFiles(query);
+    			
     			response.setContentType("text/html");
     			PrintWriter out = response.getWriter();
     			
@@ -208,48 +393,14 @@ extends HttpServlet
     			out.println("These files will remain avaliable for 5 minutes.");
     		}else if(request.getServletPath().equals("/plot"))
     		{
-    			edu.stanford.sid.graphing.Graph grapher = new edu.stanford.sid.graphing.Graph(files,
-    					CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime),
-    					xres, yres, request.getLocale(), tz);
-    			
-    			// Add overlays
-    			if(mss)
-    			{
-    				for(MonitorInfo mi : files.getMonitorInfo())
-    				{
-    					grapher.addOverlay(new SunriseSunsetOverlay(mi, CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime)));
-    				}
-    			}
-    			
-    			java.util.HashSet<String> stationIDs = new java.util.HashSet<String>();
-    			
-    			if(sss)
+    			// A plot drawn for the same query from the same index can be sent again.
+    			RenderedPlot plot = plotCache.get(query.getKey());
+    			if(plot == null || System.currentTimeMillis() - plot.created >= PLOT_MAX_AGE * 1000L)
     			{
-    				for(DataFile f : files.getFiles())
-    					stationIDs.add(f.getStation());
-    				for(String s : stationIDs)
-    				{
-    					StationLatitudeLongitude sll = index.getStationLatitudeLongitude(s);
-    					if(sll != null)
-    						grapher.addOverlay(new SunriseSunsetOverlay(sll.longitude, sll.latitude, CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime)));
-    				}
+    				plot = drawPlot(query, false);
     			}
     			
-    			if(goes)
-    			{
-    				try
-    				{
-    					grapher.addOverlay(new GoesOverlay(CalendarUtil.duplicate(startTime),
-    							CalendarUtil.duplicate(endTime),
-    							new GoesFlareStrength(flareStrength),
-    							GoesDataSource.getInstance(getServletContext())));
-    				}catch(Exception e){e.printStackTrace();}
-    			}
-        	// 	Set the response to PNG.
-    			response.setContentType("image/png");
-    			response.setHeader("Cache-Control", "max-age=600");
-    			
-    			javax.imageio.ImageIO.write(grapher.draw(), "PNG", response.getOutputStream());
+    			sendPlot(request, response, plot);
     			
     		} else
     		{
@@ -261,6 +412,154 @@ extends HttpServlet
     	}
     }
     
+    /**
+     * Gets the data files of the query, limited to the requested monitors.
+     */
+    private static DataFileList getFiles(PlotQuery query)
+    {
+    	Collection<MonitorInfo> monitors = new HashSet<MonitorInfo>();
+    	
+    	DataFileList files = index.getFilesFromTimeRange(query.startTime, query.endTime);
+    	
+    	for(MonitorInfo mi : files.getMonitorInfo())
+    	{
+    		if(query.monitorIDs.contains(mi.getIdentifier())) monitors.add(mi);
+    	}
+    	
+    	return files.filterByMonitors(monitors);
+    }
+    
+    /**
+     * Draws the plot of a query and puts it in the plot cache.  Identical queries
+     * that arrive while the plot is drawn wait for it instead of drawing it again.
+     * 
+     * @param prime true to put the plot in the cache even if its key has not been
+     * asked for yet.
+     */
+    private RenderedPlot drawPlot(final PlotQuery query, final boolean prime)
+    throws Exception
+    {
+    	final String key = query.getKey();
+    	return plotFlight.execute(key, new Callable<RenderedPlot>()
+    	{
+    		public RenderedPlot call()
+    		throws Exception
+    		{
+    			RenderedPlot plot = renderPlot(query);
+    			if(prime)
+    			{
+    				plotCache.prime(key, plot);
+    			}else
+    			{
+    				plotCache.put(key, plot);
+    			}
+    			return plot;
+    		}
+    	});
+    }
+    
+    /**
+     * Draws the plot of a query and encodes it.
+     */
+    private RenderedPlot renderPlot(PlotQuery query)
+    throws IOException, NoSuchAlgorithmException
+    {
+    	Calendar startTime = query.startTime;
+    	Calendar endTime = query.endTime;
+    	DataFileList files = getFiles(query);
+    	
+    	edu.stanford.sid.graphing.Graph grapher = new edu.stanford.sid.graphing.Graph(files,
+    			CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime),
+    			query.xres, query.yres, query.locale, query.tz);
+    	
+    	// Add overlays
+    	if(query.mss)
+    	{
+    		for(MonitorInfo mi : files.getMonitorInfo())
+    		{
+    			grapher.addOverlay(new SunriseSunsetOverlay(mi, CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime)));
+    		}
+    	}
+    	
+    	java.util.HashSet<String> stationIDs = new java.util.HashSet<String>();
+    	
+    	if(query.sss)
+    	{
+    		for(DataFile f : files.getFiles())
+    			stationIDs.add(f.getStation());
+    		for(String s : stationIDs)
+    		{
+    			StationLatitudeLongitude sll = index.getStationLatitudeLongitude(s);
+    			if(sll != null)
+    				grapher.addOverlay(new SunriseSunsetOverlay(sll.longitude, sll.latitude, CalendarUtil.duplicate(startTime), CalendarUtil.duplicate(endTime)));
+    		}
+    	}
+    	
+    	if(query.goes)
+    	{
+    		try
+    		{
+    			grapher.addOverlay(new GoesOverlay(CalendarUtil.duplicate(startTime),
+    					CalendarUtil.duplicate(endTime),
+    					new GoesFlareStrength(query.flareStrength),
+    					GoesDataSource.getInstance(getServletContext())));
+    		}catch(Exception e){e.printStackTrace();}
+    	}
+    	
+    	RenderedPlot plot = new RenderedPlot();
+    	ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+    	javax.imageio.ImageIO.write(grapher.draw(), "PNG", png);
+    	plot.png = png.toByteArray();
+    	plot.etag = getETag(plot.png);
+    	plot.created = System.currentTimeMillis();
+    	return plot;
+    }
+    
+    /**
+     * @return a strong ETag for the given bytes.
+     */
+    private static String getETag(byte[] png)
+    throws NoSuchAlgorithmException
+    {
+    	byte[] digest = MessageDigest.getInstance("SHA-1").digest(png);
+    	StringBuilder etag = new StringBuilder("\"");
+    	for(int i = 0;i < 12;i++)
+    	{
+    		etag.append(String.format("%02x", digest[i]));
+    	}
+    	return etag.append('"').toString();
+    }
+    
+    /**
+     * Sends a plot, or only its headers if the browser's copy has the same ETag.
+     */
+    private static void sendPlot(HttpServletRequest request, HttpServletResponse response, RenderedPlot plot)
+    throws IOException
+    {
+    	response.setHeader("ETag", plot.etag);
+    	response.setHeader("Cache-Control", "max-age=" + PLOT_MAX_AGE);
+    	
+    	String ifNoneMatch = request.getHeader("If-None-Match");
+    	if(ifNoneMatch != null)
+    	{
+    		for(String tag : ifNoneMatch.split(","))
+    		{
+    			tag = tag.trim();
+    			if(tag.startsWith("W/")) tag = tag.substring(2);
+    			if(tag.equals("*") || tag.equals(plot.etag))
+    			{
+    				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    				return;
+    			}
+    		}
+    	}
+    	
+    	// 	Set the response to PNG.
+    	response.setContentType("image/png");
+    	response.setContentLength(plot.png.length);
+    	response.getOutputStream().write(plot.png);
+    }
+    
     /**
      * Gets the string that is to be displayed in the graph's key for a given datafile.
      * 
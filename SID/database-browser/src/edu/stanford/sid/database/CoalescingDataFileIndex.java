@@ -0,0 +1,151 @@
+package edu.stanford.sid.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import edu.stanford.sid.DataFileList;
+import edu.stanford.sid.util.CalendarUtil;
+import edu.stanford.sid.util.SingleFlight;
+import edu.stanford.sid.util.StationLatitudeLongitude;
+
+/**
+ * A DataFileIndex that passes its queries to another index, and lets
+ * concurrent identical queries share one call to it.  When a popular page is
+ * requested by many browsers at once, the index is asked once for its data
+ * files and monitors instead of once per request.<p>
+ *
+ * Each caller gets its own copy of the collections returned, so callers may
+ * modify them as before.
+ */
+class CoalescingDataFileIndex
+extends DataFileIndex
+{
+	private DataFileIndex index;
+	private SingleFlight<List<Object>, Object> queries = new SingleFlight<List<Object>, Object>();
+
+	/**
+	 * Creates a coalescing index in front of the given index.
+	 */
+	CoalescingDataFileIndex(DataFileIndex index)
+	{
+		this.index = index;
+	}
+
+	/**
+	 * @return the index the queries are passed to.
+	 */
+	DataFileIndex getIndex()
+	{
+		return index;
+	}
+
+	public StationLatitudeLongitude getStationLatitudeLongitude(final String identifier)
+	{
+		return (StationLatitudeLongitude)coalesce(new Callable<Object>()
+		{
+			public Object call()
+			{
+				return index.getStationLatitudeLongitude(identifier);
+			}
+		}, "station", identifier);
+	}
+
+	public DataFileList getFilesFromTimeRange(final Calendar startTime, final Calendar endTime)
+	{
+		DataFileList files = (DataFileList)coalesce(new Callable<Object>()
+		{
+			public Object call()
+			{
+				return index.getFilesFromTimeRange(startTime, endTime);
+			}
+		}, "files", startTime.getTimeInMillis(), endTime.getTimeInMillis());
+
+		return new DataFileList(files.getFiles());
+	}
+
+	public Collection<MonitorInfo> getMonitors(final Comparator<MonitorInfo> comparator)
+	{
+		@SuppressWarnings("unchecked")
+		Collection<MonitorInfo> monitors = (Collection<MonitorInfo>)coalesce(new Callable<Object>()
+		{
+			public Object call()
+			{
+				return index.getMonitors(comparator);
+			}
+		}, "monitors", comparator);
+
+		return new ArrayList<MonitorInfo>(monitors);
+	}
+
+	public Collection<Calendar> getDaysWithData(final Collection<MonitorInfo> monitors)
+	{
+		@SuppressWarnings("unchecked")
+		Collection<Calendar> days = (Collection<Calendar>)coalesce(new Callable<Object>()
+		{
+			public Object call()
+			{
+				return index.getDaysWithData(monitors);
+			}
+		}, "days", monitors == null ? null : new HashSet<MonitorInfo>(monitors));
+
+		//Pages move the calendars they get around, so each gets its own.
+		Collection<Calendar> copy = days instanceof TreeSet ? new TreeSet<Calendar>(((TreeSet<Calendar>)days).comparator())
+				: new ArrayList<Calendar>(days.size());
+		for(Calendar day : days)
+		{
+			copy.add(CalendarUtil.duplicate(day));
+		}
+		return copy;
+	}
+
+	public boolean hasFilesInRange(final Calendar startTime, final Calendar endTime, final Collection<MonitorInfo> monitors)
+	{
+		return (Boolean)coalesce(new Callable<Object>()
+		{
+			public Object call()
+			{
+				return index.hasFilesInRange(startTime, endTime, monitors);
+			}
+		}, "has-files", startTime.getTimeInMillis(), endTime.getTimeInMillis(),
+				monitors == null ? null : new HashSet<MonitorInfo>(monitors));
+	}
+
+	public boolean isUpdateComplete()
+	{
+		return index.isUpdateComplete();
+	}
+
+	public long getGeneration()
+	{
+		return index.getGeneration();
+	}
+
+	public void close()
+	{
+		index.close();
+	}
+
+	/**
+	 * Runs the query, or waits for the identical query already running.
+	 */
+	private Object coalesce(Callable<Object> query, Object... key)
+	{
+		try
+		{
+			return queries.execute(Arrays.asList(key), query);
+		}catch(RuntimeException e)
+		{
+			throw e;
+		}catch(Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
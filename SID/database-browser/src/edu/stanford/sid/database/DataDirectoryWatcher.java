@@ -0,0 +1,395 @@
+package edu.stanford.sid.database;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The DataDirectoryWatcher finds the files in the data directory that were
+ * added, changed or removed, so the index does not need to look at every file
+ * in the archive to find them.<p>
+ *
+ * Where the filesystem supports it, every directory under the root is
+ * registered with a WatchService, and a daemon thread records the paths of
+ * the events it delivers.  A path is handed to the listener by
+ * processSettled once no event has arrived for it for SETTLE_MILLIS, so a
+ * file that is still being uploaded is only indexed once it is complete.<p>
+ *
+ * Where there is no WatchService, or the watch service has lost events, the
+ * index calls scan instead.  A scan that is not full remembers the
+ * modification time and the contents of each directory, and only lists the
+ * directories whose modification time changed since the last scan.  Adding,
+ * renaming or removing a file changes the modification time of its directory,
+ * but writing to a file in place does not, so the index still makes a full
+ * scan now and then.
+ */
+class DataDirectoryWatcher
+{
+	/**
+	 * Receives the files the watcher finds.
+	 */
+	interface Listener
+	{
+		/**
+		 * Called for a file that was added or changed.
+		 */
+		public void fileChanged(File file);
+
+		/**
+		 * Called for a file or directory that was removed.
+		 */
+		public void fileRemoved(File file);
+	}
+
+	/**
+	 * How long a path must go without events before it is handed to the
+	 * listener.
+	 */
+	static final long SETTLE_MILLIS = 2000;
+
+	/**
+	 * What the last scan saw of a directory.
+	 */
+	private static class DirectoryState
+	{
+		private long modified;
+		private File[] directories;
+		private String[] files;
+	}
+
+	private File root;
+	private Logger logger;
+
+	private WatchService watchService;
+	private Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+
+	/**
+	 * The paths that have had events, and the time of their last event.
+	 */
+	private Map<Path, Long> pending = new ConcurrentHashMap<Path, Long>();
+
+	/**
+	 * Set when the watch service dropped events, so only a scan can find
+	 * what changed.
+	 */
+	private volatile boolean overflowed = false;
+
+	private Map<File, DirectoryState> directories = new HashMap<File, DirectoryState>();
+
+	/**
+	 * Creates a watcher for the given root directory.  Nothing is watched
+	 * until start is called.
+	 */
+	DataDirectoryWatcher(File root, Logger logger)
+	{
+		this.root = root;
+		this.logger = logger;
+	}
+
+	/**
+	 * Registers the root directory and every directory under it with a
+	 * WatchService, and starts the thread that collects its events.
+	 *
+	 * @return true if the directories are being watched, false if the
+	 * filesystem has no WatchService and the index has to scan instead.
+	 */
+	boolean start()
+	{
+		try
+		{
+			watchService = FileSystems.getDefault().newWatchService();
+			registerAll(root.toPath());
+		}catch(IOException | UnsupportedOperationException e)
+		{
+			logger.log(Level.INFO, "Cannot watch the data directory, it will be scanned instead", e);
+			close();
+			return false;
+		}
+
+		Thread thread = new Thread("data-directory-watcher")
+		{
+			public void run()
+			{
+				collectEvents();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * @return true if the data directory is watched by a WatchService.
+	 */
+	boolean isWatching()
+	{
+		return watchService != null;
+	}
+
+	/**
+	 * @return true if the watch service dropped events since the last full
+	 * scan, so the data directory has to be scanned to find what changed.
+	 */
+	boolean isOverflowed()
+	{
+		return overflowed;
+	}
+
+	/**
+	 * Stops watching the data directory.
+	 */
+	void close()
+	{
+		if(watchService != null)
+		{
+			try
+			{
+				watchService.close();
+			}catch(IOException e){}
+			watchService = null;
+		}
+	}
+
+	/**
+	 * Hands every path that has had no events for SETTLE_MILLIS to the
+	 * listener.
+	 *
+	 * @return the number of paths handed to the listener.
+	 */
+	int processSettled(Listener listener)
+	{
+		long settled = System.currentTimeMillis() - SETTLE_MILLIS;
+		int count = 0;
+
+		for(Iterator<Map.Entry<Path, Long>> i = pending.entrySet().iterator();i.hasNext();)
+		{
+			Map.Entry<Path, Long> entry = i.next();
+			if(entry.getValue() > settled) continue;
+
+			//Only remove the path if no new event arrived for it in the meantime.
+			if(!pending.remove(entry.getKey(), entry.getValue())) continue;
+
+			File file = entry.getKey().toFile();
+			if(file.isFile())
+			{
+				listener.fileChanged(file);
+			}else if(!file.exists())
+			{
+				listener.fileRemoved(file);
+			}
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Walks the data directory, handing every file found to the listener.  If
+	 * full is false, directories whose modification time has not changed since
+	 * the last scan are not listed, and only the files added to or removed from
+	 * the directories that did change are handed to the listener.
+	 *
+	 * @param full true to hand every file to the listener.
+	 */
+	void scan(boolean full, Listener listener)
+	{
+		if(full)
+		{
+			overflowed = false;
+		}
+		scanDirectory(root, full, listener);
+	}
+
+	private void scanDirectory(File directory, boolean full, Listener listener)
+	{
+		long modified = directory.lastModified();
+		DirectoryState state = directories.get(directory);
+
+		if(!full && state != null && state.modified == modified)
+		{
+			//Nothing was added or removed here, look in the subdirectories.
+			for(File subdirectory : state.directories)
+			{
+				scanDirectory(subdirectory, full, listener);
+			}
+			return;
+		}
+
+		logger.finer(String.format("Processing Directory: %s", directory.getAbsolutePath()));
+
+		File[] listing = directory.listFiles();
+		if(listing == null)
+		{
+			removeDirectory(directory, listener);
+			return;
+		}
+
+		ArrayList<File> subdirectories = new ArrayList<File>();
+		ArrayList<String> files = new ArrayList<String>();
+		for(File file : listing)
+		{
+			if(file.isDirectory())
+			{
+				subdirectories.add(file);
+			}else
+			{
+				files.add(file.getName());
+				if(full || state == null || Arrays.binarySearch(state.files, file.getName()) < 0)
+				{
+					listener.fileChanged(file);
+				}
+			}
+		}
+
+		DirectoryState newState = new DirectoryState();
+		newState.modified = modified;
+		newState.directories = subdirectories.toArray(new File[subdirectories.size()]);
+		newState.files = files.toArray(new String[files.size()]);
+		Arrays.sort(newState.files);
+
+		if(state != null)
+		{
+			//Hand over what disappeared since the last scan.
+			for(String name : state.files)
+			{
+				if(Arrays.binarySearch(newState.files, name) < 0)
+				{
+					listener.fileRemoved(new File(directory, name));
+				}
+			}
+			for(File subdirectory : state.directories)
+			{
+				if(!subdirectories.contains(subdirectory))
+				{
+					removeDirectory(subdirectory, listener);
+				}
+			}
+		}
+		directories.put(directory, newState);
+
+		for(File subdirectory : newState.directories)
+		{
+			scanDirectory(subdirectory, full, listener);
+		}
+	}
+
+	/**
+	 * Forgets a directory that no longer exists, and everything under it.
+	 */
+	private void removeDirectory(File directory, Listener listener)
+	{
+		DirectoryState state = directories.remove(directory);
+		if(state != null)
+		{
+			for(File subdirectory : state.directories)
+			{
+				removeDirectory(subdirectory, listener);
+			}
+		}
+		listener.fileRemoved(directory);
+	}
+
+	/**
+	 * Registers a directory and all directories under it with the watch
+	 * service.  Files already in a directory registered this way are marked
+	 * as changed, as they may have been written before it was registered.
+	 */
+	private void registerAll(Path start)
+	throws IOException
+	{
+		final boolean markFiles = !start.equals(root.toPath());
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+		{
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+			throws IOException
+			{
+				WatchKey key = directory.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE);
+				watchedDirectories.put(key, directory);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+			{
+				if(markFiles) pending.put(file, System.currentTimeMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Run by the watcher thread, records the path of every event until the
+	 * watch service is closed.
+	 */
+	private void collectEvents()
+	{
+		try
+		{
+			while(true)
+			{
+				WatchService service = watchService;
+				if(service == null) return;
+
+				WatchKey key = service.take();
+				Path directory = watchedDirectories.get(key);
+
+				for(WatchEvent<?> event : key.pollEvents())
+				{
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+					{
+						overflowed = true;
+						continue;
+					}
+					if(directory == null) continue;
+
+					Path path = directory.resolve((Path)event.context());
+					pending.put(path, System.currentTimeMillis());
+
+					if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+					{
+						try
+						{
+							registerAll(path);
+						}catch(IOException e)
+						{
+							logger.log(Level.WARNING, String.format("Cannot watch directory: %s", path), e);
+							overflowed = true;
+						}
+					}
+				}
+
+				if(!key.reset())
+				{
+					//The directory is gone.
+					watchedDirectories.remove(key);
+				}
+			}
+		}catch(InterruptedException e)
+		{
+		}catch(ClosedWatchServiceException e)
+		{
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.util.Comparator;
 import javax.servlet.ServletContext;
 
 import edu.stanford.sid.*;
+import edu.stanford.sid.samples.SampleSidecar;
 import edu.stanford.sid.util.*;
 
 /**
@@ -29,17 +30,29 @@ public abstract class DataFileIndex
 	 *
 	 * If you have the index-type context parameter in your ServletContext set to filesystem
 	 * you will get a FilesystemDataFileIndex with the provided root-data-directory,
-	 * index-directory, index-log-directory, and update-interval.
+	 * index-directory, index-log-directory, and update-interval.  The optional
+	 * index-worker-threads parameter sets how many threads parse data files,
+	 * and defaults to one per processor.
+	 *
+	 * If you have index-type set to jdbc you will get a JdbcDataFileIndex, which queries
+	 * the tables of the series with the jdbc-url, and the optional jdbc-driver, jdbc-user,
+	 * jdbc-password and jdbc-pool-size.
 	 *
 	 * If you do not have the index-type, or it is set to anything else you will get a
-	 * ShowInfoDataFileIndex.  It is not recommended to keep a reference to the DataFileIndex
-	 * around after use.
+	 * ShowInfoDataFileIndex.
+	 * 
+	 * Each kind of index is created once per context, and shared by every servlet of it
+	 * behind a CoalescingDataFileIndex, so that concurrent identical queries are answered
+	 * by one call to the index.  The index runs background threads, so callers must not
+	 * close it; closeInstances closes every index of the context when it is destroyed.
 	 * 
 	 * @param context the context to get the instance for.
 	 * @return a DataFileIndex for the given context.
 	 */
 	public static DataFileIndex getInstance(ServletContext context)
 	{
+		SampleSidecar.configure(context);
+		
 		//Check without synchronization for performance.
 		if(context.getInitParameter("index-type") != null && context.getInitParameter("index-type").equals("filesystem")){
 			System.out.println("Filesystem index");
@@ -55,15 +68,17 @@ public abstract class DataFileIndex
 						{
 							System.out.println("created index");
 							//Create the DataFileIndex.
-							context.setAttribute("data-index", new FilesystemDataFileIndex(
+							context.setAttribute("data-index", new CoalescingDataFileIndex(new FilesystemDataFileIndex(
 									new File(context.getInitParameter("root-data-directory")),
 									new File(context.getInitParameter("index-directory")),
 									new File(context.getInitParameter("index-log-directory")),
-									Integer.parseInt(context.getInitParameter("update-interval"))));
+									Integer.parseInt(context.getInitParameter("update-interval")),
+									context.getInitParameter("index-worker-threads") == null ? 0 :
+											Integer.parseInt(context.getInitParameter("index-worker-threads")))));
 						}
 						else
 						{
-							return new ShowInfoDataFileIndex(context);
+							return getShowInfoInstance(context);
 						}
 					}
 				}
@@ -72,7 +87,78 @@ public abstract class DataFileIndex
 			//Return the DataFileIndex.
 			return (DataFileIndex)context.getAttribute("data-index");
 		}
-		return new ShowInfoDataFileIndex(context);
+		if("jdbc".equals(context.getInitParameter("index-type")))
+		{
+			return getJdbcInstance(context);
+		}
+		return getShowInfoInstance(context);
+	}
+	
+	/**
+	 * Gets the JdbcDataFileIndex of the given context, creating it the first time.
+	 */
+	private static DataFileIndex getJdbcInstance(ServletContext context)
+	{
+		//Check without synchronization for performance.
+		if(!(context.getAttribute("jdbc-index") instanceof DataFileIndex))
+		{
+			synchronized(context)
+			{
+				if(!(context.getAttribute("jdbc-index") instanceof DataFileIndex))
+				{
+					context.setAttribute("jdbc-index", new CoalescingDataFileIndex(new JdbcDataFileIndex(context)));
+				}
+			}
+		}
+		
+		return (DataFileIndex)context.getAttribute("jdbc-index");
+	}
+	
+	/**
+	 * Gets the ShowInfoDataFileIndex of the given context, creating it the first time.
+	 */
+	private static DataFileIndex getShowInfoInstance(ServletContext context)
+	{
+		//Check without synchronization for performance.
+		if(!(context.getAttribute("show-info-index") instanceof DataFileIndex))
+		{
+			synchronized(context)
+			{
+				if(!(context.getAttribute("show-info-index") instanceof DataFileIndex))
+				{
+					context.setAttribute("show-info-index", new CoalescingDataFileIndex(new ShowInfoDataFileIndex(context)));
+				}
+			}
+		}
+		
+		return (DataFileIndex)context.getAttribute("show-info-index");
+	}
+	
+	/**
+	 * Closes every index made for the given context by getInstance, and removes them from
+	 * it.  This is called by the DataFileIndexListener when the context is destroyed, so the
+	 * threads, processes and connections of the indexes do not outlive the web application.
+	 */
+	public static void closeInstances(ServletContext context)
+	{
+		synchronized(context)
+		{
+			for(String attribute : new String[]{"data-index", "show-info-index", "jdbc-index"})
+			{
+				Object index = context.getAttribute(attribute);
+				context.removeAttribute(attribute);
+				if(index instanceof DataFileIndex)
+				{
+					try
+					{
+						((DataFileIndex)index).close();
+					}catch(RuntimeException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}
 	}
 	
 	/**
@@ -126,10 +212,18 @@ public abstract class DataFileIndex
 	public abstract boolean isUpdateComplete();
 	
 	/**
-	 * This frees up any resources that the index may be using.  This should be called after
-	 * you have finished making use of the index.  Once this has been called one should assume
-	 * that the index is no longer usable.  If you need to use the index again, get another
-	 * by calling getInstance().
+	 * Gets the generation of the index, a number that changes whenever the
+	 * data files in the index may have changed.  Anything computed from the
+	 * index can be reused for as long as the generation stays the same.
+	 * 
+	 * @return the generation of the index.
+	 */
+	public abstract long getGeneration();
+	
+	/**
+	 * This frees up any resources that the index may be using, and stops its background
+	 * threads.  Once this has been called the index is no longer usable.  The indexes of
+	 * getInstance are shared by the whole context, and are only closed by closeInstances.
 	 */
 	public abstract void close();
 }
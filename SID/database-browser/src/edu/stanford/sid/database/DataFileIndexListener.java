@@ -0,0 +1,25 @@
+package edu.stanford.sid.database;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Closes the DataFileIndex instances of a context when the context is destroyed,
+ * so their timers, threads, show_info processes and database connections are
+ * not left running after the web application is stopped or redeployed.
+ * 
+ * It is registered as a listener in web.xml.
+ */
+public class DataFileIndexListener
+implements ServletContextListener
+{
+	public void contextInitialized(ServletContextEvent event)
+	{
+		//The indexes are created by the first request that needs one.
+	}
+	
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		DataFileIndex.closeInstances(event.getServletContext());
+	}
+}
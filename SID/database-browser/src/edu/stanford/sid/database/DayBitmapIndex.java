@@ -0,0 +1,249 @@
+package edu.stanford.sid.database;
+
+import edu.stanford.sid.DataFile;
+import edu.stanford.sid.util.CalendarUtil;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the UTC days each monitor has data for.<p>
+ *
+ * Each monitor has a BitSet with a bit for each day since the epoch, set if
+ * a data file of the monitor overlaps the day, and one more BitSet holds the
+ * days of every monitor.  A bitmap covering the years since 1970 is a few
+ * kilobytes, so the days of a set of monitors is the OR of a few bitmaps, and
+ * whether they have data in a range of days is a scan of a few words.<p>
+ *
+ * A bit only says some data file overlaps the day, so when a data file is
+ * removed, the days it covered are looked up again in the IntervalIndex to
+ * know which bits to clear.<p>
+ *
+ * Queries take a read lock and changes take a write lock, so queries run
+ * concurrently with each other.
+ */
+class DayBitmapIndex
+{
+	static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Days after this are not indexed, so a data file with a bad end time does
+	 * not make every bitmap huge.
+	 */
+	private static final int MAX_DAY = 1 << 16;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Map<MonitorInfo, BitSet> byMonitor = new HashMap<MonitorInfo, BitSet>();
+	private BitSet allMonitors = new BitSet();
+
+	/**
+	 * @return the epoch day of the given time, that is the number of whole UTC
+	 * days since 1970-01-01.
+	 */
+	static long getDay(long millis)
+	{
+		return Math.floorDiv(millis, DAY_MILLIS);
+	}
+
+	/**
+	 * Sets the days the data file overlaps for its monitor.
+	 */
+	void add(DataFile dataFile)
+	{
+		int first = firstDay(dataFile);
+		int last = lastDay(dataFile);
+		if(first > last) return;
+
+		MonitorInfo monitor = new MonitorInfo(dataFile);
+
+		lock.writeLock().lock();
+		try
+		{
+			BitSet days = byMonitor.get(monitor);
+			if(days == null)
+			{
+				days = new BitSet();
+				byMonitor.put(monitor, days);
+			}
+			days.set(first, last + 1);
+			allMonitors.set(first, last + 1);
+		}finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Clears the days of a data file that was removed from the interval index,
+	 * unless another data file still overlaps them.
+	 *
+	 * @param dataFile the data file that was removed.
+	 * @param intervals the interval index the data file was removed from.
+	 */
+	void remove(DataFile dataFile, IntervalIndex intervals)
+	{
+		int first = firstDay(dataFile);
+		int last = lastDay(dataFile);
+		if(first > last) return;
+
+		MonitorInfo monitor = new MonitorInfo(dataFile);
+
+		lock.writeLock().lock();
+		try
+		{
+			BitSet days = byMonitor.get(monitor);
+			for(int day = first;day <= last;day++)
+			{
+				boolean monitorHasData = false;
+				boolean anyHasData = false;
+				for(DataFile other : intervals.query(day * DAY_MILLIS, (day + 1) * DAY_MILLIS))
+				{
+					anyHasData = true;
+					if(monitor.equals(new MonitorInfo(other)))
+					{
+						monitorHasData = true;
+						break;
+					}
+				}
+
+				if(days != null && !monitorHasData) days.clear(day);
+				if(!anyHasData) allMonitors.clear(day);
+			}
+
+			if(days != null && days.isEmpty())
+			{
+				byMonitor.remove(monitor);
+			}
+		}finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param monitors the monitors, or null or empty for every monitor.
+	 * @return a bitmap of the epoch days any of the monitors has data for.
+	 */
+	BitSet getDays(Collection<MonitorInfo> monitors)
+	{
+		lock.readLock().lock();
+		try
+		{
+			if(monitors == null || monitors.isEmpty())
+			{
+				return (BitSet)allMonitors.clone();
+			}
+
+			BitSet result = new BitSet();
+			for(MonitorInfo monitor : monitors)
+			{
+				BitSet days = byMonitor.get(monitor);
+				if(days != null) result.or(days);
+			}
+			return result;
+		}finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param firstDay the first epoch day of the range.
+	 * @param lastDay the last epoch day of the range, inclusive.
+	 * @param monitors the monitors, or null or empty for every monitor.
+	 * @return true if any of the monitors has data for a day in the range.
+	 */
+	boolean hasDays(long firstDay, long lastDay, Collection<MonitorInfo> monitors)
+	{
+		int first = (int)Math.max(0, firstDay);
+		if(lastDay < first || first >= MAX_DAY) return false;
+		int last = (int)Math.min(MAX_DAY - 1, lastDay);
+
+		lock.readLock().lock();
+		try
+		{
+			if(monitors == null || monitors.isEmpty())
+			{
+				return hasDay(allMonitors, first, last);
+			}
+
+			for(MonitorInfo monitor : monitors)
+			{
+				BitSet days = byMonitor.get(monitor);
+				if(days != null && hasDay(days, first, last)) return true;
+			}
+			return false;
+		}finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks whether the monitors have a data file overlapping a time range.
+	 * Ranges of whole UTC days are answered from the bitmaps alone, and other
+	 * ranges are only looked up in the interval index if one of their days has
+	 * data.
+	 *
+	 * @param monitors the monitors, or null or empty for every monitor.
+	 * @param intervals the interval index holding the same data files.
+	 * @return true if a data file of any of the monitors overlaps the range.
+	 */
+	boolean hasFiles(long startMillis, long endMillis, Collection<MonitorInfo> monitors, IntervalIndex intervals)
+	{
+		if(endMillis <= startMillis) return false;
+		if(!hasDays(getDay(startMillis), getDay(endMillis - 1), monitors)) return false;
+
+		if(startMillis % DAY_MILLIS == 0 && endMillis % DAY_MILLIS == 0)
+		{
+			//Every file overlapping the range overlaps one of its days.
+			return true;
+		}
+
+		for(DataFile dataFile : intervals.query(startMillis, endMillis))
+		{
+			if(monitors == null || monitors.isEmpty() || monitors.contains(new MonitorInfo(dataFile))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return a calendar at the start of each day set in the bitmap between the
+	 * first and last epoch days, inclusive.
+	 */
+	static TreeSet<Calendar> toCalendars(BitSet days, long firstDay, long lastDay)
+	{
+		TreeSet<Calendar> calendars = new TreeSet<Calendar>();
+		for(int day = days.nextSetBit((int)Math.max(0, firstDay));day >= 0 && day <= lastDay;day = days.nextSetBit(day + 1))
+		{
+			Calendar c = CalendarUtil.getCalendar();
+			c.setTimeInMillis(day * DAY_MILLIS);
+			calendars.add(c);
+		}
+		return calendars;
+	}
+
+	private static boolean hasDay(BitSet days, int first, int last)
+	{
+		int day = days.nextSetBit(first);
+		return day >= 0 && day <= last;
+	}
+
+	private static int firstDay(DataFile dataFile)
+	{
+		return (int)Math.max(0, Math.min(MAX_DAY, getDay(dataFile.getStartMillis())));
+	}
+
+	private static int lastDay(DataFile dataFile)
+	{
+		//A file ending at midnight does not overlap the day that starts then.
+		return (int)Math.max(-1, Math.min(MAX_DAY - 1, getDay(dataFile.getEndMillis() - 1)));
+	}
+}
@@ -3,24 +3,17 @@ package edu.stanford.sid.database;
 
 import edu.stanford.sid.DataFile;
 import edu.stanford.sid.DataFileList;
+import edu.stanford.sid.samples.SampleSidecar;
 import edu.stanford.sid.util.CalendarUtil;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import java.util.Comparator;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.HashMap;
 import java.util.ArrayList;
 
 import java.util.logging.*;
@@ -35,12 +28,12 @@ import javax.servlet.ServletContext;
  * ServletContext.  After you have an instance you can call getFilesInTimeRange
  * to retrieve a DataFileList of files in the given time range.<p>
  * 
- * The DataFileIndex class creates numerous temporary files, one for each day
- * in UTC, and stores the information for each data file that has data in that
- * day.  The index will first be initialized when the first call to getInstance
- * is made.  This indexing procedure can take a long time, but once it is
- * completed, the index will keep itself updated by traversing the entire data
- * Directory to find added files.<p>
+ * The DataFileIndex class stores the information for each data file in an
+ * append-only IndexLog in the index directory, and keeps the data files in
+ * memory in an IntervalIndex to answer time range queries.  The index will first be initialized when
+ * the first call to getInstance is made.  This indexing procedure can take a
+ * long time, but once it is completed, the index will keep itself updated by
+ * traversing the entire data Directory to find added files.<p>
  * 
  * The following is the proper method to get the instance of this class:
  * 
@@ -79,11 +72,11 @@ extends DataFileIndex
 				if(!(context.getAttribute("data-index") instanceof DataFileIndex))
 				{
 					//Create the DataFileIndex.
-					context.setAttribute("data-index", new FilesystemDataFileIndex(
+					context.setAttribute("data-index", new CoalescingDataFileIndex(new FilesystemDataFileIndex(
 							new File(context.getInitParameter("root-data-directory")),
 							new File(context.getInitParameter("index-directory")),
 							new File(context.getInitParameter("index-log-directory")),
-							600000));
+							600000)));
 				}
 			}
 		}
@@ -93,278 +86,161 @@ extends DataFileIndex
 	}
 	
 	/**
-	 * 
-	 * This class stores a single index file for the Data Files.  The information
-	 * contained in the index file is not referenced by the DataIndexFile class,
-	 * so it does not take space in memory.
+	 * A timer task that updates the index every time it is run.
 	 * 
 	 * @author Scott Winegarden, scottw@sun.stanford.edu
 	 *
 	 */
-	private class DataIndexFile
+	private class UpdateIndexTask
+	extends TimerTask
+	implements DataDirectoryWatcher.Listener, IndexingPipeline.Stages
 	{
-		private File indexFile;
-		private int numberOfFiles = 0;
-		private Calendar date;
-		
 		/**
-		 * Constructs a new empty DataIndexFile.  If there is any problem
-		 * creating the indexFile a IOException will be thrown.
-		 * 
-		 * @param date the date this DataIndexFile represents.
-		 * @throws IOException if there is an error writing the index file.
+		 * Parses the files the watcher finds, and inserts them into the index.
 		 */
-		public DataIndexFile(Calendar date)
-		throws IOException
-		{
-			this.date = date;
-			createFile();
-		}
+		private IndexingPipeline pipeline = new IndexingPipeline(workerThreads, this);
 		
 		/**
-		 * This method writes the given collection of files to disk.
+		 * When this method is run, it finds the files that were added,
+		 * changed or removed in the root directory, and updates the
+		 * index with them.<p>
+		 * 
+		 * The first run, and every run after FULL_SCAN_INTERVAL or after the
+		 * watcher lost events, clears the index of deleted files and looks
+		 * at every file in the root directory.  Otherwise, if the root
+		 * directory is watched, the WatchIndexTask has already found the
+		 * changes and there is nothing to do, and if it is not, only the
+		 * directories that changed since the last run are looked at.
 		 * 
-		 * @param files the collection of files to write to disk.
-		 * @throws IOException if there is an error writing the files.
 		 */
-		private void writeFiles(Collection<DataFile> files)
-		throws IOException
+		public void run()
 		{
-			try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(indexFile)))
+			//Set this to minimum priority so that the requests can get processed faster.
+			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+			
+			boolean full = lastFullScan == 0 || watcher.isOverflowed() ||
+					System.currentTimeMillis() - lastFullScan >= FULL_SCAN_INTERVAL;
+			
+			//A watched directory has no changes left for a partial scan to find.
+			if(!full && watcher.isWatching()) return;
+			
+			//Variables for the file handler and temporary file.
+			FileHandler fileHandler = null;
+			File tempFile = null;
+			try
 			{
-				numberOfFiles = files.size();
+				//Create a temporary file in the log directory.
+				tempFile = File.createTempFile(String.format("%s-", java.text.DateFormat.getDateTimeInstance().format(new java.util.Date())),".log", indexLogDirectory);
 				
-				for(DataFile file : files)
-				{
-					out.writeObject(file);
-				}
-			}
-		}
-		
-		/**
-		 * This method reads the collection of data files from the disk.
-		 * 
-		 * @return a collection of DataFile objects in this index file.
-		 * @throws IOException if the file cannot be read.
-		 * @throws ClassNotFoundException if it cannot identify a serialized class.
-		 */
-		private Collection<DataFile> readFiles()
-		throws IOException, ClassNotFoundException
-		{
-			Collection<DataFile> files = new HashSet<DataFile>();
+				//Create the log file handler.
+				fileHandler = new FileHandler(tempFile.getAbsolutePath(), false);
+				fileHandler.setFormatter(new java.util.logging.SimpleFormatter());
+			}catch(Exception e){}
 			
-			if(numberOfFiles != 0)
+			//If we managed to create a handler properly, add it to the logger.
+			if(fileHandler != null)
 			{
-				try(ObjectInputStream in = new ObjectInputStream(new FileInputStream(indexFile)))
-				{
-					for(int i = 0;i < numberOfFiles;i++)
-					{
-						files.add((DataFile)in.readObject());
-					}
-				}
+				indexingLogger.addHandler(fileHandler);
 			}
 			
-			return files;
-		}
-		
-		/**
-		 * Reads the collection of data files from disk.
-		 * 
-		 * @return a collection containing all the data files from the
-		 * file the class represents.
-		 * @throws IOException if there is an error reading files.
-		 * @throws ClassNotFoundException if the DataFile class cannot
-		 * be found.
-		 */
-		public synchronized Collection<DataFile> getFiles()
-		throws IOException, ClassNotFoundException
-		{
-			Collection<DataFile> files = null;
+			indexingLogger.fine(full ? "Indexing Started" : "Indexing Changed Directories");
 			
-			if(cache.cacheHit(this))
+			if(lastFullScan == 0 && watcher.start())
 			{
-				files = cache.getCachedList(this);
+				//Watch before the first scan, so nothing written during the scan is missed.
+				updateTimer.schedule(new WatchIndexTask(this), WATCH_INTERVAL, WATCH_INTERVAL);
 			}
-			else
+			
+			if(full)
 			{
-				files = readFiles();
+				lastFullScan = System.currentTimeMillis();
+				verifyFiles(); //Verify files in the index exist.
 			}
+			watcher.scan(full, this); //Process the files in the root directory.
+			pipeline.finish();
+			
+			flushIndexLog();
+			
+			//At least one complete update has finished.
+			updateComplete = true;
 			
-			cache.cacheAdd(this, files);
-			return files;
+			//If we managed to create a new log file, we are done with it and should clean up the old one.
+			if(fileHandler != null)
+			{
+				indexingLogger.removeHandler(fileHandler);
+				fileHandler.close();
+			}
 		}
 		
 		/**
-		 * Adds a file to the collection of data files on disk.
-		 * 
-		 * @param file is the file to be added.
-		 * @throws IOException if there is an error reading or writing the
-		 * index file.
-		 * @throws ClassNotFoundException if the DataFile class cannot be found.
+		 * Called by the watcher for each file that was added or changed, queues
+		 * the file to be parsed by the pipeline.
 		 */
-		public synchronized void addFile(DataFile file)
-		throws IOException, ClassNotFoundException
+		public void fileChanged(File file)
 		{
-			cache.cacheRemove(this);
+			//If the file does not match a standard naming convention, we are done.
+			if(!file.getName().matches(".*(dat|csv|txt)")) return;
 			
-			Collection<DataFile> files = readFiles();
-			files.add(file);
-			writeFiles(files);
+			indexingLogger.fine(String.format("Found File: %s", file.getAbsolutePath()));
+			pipeline.add(file);
 		}
 		
-		private void createFile()
-		throws IOException
+		/**
+		 * Called by the pipeline for each file that could not be indexed.
+		 */
+		public void failed(File file, Exception e)
 		{
-			indexFile = File.createTempFile(String.format("%d.", date.getTimeInMillis()), ".temp-index-file", indexDirectory);
-			indexFile.deleteOnExit();
+			indexingLogger.log(Level.WARNING, String.format("Could not index file: %s", file.getAbsolutePath()), e);
 		}
 		
 		/**
-		 * Removes all nonexistant files from the collection.  This
-		 * makes sure that all files in the collection actually exsist.
-		 *
+		 * Called by the watcher for each file or directory that was removed.
+		 * For a directory, every file under it is removed from the index.
 		 */
-		public synchronized void verify()
+		public void fileRemoved(File file)
 		{
-			try
-			{
-				//Read the list in.
-				Collection<DataFile> files = getFiles();
-				DataFile f = null;
-				//Iterate over the list of files, if you find one that no longer
-				//exists, remove it from the list.
-				for(java.util.Iterator<DataFile> i = files.iterator();i.hasNext();f = i.next())
-				{
-					if(!f.getFile().exists())
-					{
-						i.remove();
-					}
-				}
-				//Write the list out.
-				writeFiles(files);
-			}catch(Exception e)
+			String path = file.getPath();
+			if(indexLog.contains(file))
 			{
+				indexingLogger.fine(String.format("Removing file: %s", path));
 				try
 				{
-					if(!indexFile.exists())
-					{
-						createFile();
-					}
-					writeFiles(new HashSet<DataFile>());
-				}catch(IOException ex){throw new RuntimeException("Cannot write index file: " + indexFile.toString());}
+					removeFile(path);
+				}catch(IOException e)
+				{
+					indexingLogger.log(Level.WARNING, String.format("Could not remove file: %s", path), e);
+				}
+				return;
 			}
-		}
-		
-		/**
-		 * Returns true if this index file has any files of the given monitor.
-		 * If the monitor array is null, that will return true if there are any
-		 * monitors in this index file.
-		 * 
-		 * @param monitors
-		 * @return
-		 */
-		public synchronized boolean hasFiles(Collection<MonitorInfo> monitors)
-		{
-			if(numberOfFiles == 0)
-			{
-				//If there are no files, it cannot have files for
-				//the given monitors.
-				return false;
-			}else if(monitors == null || monitors.size() == 0)
-			{
-				//If there are files, and you are not looking for
-				//a specific one, you have found one.
-				return true;
-			}else
+			
+			String directoryPrefix = path + File.separator;
+			for(String indexed : indexLog.getPaths())
 			{
-				try
+				if(indexed.startsWith(directoryPrefix))
 				{
-					//Otherwise lets go hunting.
-					for(DataFile d : getFiles())
+					try
 					{
-						for(MonitorInfo monitor : monitors)
-						{
-							//For each file, check its monitor against each monitor
-							//passed as an argument, if we find a match, we are done.
-							if(new MonitorInfo(d).equals(monitor))
-							{
-								return true;
-							}
-						}
+						indexingLogger.fine(String.format("Removing file: %s", indexed));
+						removeFile(indexed);
+					}catch(IOException e)
+					{
+						indexingLogger.log(Level.WARNING, String.format("Could not remove file: %s", indexed), e);
 					}
-					//No such luck, none found.
-					return false;
-				}catch(Exception e){
-					//If anything goes wrong ignore it, and return false.
-					return false;
 				}
 			}
 		}
 		
 		/**
-		 * Cleans up the resources used by this index file.
-		 */
-		protected void finalize()
-		throws Throwable
-		{
-			super.finalize();
-			indexFile.delete();
-		}
-	}
-	
-	/**
-	 * A timer task that updates the index every time it is run.
-	 * 
-	 * @author Scott Winegarden, scottw@sun.stanford.edu
-	 *
-	 */
-	private class UpdateIndexTask
-	extends TimerTask
-	{
-		/**
-		 * When this method is run, if the number of files in the
-		 * root directory is different than the last time it was called
-		 * will clear all index files of deleted files, and add all new
-		 * files to the index.
-		 * 
+		 * Makes sure what was indexed survives a restart.
 		 */
-		public void run()
+		private void flushIndexLog()
 		{
-			//Set this to minimum priority so that the requests can get processed faster.
-			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-			
-			//Variables for the file handler and temporary file.
-			FileHandler fileHandler = null;
-			File tempFile = null;
 			try
 			{
-				//Create a temporary file in the log directory.
-				tempFile = File.createTempFile(String.format("%s-", java.text.DateFormat.getDateTimeInstance().format(new java.util.Date())),".log", indexLogDirectory);
-				
-				//Create the log file handler.
-				fileHandler = new FileHandler(tempFile.getAbsolutePath(), false);
-				fileHandler.setFormatter(new java.util.logging.SimpleFormatter());
-			}catch(Exception e){}
-			
-			//If we managed to create a handler properly, add it to the logger.
-			if(fileHandler != null)
-			{
-				indexingLogger.addHandler(fileHandler);
-			}
-			
-			indexingLogger.fine("Indexing Started");
-			
-			verifyFiles(); //Verify files in the index exist.
-			processFilesInDirectory(rootDataDirectory); //Process all the files in the index directory.
-			
-			//At least one complete update has finished.
-			updateComplete = true;
-			
-			//If we managed to create a new log file, we are done with it and should clean up the old one.
-			if(fileHandler != null)
+				indexLog.flush();
+			}catch(IOException e)
 			{
-				indexingLogger.removeHandler(fileHandler);
-				fileHandler.close();
+				indexingLogger.log(Level.WARNING, "Could not write index log", e);
 			}
 		}
 		
@@ -375,155 +251,167 @@ extends DataFileIndex
 		 */
 		private void verifyFiles()
 		{
-			for(DataIndexFile indexFile : indexFiles.values())
-			{
-				indexFile.verify();
-			}
-		}
-		
-		/**
-		 * Called by the run action to recursively process all files in
-		 *  the directory.
-		 *  
-		 *  Simply, for each file in the directory, if it is a directory
-		 *  process all the files in it, if it is a file, process it.
-		 * 
-		 * @param rootDirectory the directory to process.
-		 */
-		private void processFilesInDirectory(File rootDirectory)
-		{
-			indexingLogger.finer(String.format("Processing Directory: %s", rootDirectory.getAbsolutePath()));
-			for(File file : rootDirectory.listFiles())
+			for(String path : indexLog.getPaths())
 			{
-				if(file.isDirectory())
-				{
-					processFilesInDirectory(file);
-				}else
+				if(!new File(path).exists())
 				{
 					try
 					{
-						indexingLogger.fine(String.format("Found File: %s", file.getAbsolutePath()));
-						processFile(file);
-					}catch(Exception e)
+						indexingLogger.fine(String.format("Removing file: %s", path));
+						removeFile(path);
+					}catch(IOException e)
 					{
-						indexingLogger.log(Level.WARNING, String.format("Could not index file: %s", file.getAbsolutePath()), e);
+						indexingLogger.log(Level.WARNING, String.format("Could not remove file: %s", path), e);
 					}
 				}
 			}
 		}
 		
 		/**
-		 * Processes a single file, and if it is a valid data file, will
-		 * add it to the index.
+		 * Parses a single file on a pipeline worker thread.  If the file has
+		 * changed since it was indexed, or was never indexed, the data file is
+		 * constructed and its binary samples are written.
 		 * 
-		 * @param file the file to process.
+		 * @param file the file to parse.
+		 * @return the parsed file, or null if the index is current for it.
 		 */
-		private void processFile(File file)
+		public IndexingPipeline.ParsedFile parse(File file)
 		throws Exception
 		{
-			//If the file does not match a standard naming convention, we are done.
-			if(!file.getName().matches(".*(dat|csv|txt)")) return;
+			//If the file has not changed since it was indexed, there is nothing to add.
+			long length = file.length();
+			long lastModified = file.lastModified();
+			if(indexLog.isCurrent(file, length, lastModified)) return null;
 			
 			indexingLogger.fine(String.format("Indexing file: %s", file.getAbsolutePath()));
 			
 			DataFile df = new DataFile(file);		//Construct the data file.
-			monitorSet.add(new MonitorInfo(df));	//Add its monitor info to the set.
-				
-			//For each day in UTC the monitor has data for, add it to the monitor map.
-			for(Calendar date : CalendarUtil.getDaysInRange(df.getStartTime(), df.getEndTime()))
+			
+			try
 			{
-				if(indexFiles.get(date) == null) 
-				{
-					//If we don't have a date for this entry, create one.
-					indexFiles.put(date, new DataIndexFile(date));
-				}
-				//Add it to this date's entry.
-				indexFiles.get(date).addFile(df);
+				//Write the binary samples now, so the first graph of the file does not parse it.
+				SampleSidecar.prepare(df);
+			}catch(IOException e)
+			{
+				indexingLogger.log(Level.WARNING, String.format("Could not write samples for file: %s", file.getAbsolutePath()), e);
 			}
+			
+			return new IndexingPipeline.ParsedFile(df, length, lastModified);
 		}
-	}
-	
-	/**
-	 * This is a <b>very</b> simple implementation of a cache.
-	 * 
-	 * It stores two lists, one of keys and one of values.  When data files
-	 * are requested, you can check to see if they are in the cache with cacheHit
-	 * method.  If it returns true, you can use the getChachedList method to retrieve
-	 * the cached data.  Each time you read the data from an index file due to a
-	 * cache miss, call the cacheAdd method to speed up the next request for that data.
-	 * 
-	 * The cacheAdd method automatically removes the first object from the cache if
-	 * the cache has more objects than cacheSize;
-	 * 
-	 * @author Scott Winegarden
-	 *
-	 */
-	private class IndexFileCache
-	{
-		public IndexFileCache()
+		
+		/**
+		 * Appends a batch of parsed files to the index log.
+		 * 
+		 * @param batch the parsed files.
+		 */
+		public void insert(java.util.List<IndexingPipeline.ParsedFile> batch)
+		throws IOException
 		{
-			cacheData = new ArrayList<Collection<DataFile>>();
-			cacheKeys = new ArrayList<DataIndexFile>();
+			indexLog.add(batch);
 		}
 		
-		private ArrayList<Collection<DataFile>> cacheData;
-		private ArrayList<DataIndexFile> cacheKeys;
-		
-		public synchronized Collection<DataFile> getCachedList(DataIndexFile indexFile)
+		/**
+		 * Removes a file from the index, with its samples in the sample cache.
+		 * 
+		 * @param path the path of the file to remove.
+		 */
+		private void removeFile(String path)
+		throws IOException
 		{
-			return cacheData.get(cacheKeys.indexOf(indexFile));
+			indexLog.remove(path);
+			SampleSidecar.remove(new File(path));
 		}
+	}
+	
+	/**
+	 * A timer task that hands the changes the watcher found in the root
+	 * directory to the update task, so new files are indexed within seconds
+	 * of being written.
+	 */
+	private class WatchIndexTask
+	extends TimerTask
+	{
+		private UpdateIndexTask updateTask;
 		
-		public synchronized boolean cacheHit(DataIndexFile indexFile)
+		public WatchIndexTask(UpdateIndexTask updateTask)
 		{
-			return cacheKeys.contains(indexFile);
+			this.updateTask = updateTask;
 		}
 		
-		public synchronized void cacheAdd(DataIndexFile indexFile, Collection<DataFile> data)
+		public void run()
 		{
-			cacheRemove(indexFile);
+			//Changes found before the first full scan are picked up by that scan.
+			if(lastFullScan == 0) return;
 			
-			if(cacheKeys.size() >= cacheSize)
+			int changes = watcher.processSettled(updateTask);
+			updateTask.pipeline.finish();
+			if(changes > 0)
 			{
-				cacheKeys.remove(0);
-				cacheData.remove(0);
+				updateTask.flushIndexLog();
 			}
-			
-			cacheKeys.add(indexFile);
-			cacheData.add(data);
 		}
-		
-		public synchronized void cacheRemove(DataIndexFile indexFile)
+	}
+	
+	/**
+	 * A timer task that compacts the index log when enough of it is
+	 * replaced or removed files.
+	 */
+	private class CompactIndexTask
+	extends TimerTask
+	{
+		public void run()
 		{
-			while(cacheKeys.contains(indexFile))
+			if(!indexLog.needsCompaction()) return;
+			
+			try
+			{
+				indexingLogger.fine("Compacting index log");
+				indexLog.compact();
+			}catch(IOException e)
 			{
-				cacheData.remove(cacheKeys.indexOf(indexFile));
-				cacheKeys.remove(indexFile);
+				indexingLogger.log(Level.WARNING, "Could not compact index log", e);
 			}
 		}
 	}
 	
-	
 	private File rootDataDirectory;
 	private File indexDirectory;
 	
 	private File indexLogDirectory;
 	
-	private IndexFileCache cache;
-	private int cacheSize = 31;
+	/**
+	 * The log the indexed data files are stored in.
+	 */
+	private IndexLog indexLog;
+	
+
+	private Timer updateTimer = new Timer();
 	
 	/**
-	 * Map of index files to calendar days.
+	 * The task that updates the index, which owns the pipeline that parses data files.
 	 */
-	private Map<Calendar, DataIndexFile> indexFiles;
+	private UpdateIndexTask updateTask;
 	
 	/**
-	 * Information on the various monitors the index has data for.
+	 * How often every file in the root directory is looked at, even if the
+	 * watcher or the directory modification times say nothing changed.
 	 */
-	private Set<MonitorInfo> monitorSet;
+	private static final long FULL_SCAN_INTERVAL = 24L * 60 * 60 * 1000;
 	
+	/**
+	 * How often the changes found by the watcher are added to the index.
+	 */
+	private static final long WATCH_INTERVAL = 1000;
 	
-	private Timer updateTimer = new Timer();
+	/**
+	 * Finds the files in the root directory that changed.
+	 */
+	private DataDirectoryWatcher watcher;
+	
+	/**
+	 * When the last full scan of the root directory started, 0 before the first.
+	 */
+	private volatile long lastFullScan = 0;
 	
 	/**
 	 * This keeps track of whether the index has completed its initial
@@ -533,33 +421,59 @@ extends DataFileIndex
 	
 	private Logger indexingLogger;
 	
+	/**
+	 * The number of threads parsing data files, 0 for one per processor.
+	 */
+	private int workerThreads;
+	
 	/**
 	 * Create a DataFileIndex for the given directory.
 	 * 
 	 * @param rootDataDirectory the root directory.
 	 */
 	FilesystemDataFileIndex(File rootDataDirectory, File indexDirectory, File indexLogDirectory, int updateInterval)
+	{
+		this(rootDataDirectory, indexDirectory, indexLogDirectory, updateInterval, 0);
+	}
+	
+	/**
+	 * Create a DataFileIndex for the given directory, that parses data files
+	 * on the given number of worker threads.
+	 * 
+	 * @param rootDataDirectory the root directory.
+	 * @param workerThreads the number of threads parsing data files, or 0
+	 * for one per available processor.
+	 */
+	FilesystemDataFileIndex(File rootDataDirectory, File indexDirectory, File indexLogDirectory, int updateInterval, int workerThreads)
 	{
 		System.out.format("%s  %s  %s  %d%n", rootDataDirectory, indexDirectory, indexLogDirectory, updateInterval);
 		
 		this.rootDataDirectory = rootDataDirectory;
 		this.indexDirectory = indexDirectory;
 		this.indexLogDirectory = indexLogDirectory;
+		this.workerThreads = workerThreads;
 		
 		indexingLogger = Logger.getAnonymousLogger();
 		indexingLogger.setLevel(Level.FINEST);
-		cache = new IndexFileCache();
 		
-		for(File f : indexDirectory.listFiles())
+		try
 		{
-			if(f.getName().endsWith(".temp-index-file"))
-				f.delete();
+			//Load the index saved by the last run, if there is one.
+			indexLog = new IndexLog(indexDirectory);
+		}catch(IOException e)
+		{
+			throw new RuntimeException("Cannot create index log in: " + indexDirectory, e);
 		}
 		
-		indexFiles = new HashMap<Calendar, DataIndexFile>();
-		monitorSet = new HashSet<MonitorInfo>();
+		//A saved index is good enough to answer requests while the update task
+		//catches up with the files that changed since it was saved.
+		updateComplete = indexLog.size() > 0;
+		
+		watcher = new DataDirectoryWatcher(rootDataDirectory, indexingLogger);
 		
-		updateTimer.schedule(new UpdateIndexTask(), 0, updateInterval);
+		updateTask = new UpdateIndexTask();
+		updateTimer.schedule(updateTask, 0, updateInterval);
+		updateTimer.schedule(new CompactIndexTask(), updateInterval, updateInterval);
 	}
 	
 	public edu.stanford.sid.util.StationLatitudeLongitude getStationLatitudeLongitude(String identifier)
@@ -578,40 +492,18 @@ extends DataFileIndex
 	 */
 	public DataFileList getFilesFromTimeRange(Calendar startTime, Calendar endTime)
 	{
-		Collection<DataFile> dataFiles = new HashSet<DataFile>();
-		
-		//Check if we are requested for more than a month worth of data.  This could take up
+		//Check if we are requested for more than a year worth of data.  This could take up
 		//more memory than is available.
 		Calendar timeTest = (Calendar)startTime.clone();
-		timeTest.add(Calendar.MONTH, 1);
+		timeTest.add(Calendar.YEAR, 1);
 		if(timeTest.before(endTime))
 		{
-			throw new RuntimeException("Time range cannot be greater than one month.");
+			throw new RuntimeException("Time range cannot be greater than one year.");
 		}
 		
-		for(Calendar date : CalendarUtil.getDaysInRange(startTime, endTime))
-		{
-			if(indexFiles.containsKey(date))
-			{
-				try
-				{
-					for(DataFile d : indexFiles.get(date).getFiles())
-					{
-						if(d.getFile().exists())
-						{
-							if(d.getStartTime().before(endTime) && d.getEndTime().after(startTime))
-							{
-								dataFiles.add(d);
-							}
-						}
-					}
-				}catch(IOException e)
-				{}catch(ClassNotFoundException e)
-				{}
-			}
-		}
-		
-		return new DataFileList(dataFiles);
+		//Deleted files are removed from the index by the update task, so the
+		//files found do not need to be checked against the filesystem.
+		return new DataFileList(indexLog.getFiles(startTime.getTimeInMillis(), endTime.getTimeInMillis()));
 	}
 	
 	/**
@@ -626,7 +518,7 @@ extends DataFileIndex
 	public Collection<MonitorInfo> getMonitors(Comparator<MonitorInfo> comp)
 	{
 		ArrayList<MonitorInfo> list = new ArrayList<MonitorInfo>();
-		list.addAll(monitorSet);
+		list.addAll(indexLog.getMonitors());
 		
 		if(comp != null)
 		{
@@ -638,44 +530,33 @@ extends DataFileIndex
 	
 	/**
 	 * Gets a list of days that the provided monitors have data for since 2003.
+	 * 
+	 * The days are read from the day bitmaps of the index log, so this does not
+	 * look at the data files.
 	 */
 	public Collection<Calendar> getDaysWithData(Collection<MonitorInfo> monitors)
 	{
-		Calendar start = CalendarUtil.getCalendar(2003, 1, 1);
-		Calendar end = CalendarUtil.getCalendar();
-		
-		ArrayList<Calendar> daysWithData = new ArrayList<Calendar>();
+		long firstDay = DayBitmapIndex.getDay(CalendarUtil.getCalendar(2003, 1, 1).getTimeInMillis());
+		long lastDay = DayBitmapIndex.getDay(System.currentTimeMillis() - 1);
 		
-		for(Calendar c : CalendarUtil.getDaysInRange(start, end))
-		{
-			Calendar next = CalendarUtil.duplicate(c);
-			next.add(Calendar.DATE, 1);
-			if(hasFilesInRange(c, next, monitors)) daysWithData.add(c);
-		}
-		
-		return daysWithData;
+		return DayBitmapIndex.toCalendars(indexLog.getDaysWithData(monitors), firstDay, lastDay);
 	}
 	
 	/**
 	 * Returns true if there are datafiles in the given range for a given set of monitors.
 	 * If monitors is null, this will assume all monitors.
+	 * 
+	 * The day bitmaps of the index log answer for ranges of whole UTC days, and
+	 * rule out other ranges with no data on their days.  Only the rest look at
+	 * the data files.
+	 * 
 	 * @param startTime
 	 * @param endTime
 	 * @return
 	 */
 	public boolean hasFilesInRange(Calendar startTime, Calendar endTime, Collection<MonitorInfo> monitors)
 	{
-		for(Calendar date : CalendarUtil.getDaysInRange(startTime, endTime))
-		{
-			if(indexFiles.containsKey(date))
-			{
-				if(indexFiles.get(date).hasFiles(monitors))
-				{
-					return true;
-				}
-			}
-		}
-		return false;
+		return indexLog.hasFiles(startTime.getTimeInMillis(), endTime.getTimeInMillis(), monitors);
 	}
 	
 	/**
@@ -691,10 +572,32 @@ extends DataFileIndex
 	}
 	
 	/**
-	 * There is no need to close any resources after the index is done being accessed.
+	 * The generation counts the records written to the index log since it
+	 * was opened.
+	 */
+	public long getGeneration()
+	{
+		return indexLog.getGeneration();
+	}
+	
+	/**
+	 * Stops updating the index.  The update timer is cancelled, the root directory
+	 * is no longer watched, the worker threads of the pipeline are stopped, and the
+	 * index log is written to disk and closed.  An update that is running when this
+	 * is called fails at its next write to the log.
 	 */
 	public void close()
 	{
+		updateTimer.cancel();
+		watcher.close();
+		updateTask.pipeline.shutdown();
 		
+		try
+		{
+			indexLog.close();
+		}catch(IOException e)
+		{
+			indexingLogger.log(Level.WARNING, "Could not close index log", e);
+		}
 	}
 }
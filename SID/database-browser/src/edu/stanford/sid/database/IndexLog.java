@@ -0,0 +1,824 @@
+package edu.stanford.sid.database;
+
+import edu.stanford.sid.DataFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The IndexLog stores the data files of the FilesystemDataFileIndex in
+ * append-only segment files.  Adding a data file appends a single record to
+ * the active segment, and removing one appends a record naming its path, so
+ * indexing a file never rewrites what is already on disk.<p>
+ *
+ * In memory the log keeps, for each indexed path, where its record is, an
+ * IntervalIndex of the data files that answers time range queries without
+ * reading the segments, and a DayBitmapIndex of the days each monitor has data
+ * for.<p>
+ *
+ * Records that have been replaced or removed stay in their segments until
+ * compact is called, which copies the live records of all sealed segments into
+ * one new segment, and deletes the old segments.<p>
+ *
+ * The segments survive restarts.  A manifest lists the segments of the log in
+ * the order they were written, and opening the log replays them to rebuild the
+ * in-memory tables.  Each added record carries the length and modification
+ * time the data file had when it was parsed, so the index only needs to parse
+ * again the files that changed while it was down.  If the manifest or a
+ * segment was written by a different version of the log, the log starts
+ * empty.  Replay stops at the first record that is cut short, fails its
+ * checksum or cannot be decoded, as after a torn write, and the segment is
+ * truncated there; the data files of the records lost are parsed again.<p>
+ *
+ * A segment starts with an int magic number and an int format version,
+ * followed by a sequence of records, each of which is one of:
+ *
+ * <pre>
+ * byte  ADD, int length of the body, int CRC32 of the type and the body,
+ *       then the body: long length of the data file, long modification
+ *       time of the data file, then the data file written by DataFile.write
+ * byte  REMOVE, int length of the body, int CRC32 of the type and the body,
+ *       then the body: the path of the data file as UTF
+ * </pre>
+ *
+ * The manifest holds an int magic number, an int format version, an int count
+ * of segments, then the number of each segment.
+ */
+class IndexLog
+{
+	private static final int SEGMENT_MAGIC = 0x5349444c; // "SIDL"
+	private static final int MANIFEST_MAGIC = 0x5349444d; // "SIDM"
+	private static final int VERSION = 2;
+
+	private static final int SEGMENT_HEADER_LENGTH = 4 + 4;
+	private static final int RECORD_HEADER_LENGTH = 1 + 4 + 4;
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The size the active segment may grow to before a new one is started.
+	 */
+	private static final long SEGMENT_SIZE = 64L << 20;
+
+	/**
+	 * The least number of dead bytes worth compacting.
+	 */
+	private static final long MIN_COMPACTION_BYTES = 1L << 20;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXTENSION = ".sidlog";
+	private static final String MANIFEST_NAME = "index.manifest";
+
+	/**
+	 * Where the record of an indexed data file is, and the state of the data
+	 * file when it was parsed.
+	 */
+	private static class Entry
+	{
+		private int segment;
+		private long offset;
+		private int length;
+		private long fileLength;
+		private long fileModified;
+
+		Entry(int segment, long offset, int length, long fileLength, long fileModified)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.fileLength = fileLength;
+			this.fileModified = fileModified;
+		}
+	}
+
+	/**
+	 * Orders entries by their position on disk, so compaction reads each
+	 * segment in one pass.
+	 */
+	private static final Comparator<Entry> DISK_ORDER = new Comparator<Entry>()
+	{
+		public int compare(Entry a, Entry b)
+		{
+			if(a.segment != b.segment) return a.segment < b.segment ? -1 : 1;
+			return Long.compare(a.offset, b.offset);
+		}
+	};
+
+	private File directory;
+
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private IntervalIndex intervals = new IntervalIndex();
+	private DayBitmapIndex days = new DayBitmapIndex();
+	private Set<MonitorInfo> monitors = new HashSet<MonitorInfo>();
+
+	/**
+	 * The segments of the log in the order they were written.  The last one is
+	 * the active segment.
+	 */
+	private ArrayList<Integer> segments = new ArrayList<Integer>();
+	private int activeSegment;
+	private FileOutputStream activeFile;
+	private DataOutputStream activeOut;
+	private long activeLength;
+
+	private long liveBytes;
+	private long deadBytes;
+
+	/**
+	 * Counts the changes made to the data files in the log since it was
+	 * opened.
+	 */
+	private volatile long generation;
+
+	/**
+	 * Opens the log in the given directory, replaying the segments listed in
+	 * its manifest.  If there is no manifest, or it was written by a different
+	 * version of the log, any segments in the directory are deleted and the log
+	 * starts empty.
+	 *
+	 * @param directory the directory to keep the segments in.
+	 * @throws IOException if the active segment cannot be opened.
+	 */
+	IndexLog(File directory)
+	throws IOException
+	{
+		this.directory = directory;
+
+		if(!replay())
+		{
+			entries.clear();
+			intervals = new IntervalIndex();
+			days = new DayBitmapIndex();
+			monitors.clear();
+			segments.clear();
+			liveBytes = 0;
+			deadBytes = 0;
+
+			for(File f : directory.listFiles())
+			{
+				if(f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_EXTENSION))
+					f.delete();
+			}
+
+			openSegment(0);
+		}else
+		{
+			//Delete segments left behind by a compaction that did not finish.
+			for(File f : directory.listFiles())
+			{
+				String name = f.getName();
+				if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION))
+				{
+					try
+					{
+						int segment = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+						if(!segments.contains(segment)) f.delete();
+					}catch(NumberFormatException e){}
+				}
+			}
+
+			//Keep appending to the last segment.
+			openSegment(segments.remove(segments.size() - 1));
+		}
+	}
+
+	/**
+	 * @return a number that changes whenever a data file is added to or
+	 * removed from the log.  It does not take the log's lock.
+	 */
+	long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * @return the number of data files in the log.
+	 */
+	synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return true if a data file with the given path is in the log.
+	 */
+	synchronized boolean contains(File file)
+	{
+		return entries.containsKey(file.getPath());
+	}
+
+	/**
+	 * @return true if the data file is in the log, and had the given length and
+	 * modification time when it was added.
+	 */
+	synchronized boolean isCurrent(File file, long fileLength, long fileModified)
+	{
+		Entry entry = entries.get(file.getPath());
+		return entry != null && entry.fileLength == fileLength && entry.fileModified == fileModified;
+	}
+
+	/**
+	 * @return the paths of all data files in the log.
+	 */
+	synchronized Collection<String> getPaths()
+	{
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * @return the monitors of every data file added to the log.
+	 */
+	synchronized Collection<MonitorInfo> getMonitors()
+	{
+		return new ArrayList<MonitorInfo>(monitors);
+	}
+
+	/**
+	 * Finds the data files that start before endMillis and end after
+	 * startMillis.  This does not read the segments or wait for the log.
+	 *
+	 * @return the data files overlapping the time range.
+	 */
+	Collection<DataFile> getFiles(long startMillis, long endMillis)
+	{
+		return intervals.query(startMillis, endMillis);
+	}
+
+	/**
+	 * Finds the UTC days the monitors have data for.  This does not read the
+	 * segments or wait for the log.
+	 *
+	 * @param monitors the monitors, or null or empty for every monitor.
+	 * @return a bitmap of the epoch days with data.
+	 */
+	BitSet getDaysWithData(Collection<MonitorInfo> monitors)
+	{
+		return days.getDays(monitors);
+	}
+
+	/**
+	 * Checks whether the monitors have a data file overlapping a time range.
+	 * This does not read the segments or wait for the log.
+	 *
+	 * @param monitors the monitors, or null or empty for every monitor.
+	 * @return true if a data file of any of the monitors overlaps the range.
+	 */
+	boolean hasFiles(long startMillis, long endMillis, Collection<MonitorInfo> monitors)
+	{
+		return days.hasFiles(startMillis, endMillis, monitors, intervals);
+	}
+
+	/**
+	 * Adds the data file to the log, replacing any earlier record with the
+	 * same path.  The length and modification time of the data file are
+	 * recorded with it, and should be read before the file is parsed.
+	 *
+	 * @param dataFile the data file to add.
+	 * @param fileLength the length of the data file when it was parsed.
+	 * @param fileModified the modification time of the data file when it was parsed.
+	 * @throws IOException if the record cannot be appended.
+	 */
+	synchronized void add(DataFile dataFile, long fileLength, long fileModified)
+	throws IOException
+	{
+		append(dataFile, fileLength, fileModified);
+	}
+
+	/**
+	 * Adds a batch of parsed data files to the log, holding the lock once for
+	 * the whole batch.
+	 *
+	 * @param batch the parsed data files to add.
+	 * @throws IOException if the records cannot be appended.
+	 */
+	synchronized void add(List<IndexingPipeline.ParsedFile> batch)
+	throws IOException
+	{
+		for(IndexingPipeline.ParsedFile parsed : batch)
+		{
+			append(parsed.dataFile, parsed.length, parsed.lastModified);
+		}
+	}
+
+	/**
+	 * Appends the record of an added data file, and makes it current.
+	 */
+	private void append(DataFile dataFile, long fileLength, long fileModified)
+	throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(ADD);
+		record.writeInt(0);
+		record.writeInt(0);
+		record.writeLong(fileLength);
+		record.writeLong(fileModified);
+		dataFile.write(record);
+
+		long offset = append(toRecord(bytes));
+		put(dataFile, new Entry(activeSegment, offset, bytes.size(), fileLength, fileModified));
+		generation++;
+	}
+
+	/**
+	 * Removes the data file with the given path from the log.
+	 *
+	 * @param path the path of the data file.
+	 * @throws IOException if the record cannot be appended.
+	 */
+	synchronized void remove(String path)
+	throws IOException
+	{
+		if(!entries.containsKey(path)) return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(REMOVE);
+		record.writeInt(0);
+		record.writeInt(0);
+		record.writeUTF(path);
+
+		append(toRecord(bytes));
+		deadBytes += bytes.size();
+		release(entries.remove(path));
+		removeInterval(path);
+		generation++;
+	}
+
+	/**
+	 * Writes any buffered records to disk, so they survive a restart.
+	 *
+	 * @throws IOException if the active segment cannot be written.
+	 */
+	synchronized void flush()
+	throws IOException
+	{
+		checkOpen();
+		activeOut.flush();
+		activeFile.getFD().sync();
+	}
+
+	/**
+	 * @return true if enough of the log is replaced or removed records that
+	 * compacting it is worthwhile.
+	 */
+	synchronized boolean needsCompaction()
+	{
+		return deadBytes >= MIN_COMPACTION_BYTES && deadBytes >= liveBytes;
+	}
+
+	/**
+	 * Copies the live records of every sealed segment into one new segment,
+	 * and deletes the sealed segments.  The active segment is sealed first, so
+	 * the whole log is compacted.  Records are copied without holding the lock,
+	 * so files can be added and read while the log is compacted.
+	 *
+	 * @throws IOException if the new segment cannot be written.
+	 */
+	void compact()
+	throws IOException
+	{
+		final ArrayList<Entry> copies;
+		ArrayList<String> paths;
+		int compactedSegment;
+		synchronized(this)
+		{
+			checkOpen();
+
+			//Seal the active segment, leaving a number free for the compacted segment
+			//so the segments stay in the order they were written.
+			compactedSegment = activeSegment + 1;
+			closeSegment();
+			openSegment(activeSegment + 2);
+
+			paths = new ArrayList<String>(entries.keySet());
+			copies = new ArrayList<Entry>(paths.size());
+			for(String path : paths)
+			{
+				Entry e = entries.get(path);
+				copies.add(new Entry(e.segment, e.offset, e.length, e.fileLength, e.fileModified));
+			}
+		}
+
+		//Read the records in the order they are on disk.
+		Integer[] order = new Integer[copies.size()];
+		for(int i = 0;i < order.length;i++) order[i] = i;
+		java.util.Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return DISK_ORDER.compare(copies.get(a), copies.get(b));
+			}
+		});
+
+		//Copy the records, remembering where each one went.
+		long[] offsets = new long[copies.size()];
+		File compactedFile = getSegmentFile(compactedSegment);
+		try(FileOutputStream fileOut = new FileOutputStream(compactedFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536)))
+		{
+			out.writeInt(SEGMENT_MAGIC);
+			out.writeInt(VERSION);
+
+			RandomAccessFile in = null;
+			int segment = -1;
+			try
+			{
+				for(int i : order)
+				{
+					Entry entry = copies.get(i);
+					if(entry.segment != segment)
+					{
+						if(in != null) in.close();
+						segment = entry.segment;
+						in = new RandomAccessFile(getSegmentFile(segment), "r");
+					}
+
+					byte[] record = new byte[entry.length];
+					in.seek(entry.offset);
+					in.readFully(record);
+
+					offsets[i] = out.size();
+					out.write(record);
+				}
+			}finally
+			{
+				if(in != null) in.close();
+			}
+
+			out.flush();
+			fileOut.getFD().sync();
+		}catch(IOException e)
+		{
+			compactedFile.delete();
+			throw e;
+		}
+
+		synchronized(this)
+		{
+			//The compacted segment is not in the manifest, so it is deleted when the log is opened again.
+			checkOpen();
+
+			//Point every entry that has not changed while copying at its new record.
+			for(int i = 0;i < copies.size();i++)
+			{
+				Entry copied = copies.get(i);
+				Entry current = entries.get(paths.get(i));
+				if(current != null && current.segment == copied.segment && current.offset == copied.offset)
+				{
+					current.segment = compactedSegment;
+					current.offset = offsets[i];
+				}
+			}
+
+			//The compacted segment replaces every segment written before it.
+			ArrayList<Integer> sealed = new ArrayList<Integer>();
+			ArrayList<Integer> remaining = new ArrayList<Integer>();
+			remaining.add(compactedSegment);
+			for(int segment : segments)
+			{
+				if(segment < compactedSegment) sealed.add(segment);
+				else remaining.add(segment);
+			}
+			segments = remaining;
+			writeManifest();
+
+			for(int segment : sealed)
+			{
+				getSegmentFile(segment).delete();
+			}
+
+			activeOut.flush();
+			long totalBytes = 0;
+			for(int segment : segments)
+			{
+				totalBytes += getSegmentFile(segment).length() - SEGMENT_HEADER_LENGTH;
+			}
+			deadBytes = totalBytes - liveBytes;
+		}
+	}
+
+	/**
+	 * Writes any buffered records to disk and closes the log.
+	 */
+	synchronized void close()
+	throws IOException
+	{
+		closeSegment();
+	}
+
+	/**
+	 * Replays the segments listed in the manifest.
+	 *
+	 * @return false if there is no usable manifest or a segment has a
+	 * different format, true if the log was replayed.
+	 */
+	private boolean replay()
+	throws IOException
+	{
+		File manifest = new File(directory, MANIFEST_NAME);
+		if(!manifest.exists()) return false;
+
+		ArrayList<Integer> listed = new ArrayList<Integer>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest))))
+		{
+			if(in.readInt() != MANIFEST_MAGIC || in.readInt() != VERSION) return false;
+			int count = in.readInt();
+			for(int i = 0;i < count;i++)
+			{
+				listed.add(in.readInt());
+			}
+		}catch(IOException e)
+		{
+			return false;
+		}
+		if(listed.isEmpty()) return false;
+
+		for(int segment : listed)
+		{
+			File file = getSegmentFile(segment);
+			if(!file.exists()) return false;
+
+			long end = replaySegment(segment);
+			if(end < 0) return false;
+
+			if(end < file.length())
+			{
+				//A record was only partly written when the log was last closed.
+				try(RandomAccessFile out = new RandomAccessFile(file, "rw"))
+				{
+					out.setLength(end);
+				}
+			}
+			segments.add(segment);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replays the records of a single segment, up to the first record that is
+	 * incomplete, fails its checksum or cannot be decoded.
+	 *
+	 * @return the offset after the last good record, or -1 if the segment was
+	 * written by a different version of the log.
+	 */
+	private long replaySegment(int segment)
+	throws IOException
+	{
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(segment)), 65536)))
+		{
+			try
+			{
+				if(in.readInt() != SEGMENT_MAGIC || in.readInt() != VERSION) return -1;
+			}catch(EOFException e)
+			{
+				return -1;
+			}
+
+			long offset = SEGMENT_HEADER_LENGTH;
+			while(true)
+			{
+				byte type;
+				byte[] body;
+				try
+				{
+					type = in.readByte();
+					int length = in.readInt();
+					int checksum = in.readInt();
+					if(length < 0 || length > SEGMENT_SIZE) return offset;
+					body = new byte[length];
+					in.readFully(body);
+					if(checksum(type, body, 0) != checksum) return offset;
+				}catch(EOFException e)
+				{
+					return offset;
+				}
+
+				int recordLength = RECORD_HEADER_LENGTH + body.length;
+				DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+				try
+				{
+					if(type == ADD)
+					{
+						long fileLength = bodyIn.readLong();
+						long fileModified = bodyIn.readLong();
+						DataFile dataFile = DataFile.read(bodyIn);
+						put(dataFile, new Entry(segment, offset, recordLength, fileLength, fileModified));
+					}else if(type == REMOVE)
+					{
+						String path = bodyIn.readUTF();
+						deadBytes += recordLength;
+						release(entries.remove(path));
+						removeInterval(path);
+					}else
+					{
+						return offset;
+					}
+				}catch(IOException | RuntimeException e)
+				{
+					//The checksum matched a record this version cannot decode.
+					return offset;
+				}
+
+				offset += recordLength;
+			}
+		}
+	}
+
+	/**
+	 * Fills in the length and the checksum of the body of the record.
+	 */
+	private static byte[] toRecord(ByteArrayOutputStream bytes)
+	{
+		byte[] record = bytes.toByteArray();
+		int length = record.length - RECORD_HEADER_LENGTH;
+		int checksum = checksum(record[0], record, RECORD_HEADER_LENGTH);
+		record[1] = (byte)(length >>> 24);
+		record[2] = (byte)(length >>> 16);
+		record[3] = (byte)(length >>> 8);
+		record[4] = (byte)length;
+		record[5] = (byte)(checksum >>> 24);
+		record[6] = (byte)(checksum >>> 16);
+		record[7] = (byte)(checksum >>> 8);
+		record[8] = (byte)checksum;
+		return record;
+	}
+
+	/**
+	 * @return the CRC32 of the type of a record and its body, which starts at
+	 * the given offset of the bytes.
+	 */
+	private static int checksum(byte type, byte[] bytes, int bodyStart)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(bytes, bodyStart, bytes.length - bodyStart);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Makes the entry the current one for the data file, replacing any
+	 * earlier entry with the same path.
+	 */
+	private void put(DataFile dataFile, Entry entry)
+	{
+		release(entries.put(dataFile.getFile().getPath(), entry));
+		DataFile replaced = intervals.get(dataFile.getFile().getPath());
+		intervals.add(dataFile);
+		if(replaced != null) days.remove(replaced, intervals);
+		days.add(dataFile);
+		liveBytes += entry.length;
+		monitors.add(new MonitorInfo(dataFile));
+	}
+
+	/**
+	 * Removes the data file with the given path from the interval index, and
+	 * the days only it covered from the day bitmaps.
+	 */
+	private void removeInterval(String path)
+	{
+		DataFile removed = intervals.get(path);
+		intervals.remove(path);
+		if(removed != null) days.remove(removed, intervals);
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new segment first
+	 * if the active one is full.
+	 *
+	 * @return the offset of the record in the active segment.
+	 */
+	private long append(byte[] record)
+	throws IOException
+	{
+		checkOpen();
+		if(activeLength >= SEGMENT_SIZE)
+		{
+			closeSegment();
+			openSegment(activeSegment + 1);
+		}
+
+		long offset = activeLength;
+		activeOut.write(record);
+		activeLength += record.length;
+		return offset;
+	}
+
+	/**
+	 * Makes the given segment the active one, writing its header if it is new,
+	 * and lists it in the manifest.
+	 */
+	private void openSegment(int segment)
+	throws IOException
+	{
+		File file = getSegmentFile(segment);
+		boolean created = file.length() == 0;
+		activeFile = new FileOutputStream(file, true);
+		activeOut = new DataOutputStream(new BufferedOutputStream(activeFile, 65536));
+		if(created)
+		{
+			activeOut.writeInt(SEGMENT_MAGIC);
+			activeOut.writeInt(VERSION);
+			activeOut.flush();
+		}
+		activeSegment = segment;
+		activeLength = file.length();
+
+		segments.add(segment);
+		writeManifest();
+	}
+
+	/**
+	 * @throws IOException if the log has been closed.
+	 */
+	private void checkOpen()
+	throws IOException
+	{
+		if(activeOut == null) throw new IOException("The index log is closed: " + directory);
+	}
+
+	/**
+	 * Writes any buffered records of the active segment to disk and closes it.
+	 */
+	private void closeSegment()
+	throws IOException
+	{
+		if(activeOut != null)
+		{
+			activeOut.flush();
+			activeFile.getFD().sync();
+			activeOut.close();
+			activeOut = null;
+			activeFile = null;
+		}
+	}
+
+	/**
+	 * Writes the manifest through a temporary file, so a crash leaves either
+	 * the old manifest or the new one.
+	 */
+	private void writeManifest()
+	throws IOException
+	{
+		File manifest = new File(directory, MANIFEST_NAME);
+		File temp = new File(directory, MANIFEST_NAME + ".temp");
+		try(FileOutputStream fileOut = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut)))
+		{
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(segments.size());
+			for(int segment : segments)
+			{
+				out.writeInt(segment);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+
+		if(!temp.renameTo(manifest))
+		{
+			manifest.delete();
+			if(!temp.renameTo(manifest)) throw new IOException("Cannot replace index manifest: " + manifest);
+		}
+	}
+
+	private File getSegmentFile(int segment)
+	{
+		return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_EXTENSION));
+	}
+
+	/**
+	 * Counts the record of a replaced or removed entry as dead.
+	 */
+	private void release(Entry entry)
+	{
+		if(entry == null) return;
+
+		liveBytes -= entry.length;
+		deadBytes += entry.length;
+	}
+}
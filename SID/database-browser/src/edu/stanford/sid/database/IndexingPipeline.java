@@ -0,0 +1,233 @@
+package edu.stanford.sid.database;
+
+import edu.stanford.sid.DataFile;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * The IndexingPipeline indexes the files found by the DataDirectoryWatcher in
+ * three stages.  Discovery hands each file to add, which queues it to be parsed
+ * on a bounded ForkJoinPool, so files are parsed in parallel while the
+ * directories are still being walked.  The parsed files are then inserted into
+ * the index in batches, in the order they were discovered, by the thread that
+ * called add or finish.<p>
+ *
+ * At most MAX_QUEUED_FILES files per worker are parsed or waiting to be
+ * inserted at a time, so discovering a large archive does not hold all of its
+ * data files in memory.
+ */
+class IndexingPipeline
+{
+	/**
+	 * A data file parsed by the pipeline, with the length and modification
+	 * time the file had when it was parsed.
+	 */
+	static class ParsedFile
+	{
+		final DataFile dataFile;
+		final long length;
+		final long lastModified;
+
+		ParsedFile(DataFile dataFile, long length, long lastModified)
+		{
+			this.dataFile = dataFile;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * The work done by the parse and insert stages.
+	 */
+	interface Stages
+	{
+		/**
+		 * Parses a file.  This is called on the worker threads, so it must be
+		 * safe to call concurrently.
+		 *
+		 * @return the parsed file, or null if the file does not need to be
+		 * indexed.
+		 */
+		public ParsedFile parse(File file) throws Exception;
+
+		/**
+		 * Inserts a batch of parsed files into the index.
+		 */
+		public void insert(List<ParsedFile> batch) throws IOException;
+
+		/**
+		 * Called for a file that could not be parsed or inserted.
+		 */
+		public void failed(File file, Exception e);
+	}
+
+	/**
+	 * The number of parsed files inserted into the index at a time.
+	 */
+	static final int BATCH_SIZE = 256;
+
+	/**
+	 * The number of files per worker that may be queued in the pipeline.
+	 */
+	private static final int MAX_QUEUED_FILES = 64;
+
+	/**
+	 * A file queued in the pipeline, and the task parsing it.
+	 */
+	private static class QueuedFile
+	{
+		private File file;
+		private Future<ParsedFile> parsed;
+	}
+
+	private ForkJoinPool pool;
+	private Stages stages;
+	private int maxQueued;
+
+	private ArrayDeque<QueuedFile> queue = new ArrayDeque<QueuedFile>();
+
+	/**
+	 * Creates a pipeline that parses files on the given number of worker
+	 * threads.  The workers run at minimum priority, so that requests can be
+	 * processed while the index is updated.
+	 *
+	 * @param workers the number of worker threads, or 0 or less for one per
+	 * available processor.
+	 * @param stages the work done by the parse and insert stages.
+	 */
+	IndexingPipeline(int workers, Stages stages)
+	{
+		if(workers <= 0)
+		{
+			workers = Runtime.getRuntime().availableProcessors();
+		}
+
+		this.stages = stages;
+		this.maxQueued = workers * MAX_QUEUED_FILES;
+		this.pool = new ForkJoinPool(workers, new ForkJoinPool.ForkJoinWorkerThreadFactory()
+		{
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+			{
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("index-worker-" + thread.getPoolIndex());
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		}, null, false);
+	}
+
+	/**
+	 * @return the number of worker threads parsing files.
+	 */
+	int getWorkers()
+	{
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Queues a discovered file to be parsed.  If the pipeline is full, the
+	 * oldest batch of parsed files is inserted first.
+	 *
+	 * @param file the file to index.
+	 */
+	void add(final File file)
+	{
+		if(queue.size() >= maxQueued)
+		{
+			insertBatch();
+		}
+
+		QueuedFile queued = new QueuedFile();
+		queued.file = file;
+		queued.parsed = pool.submit(new Callable<ParsedFile>()
+		{
+			public ParsedFile call()
+			throws Exception
+			{
+				return stages.parse(file);
+			}
+		});
+		queue.add(queued);
+	}
+
+	/**
+	 * Waits for every queued file to be parsed, and inserts them all.
+	 *
+	 * @return true if any file was inserted.
+	 */
+	boolean finish()
+	{
+		boolean inserted = false;
+		while(!queue.isEmpty())
+		{
+			inserted |= insertBatch();
+		}
+		return inserted;
+	}
+
+	/**
+	 * Stops the worker threads.  Files still being parsed are dropped.
+	 */
+	void shutdown()
+	{
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Waits for up to BATCH_SIZE of the oldest queued files to be parsed, and
+	 * inserts them.
+	 *
+	 * @return true if any file was inserted.
+	 */
+	private boolean insertBatch()
+	{
+		ArrayList<ParsedFile> batch = new ArrayList<ParsedFile>(BATCH_SIZE);
+		ArrayList<File> files = new ArrayList<File>(BATCH_SIZE);
+
+		while(batch.size() < BATCH_SIZE && !queue.isEmpty())
+		{
+			QueuedFile queued = queue.poll();
+			try
+			{
+				ParsedFile parsed = queued.parsed.get();
+				if(parsed != null)
+				{
+					batch.add(parsed);
+					files.add(queued.file);
+				}
+			}catch(ExecutionException e)
+			{
+				stages.failed(queued.file, e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+			}catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				stages.failed(queued.file, e);
+			}
+		}
+
+		if(batch.isEmpty()) return false;
+
+		try
+		{
+			stages.insert(batch);
+		}catch(IOException e)
+		{
+			for(File file : files)
+			{
+				stages.failed(file, e);
+			}
+			return false;
+		}
+		return true;
+	}
+}
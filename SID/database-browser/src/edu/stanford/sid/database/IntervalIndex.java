@@ -0,0 +1,229 @@
+package edu.stanford.sid.database;
+
+import edu.stanford.sid.DataFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of data files by the time range they cover.<p>
+ *
+ * Files are kept in a TreeMap by start time, and the index remembers the
+ * longest time range of any file in it.  A file that overlaps a query must
+ * start after the query start minus that duration, and before the query end,
+ * so a query only looks at the files starting in that window.  Data files
+ * usually cover a day, but a few cover much longer, and one such file would
+ * widen the window of every query, so files longer than LONG_INTERVAL_MILLIS
+ * are kept in a separate list that every query checks.<p>
+ *
+ * Queries take a read lock and changes take a write lock, so queries run
+ * concurrently with each other.
+ */
+class IntervalIndex
+{
+	/**
+	 * Files covering more than this are kept in the list of long files.
+	 */
+	static final long LONG_INTERVAL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Data files by start time.  Most start times have a single file, which is
+	 * stored directly, otherwise the value is an ArrayList of the files.
+	 */
+	private TreeMap<Long, Object> byStart = new TreeMap<Long, Object>();
+
+	/**
+	 * The files longer than LONG_INTERVAL_MILLIS.
+	 */
+	private ArrayList<DataFile> longFiles = new ArrayList<DataFile>();
+
+	/**
+	 * Every file in the index by path, to find the file a path replaces.
+	 */
+	private Map<String, DataFile> byPath = new HashMap<String, DataFile>();
+
+	/**
+	 * The longest time range covered by a file in byStart.
+	 */
+	private long maxDuration = 0;
+
+	/**
+	 * Adds a data file, replacing any file with the same path.
+	 */
+	void add(DataFile dataFile)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			removeLocked(dataFile.getFile().getPath());
+			byPath.put(dataFile.getFile().getPath(), dataFile);
+
+			long duration = dataFile.getEndMillis() - dataFile.getStartMillis();
+			if(duration > LONG_INTERVAL_MILLIS)
+			{
+				longFiles.add(dataFile);
+				return;
+			}
+
+			maxDuration = Math.max(maxDuration, duration);
+			Object existing = byStart.get(dataFile.getStartMillis());
+			if(existing == null)
+			{
+				byStart.put(dataFile.getStartMillis(), dataFile);
+			}else if(existing instanceof DataFile)
+			{
+				ArrayList<DataFile> files = new ArrayList<DataFile>(2);
+				files.add((DataFile)existing);
+				files.add(dataFile);
+				byStart.put(dataFile.getStartMillis(), files);
+			}else
+			{
+				@SuppressWarnings("unchecked")
+				ArrayList<DataFile> files = (ArrayList<DataFile>)existing;
+				files.add(dataFile);
+			}
+		}finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the data file with the given path, if there is one.
+	 */
+	void remove(String path)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			removeLocked(path);
+		}finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the data file with the given path, or null if there is none.
+	 */
+	DataFile get(String path)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return byPath.get(path);
+		}finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of data files in the index.
+	 */
+	int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return byPath.size();
+		}finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the data files that start before endMillis and end after
+	 * startMillis.
+	 *
+	 * @return the data files overlapping the time range.
+	 */
+	ArrayList<DataFile> query(long startMillis, long endMillis)
+	{
+		ArrayList<DataFile> result = new ArrayList<DataFile>();
+
+		lock.readLock().lock();
+		try
+		{
+			for(Object value : window(startMillis, endMillis).values())
+			{
+				if(value instanceof DataFile)
+				{
+					addIfOverlaps((DataFile)value, startMillis, endMillis, result);
+				}else
+				{
+					@SuppressWarnings("unchecked")
+					ArrayList<DataFile> files = (ArrayList<DataFile>)value;
+					for(DataFile dataFile : files)
+					{
+						addIfOverlaps(dataFile, startMillis, endMillis, result);
+					}
+				}
+			}
+
+			for(DataFile dataFile : longFiles)
+			{
+				addIfOverlaps(dataFile, startMillis, endMillis, result);
+			}
+		}finally
+		{
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the part of byStart that can hold files overlapping the range.
+	 */
+	private NavigableMap<Long, Object> window(long startMillis, long endMillis)
+	{
+		long from = startMillis - maxDuration;
+		if(from > startMillis) from = Long.MIN_VALUE; // Overflow.
+		if(from >= endMillis) return new TreeMap<Long, Object>();
+		return byStart.subMap(from, true, endMillis, false);
+	}
+
+	private static void addIfOverlaps(DataFile dataFile, long startMillis, long endMillis, ArrayList<DataFile> result)
+	{
+		if(dataFile.getStartMillis() < endMillis && dataFile.getEndMillis() > startMillis)
+		{
+			result.add(dataFile);
+		}
+	}
+
+	private void removeLocked(String path)
+	{
+		DataFile dataFile = byPath.remove(path);
+		if(dataFile == null) return;
+
+		if(dataFile.getEndMillis() - dataFile.getStartMillis() > LONG_INTERVAL_MILLIS)
+		{
+			longFiles.remove(dataFile);
+			return;
+		}
+
+		Object existing = byStart.get(dataFile.getStartMillis());
+		if(existing == dataFile)
+		{
+			byStart.remove(dataFile.getStartMillis());
+		}else if(existing instanceof ArrayList)
+		{
+			@SuppressWarnings("unchecked")
+			ArrayList<DataFile> files = (ArrayList<DataFile>)existing;
+			files.remove(dataFile);
+			if(files.size() == 1)
+			{
+				byStart.put(dataFile.getStartMillis(), files.get(0));
+			}
+		}
+	}
+}
@@ -0,0 +1,636 @@
+package edu.stanford.sid.database;
+
+import edu.stanford.sid.*;
+import edu.stanford.sid.util.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.servlet.ServletContext;
+
+/**
+ * This class is a implementation of the DataFileIndex that queries the tables of the
+ * DRMS series directly over JDBC, instead of running show_info.
+ *
+ * Every query is a prepared statement with its values bound as parameters, run on a
+ * connection from a ConnectionPool of jdbc-pool-size connections, and cancelled if it
+ * runs longer than QUERY_TIMEOUT_SECONDS.  As show_info does,
+ * only the newest version of each record is used, and the path of a data file is
+ * made from the SUMS directory of its storage unit, its slot and its file name.
+ *
+ * The SUMS table is joined on the same connection as the series tables.  On JSOC,
+ * SUMS is usually a separate database, so its sum_main table has to be reachable
+ * from the DRMS database, for example as a foreign table or a view over a dblink,
+ * and named in jdbc-sums-table if it is not sum_main.
+ *
+ * DRMS keeps times as seconds since 1977.01.01_00:00:00_TAI, so times are converted
+ * with the leap seconds since then, both in Java for the bounds of a query and in SQL
+ * for the days with data.  The statements are plain SQL, so the index runs the same
+ * against an embedded database holding tables of the same names and columns.
+ */
+public class JdbcDataFileIndex
+extends DataFileIndex
+{
+	private static final String DEFAULT_DRIVER = "org.postgresql.Driver";
+
+	// How many connections may be open at once, unless jdbc-pool-size is set.
+	private static final int DEFAULT_POOL_SIZE = 4;
+
+	// How long a request waits for a connection.
+	private static final int CONNECTION_TIMEOUT = 30000;
+
+	// How long a query may run before the driver cancels it, so a hung query cannot hold a connection.
+	private static final int QUERY_TIMEOUT_SECONDS = CONNECTION_TIMEOUT / 1000;
+
+	// How often the generation is checked against the data series.
+	private static final int GENERATION_INTERVAL_SECONDS = 60;
+
+	// How many checks of the generation apart the records of the data series are counted.
+	private static final int GENERATION_COUNT_CHECKS = 60;
+
+	private static final long DAY_SECONDS = 24L * 60 * 60;
+
+	// 1977.01.01_00:00:00 in seconds since 1970.01.01, the epoch of DRMS times.
+	private static final long DRMS_EPOCH_SECONDS = 220924800L;
+
+	// The UTC times, in seconds since 1970.01.01, from which TAI - UTC was each of LEAP_OFFSETS.
+	private static final long[] LEAP_SECONDS = {
+		220924800L, 252460800L, 283996800L, 315532800L, 362793600L, 394329600L, 425865600L,
+		489024000L, 567993600L, 631152000L, 662688000L, 709948800L, 741484800L, 773020800L,
+		820454400L, 867715200L, 915148800L, 1136073600L, 1230768000L, 1341100800L,
+		1435708800L, 1483228800L};
+	private static final int[] LEAP_OFFSETS = {
+		16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37};
+
+	private String dataSeries = "sid_awe.sid";
+	private static final String MONITOR_SERIES = "sid_awe.monitors";
+	private static final String SITE_SERIES = "sid_awe.sites";
+	private static final String TRANSMITTER_SERIES = "sid_awe.transmitters";
+	private String sumsTable = "sum_main";
+
+	// The newest version of each record of the data series in a time range.
+	private static final String FILES_QUERY =
+		"SELECT d.monitorid, d.site, d.stationid, d.utc_starttime, d.utc_endtime, d.longitude, d.latitude, " +
+		"d.datamin, d.datamax, d.slotnum, d.sg_000_file, s.online_loc " +
+		"FROM %1$s d JOIN %2$s s ON s.ds_index = d.sunum " +
+		"WHERE d.utc_starttime < ? AND d.utc_endtime > ? AND d.recnum IN " +
+		"(SELECT MAX(recnum) FROM %1$s WHERE utc_starttime < ? AND utc_endtime > ? " +
+		"GROUP BY monitorid, site, stationid, utc_starttime)";
+
+	private static final String HAS_FILES_QUERY =
+		"SELECT recnum FROM %s WHERE utc_starttime < ? AND utc_endtime > ?";
+
+	// The first and last UTC day of each record.  The end is exclusive, so a record ending at
+	// midnight does not reach the next day, and it is not nudged by a decimal, which some
+	// databases round.
+	private static final String DAYS_QUERY =
+		"SELECT DISTINCT site, monitorid, stationid, FLOOR(%2$s / " + DAY_SECONDS + "), CEILING(%3$s / " + DAY_SECONDS + ") - 1 FROM %1$s";
+
+	// Read from the index on recnum, so it is cheap to run every GENERATION_INTERVAL_SECONDS.
+	private static final String GENERATION_QUERY = "SELECT MAX(recnum) FROM %s";
+
+	// Scans the whole data series on Postgres, so it only runs every GENERATION_COUNT_CHECKS
+	// checks, to see records that were deleted without a newer one being added.
+	private static final String COUNT_QUERY = "SELECT COUNT(*) FROM %s";
+
+	private static final String MONITORS_QUERY =
+		"SELECT m.site, m.monitorid, m.stationid, m.longitude, m.latitude, s.country, s.website " +
+		"FROM " + MONITOR_SERIES + " m LEFT JOIN " + SITE_SERIES + " s ON s.site = m.site AND s.recnum IN " +
+		"(SELECT MAX(recnum) FROM " + SITE_SERIES + " GROUP BY site) " +
+		"WHERE m.dataavailable = ? AND m.recnum IN " +
+		"(SELECT MAX(recnum) FROM " + MONITOR_SERIES + " GROUP BY site, monitorid)";
+
+	private static final String TRANSMITTER_QUERY =
+		"SELECT stationid, latitude, longitude FROM " + TRANSMITTER_SERIES + " WHERE stationid = ? ORDER BY recnum DESC";
+
+	private final ConnectionPool pool;
+
+	private volatile long generation = 0;
+	private long lastMaxRecnum = -1;
+	private long lastCount = -1;
+	private int generationChecks = 0;
+	private boolean closed = false;
+
+	/**
+	 * The days each monitor has data for, as of a generation.
+	 */
+	private static class DayBitmaps
+	{
+		private final long generation;
+		private final HashMap<MonitorInfo, BitSet> byMonitor = new HashMap<MonitorInfo, BitSet>();
+		private final BitSet allMonitors = new BitSet();
+
+		private DayBitmaps(long generation)
+		{
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * The days with data of the current generation, loaded by the first request after
+	 * the generation moves.  Replaced as a whole, so reads never take a lock.
+	 */
+	private volatile DayBitmaps dayBitmaps;
+	private final Object dayBitmapsLock = new Object();
+
+	/**
+	 * Checks the generation in the background.
+	 */
+	private final java.util.Timer generationTimer = new java.util.Timer("jdbc-index-generation", true);
+
+	/**
+	 * Creates a new JdbcDataFileIndex, pass the ServletContext of the calling servlet.
+	 *
+	 * The context must have jdbc-url, and may have jdbc-driver, jdbc-user, jdbc-password,
+	 * jdbc-pool-size, jdbc-sums-table and data-series-id.
+	 */
+	public JdbcDataFileIndex(ServletContext context)
+	{
+		String url = context.getInitParameter("jdbc-url");
+		if(url == null)
+		{
+			throw new RuntimeException("When using the jdbc database you must include a jdbc-url.");
+		}
+
+		String driver = context.getInitParameter("jdbc-driver") == null ? DEFAULT_DRIVER : context.getInitParameter("jdbc-driver");
+		try
+		{
+			Class.forName(driver);
+		}catch(ClassNotFoundException e)
+		{
+			throw new RuntimeException("Cannot load the jdbc driver " + driver, e);
+		}
+
+		if(context.getInitParameter("data-series-id") != null)
+		{
+			dataSeries = context.getInitParameter("data-series-id");
+		}
+
+		if(context.getInitParameter("jdbc-sums-table") != null)
+		{
+			sumsTable = context.getInitParameter("jdbc-sums-table");
+		}
+
+		pool = new ConnectionPool(url, context.getInitParameter("jdbc-user"), context.getInitParameter("jdbc-password"),
+				context.getInitParameter("jdbc-pool-size") == null ? DEFAULT_POOL_SIZE :
+						Integer.parseInt(context.getInitParameter("jdbc-pool-size")));
+
+		generationTimer.schedule(new java.util.TimerTask()
+		{
+			public void run()
+			{
+				checkGeneration();
+			}
+		}, GENERATION_INTERVAL_SECONDS * 1000L, GENERATION_INTERVAL_SECONDS * 1000L);
+	}
+
+	/**
+	 * @return the pool of connections to the database, for its queue depth and counts.
+	 */
+	public ConnectionPool getConnectionPool()
+	{
+		return pool;
+	}
+
+	public StationLatitudeLongitude getStationLatitudeLongitude(String id)
+	{
+		if(id == null) return null;
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try(PreparedStatement statement = prepare(lease.getConnection(), TRANSMITTER_QUERY))
+			{
+				statement.setMaxRows(1);
+				statement.setString(1, id);
+
+				try(ResultSet results = statement.executeQuery())
+				{
+					if(!results.next()) return null;
+					return new StationLatitudeLongitude(results.getString(1), results.getDouble(2), results.getDouble(3));
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}catch(SQLException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * This method returns all the data files within the given time range.
+	 */
+	public DataFileList getFilesFromTimeRange(Calendar startTime, Calendar endTime)
+	{
+		//Check if we are requested for more than a week worth of data.  This could take up
+		//more memory than is available.
+		Calendar timeTest = (Calendar)startTime.clone();
+		timeTest.add(Calendar.DATE, 7);
+
+		if(timeTest.before(endTime))
+		{
+			throw new RuntimeException("Time range cannot be greater than one week.");
+		}
+
+		double start = toDrmsTime(startTime.getTimeInMillis());
+		double end = toDrmsTime(endTime.getTimeInMillis());
+
+		ArrayList<DataFile> files = new ArrayList<DataFile>();
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try(PreparedStatement statement = prepare(lease.getConnection(), String.format(FILES_QUERY, dataSeries, sumsTable)))
+			{
+				statement.setDouble(1, end);
+				statement.setDouble(2, start);
+				statement.setDouble(3, end);
+				statement.setDouble(4, start);
+
+				try(ResultSet results = statement.executeQuery())
+				{
+					while(results.next())
+					{
+						try
+						{
+							String path = String.format("%s/S%05d/%s", results.getString(12), results.getInt(10), results.getString(11));
+
+							Calendar fileStartTime = CalendarUtil.getCalendar();
+							Calendar fileEndTime = CalendarUtil.getCalendar();
+							fileStartTime.setTimeInMillis(fromDrmsTime(results.getDouble(4)));
+							fileEndTime.setTimeInMillis(fromDrmsTime(results.getDouble(5)));
+
+							files.add(new DataFile(path, results.getString(2), results.getString(1), results.getString(3),
+									fileStartTime, fileEndTime, trimDegrees(results.getString(6)), trimDegrees(results.getString(7)),
+									results.getString(8), results.getString(9)));
+						}catch(DataFileFormatException e){}
+					}
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}catch(SQLException e)
+		{
+			e.printStackTrace();
+		}
+
+		return new DataFileList(files);
+	}
+
+	/**
+	 * Retrieve unique monitor info from the database.
+	 *
+	 * This method returns a collection with exactly one of each unique Site Monitor Station ID set,
+	 * with the country and website of its site.
+	 */
+	public Collection<MonitorInfo> getMonitors(Comparator<MonitorInfo> comparator)
+	{
+		ArrayList<MonitorInfo> monitors = new ArrayList<MonitorInfo>();
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try(PreparedStatement statement = prepare(lease.getConnection(), MONITORS_QUERY))
+			{
+				statement.setInt(1, 1);
+
+				try(ResultSet results = statement.executeQuery())
+				{
+					while(results.next())
+					{
+						String location = results.getString(6) == null ? "" : results.getString(6);
+						String website = results.getString(7) == null ? "" : results.getString(7);
+
+						for(String station : results.getString(3).split(","))
+						{
+							monitors.add(new MonitorInfo(results.getString(1), results.getString(2), station,
+									results.getString(4), results.getString(5), location, website));
+						}
+					}
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}catch(SQLException e)
+		{
+			e.printStackTrace();
+		}
+
+		if(comparator != null) Collections.sort(monitors, comparator);
+		return monitors;
+	}
+
+	/**
+	 * This provides all the days that the given monitors have data for.
+	 *
+	 * The days of every monitor are loaded with one query the first time they are
+	 * asked for in a generation, and kept as a bitmap per monitor, so later calls
+	 * only OR a few bitmaps until the data series changes.
+	 */
+	public Collection<Calendar> getDaysWithData(Collection<MonitorInfo> monitors)
+	{
+		DayBitmaps current = getDayBitmaps();
+
+		if(monitors == null || monitors.isEmpty())
+		{
+			return DayBitmapIndex.toCalendars(current.allMonitors, 0, Long.MAX_VALUE);
+		}
+
+		BitSet days = new BitSet();
+		for(MonitorInfo monitor : monitors)
+		{
+			BitSet monitorDays = current.byMonitor.get(monitor);
+			if(monitorDays != null) days.or(monitorDays);
+		}
+		return DayBitmapIndex.toCalendars(days, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return the day bitmaps of the current generation, loading them if they are
+	 * of an older one.  If they cannot be loaded the older ones are kept.
+	 */
+	private DayBitmaps getDayBitmaps()
+	{
+		DayBitmaps current = dayBitmaps;
+		if(current != null && current.generation == generation) return current;
+
+		synchronized(dayBitmapsLock)
+		{
+			current = dayBitmaps;
+			if(current != null && current.generation == generation) return current;
+
+			try
+			{
+				current = loadDayBitmaps(generation);
+				dayBitmaps = current;
+			}catch(SQLException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return current == null ? new DayBitmaps(-1) : current;
+	}
+
+	private DayBitmaps loadDayBitmaps(long generation)
+	throws SQLException
+	{
+		DayBitmaps loaded = new DayBitmaps(generation);
+		long today = DayBitmapIndex.getDay(System.currentTimeMillis());
+
+		String query = String.format(DAYS_QUERY, dataSeries, toUtcSeconds("utc_starttime"), toUtcSeconds("utc_endtime"));
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try(PreparedStatement statement = prepare(lease.getConnection(), query);
+				ResultSet results = statement.executeQuery())
+			{
+				while(results.next())
+				{
+					//Days after today come from bad end times.
+					long first = Math.max(0, results.getLong(4));
+					long last = Math.min(today, results.getLong(5));
+					if(first > last) continue;
+
+					MonitorInfo monitor = new MonitorInfo(results.getString(1), results.getString(2), results.getString(3), null, null);
+					BitSet days = loaded.byMonitor.get(monitor);
+					if(days == null)
+					{
+						days = new BitSet();
+						loaded.byMonitor.put(monitor, days);
+					}
+					days.set((int)first, (int)last + 1);
+					loaded.allMonitors.set((int)first, (int)last + 1);
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * This method returs true if and only if there is one or more data files of the given monitor
+	 * in the specified time range.  If monitors is null or empty, any monitor will do.
+	 */
+	public boolean hasFilesInRange(Calendar startTime, Calendar endTime, Collection<MonitorInfo> monitors)
+	{
+		//Check if we are requested for more than a weeks worth of data.  This could take up
+		//more memory than is available.
+		Calendar timeTest = (Calendar)startTime.clone();
+		timeTest.add(Calendar.DATE, 7);
+		if(timeTest.before(endTime))
+		{
+			throw new RuntimeException("Time range cannot be greater than one week.");
+		}
+
+		String query = String.format(HAS_FILES_QUERY, dataSeries) + monitorFilter(" AND ", monitors);
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try(PreparedStatement statement = prepare(lease.getConnection(), query))
+			{
+				statement.setMaxRows(1);
+				statement.setDouble(1, toDrmsTime(endTime.getTimeInMillis()));
+				statement.setDouble(2, toDrmsTime(startTime.getTimeInMillis()));
+				bindMonitors(statement, 3, monitors);
+
+				try(ResultSet results = statement.executeQuery())
+				{
+					return results.next();
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}catch(SQLException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public boolean isUpdateComplete()
+	{
+		//Every query goes to the database, so there is nothing to wait for.
+		return true;
+	}
+
+	/**
+	 * The generation moves on each time the highest recnum of the data series is seen
+	 * to change, checked every GENERATION_INTERVAL_SECONDS, or its number of records,
+	 * checked every GENERATION_COUNT_CHECKS checks.  It is 0 until the first check.
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Moves the generation on if the data series changed since it was last checked.
+	 */
+	synchronized void checkGeneration()
+	{
+		if(closed) return;
+
+		try(ConnectionPool.Lease lease = pool.lease(CONNECTION_TIMEOUT))
+		{
+			try
+			{
+				long maxRecnum = queryLong(lease.getConnection(), GENERATION_QUERY);
+				long count = generationChecks % GENERATION_COUNT_CHECKS == 0 ?
+						queryLong(lease.getConnection(), COUNT_QUERY) : lastCount;
+				generationChecks++;
+
+				if(maxRecnum != lastMaxRecnum || count != lastCount)
+				{
+					lastMaxRecnum = maxRecnum;
+					lastCount = count;
+					generation++;
+				}
+			}catch(SQLException e)
+			{
+				lease.fail();
+				throw e;
+			}
+		}catch(SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the single number a query of the data series returns.
+	 */
+	private long queryLong(Connection connection, String query)
+	throws SQLException
+	{
+		try(PreparedStatement statement = prepare(connection, String.format(query, dataSeries));
+			ResultSet results = statement.executeQuery())
+		{
+			return results.next() ? results.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Prepares a statement that the driver cancels after QUERY_TIMEOUT_SECONDS.
+	 */
+	private static PreparedStatement prepare(Connection connection, String sql)
+	throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try
+		{
+			statement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+		}catch(SQLException e)
+		{
+			statement.close();
+			throw e;
+		}
+		return statement;
+	}
+
+	/**
+	 * @return a condition matching the records of any of the monitors, with a parameter
+	 * for each of their site, monitor and station, or nothing if monitors is null or empty.
+	 */
+	private static String monitorFilter(String conjunction, Collection<MonitorInfo> monitors)
+	{
+		if(monitors == null || monitors.isEmpty()) return "";
+
+		StringBuilder filter = new StringBuilder(conjunction).append("(");
+		for(int i = 0;i < monitors.size();i++)
+		{
+			if(i > 0) filter.append(" OR ");
+			filter.append("(site = ? AND monitorid = ? AND stationid = ?)");
+		}
+		return filter.append(")").toString();
+	}
+
+	/**
+	 * Binds the parameters of monitorFilter, starting with the given parameter.
+	 */
+	private static void bindMonitors(PreparedStatement statement, int parameter, Collection<MonitorInfo> monitors)
+	throws SQLException
+	{
+		if(monitors == null) return;
+
+		for(MonitorInfo monitor : monitors)
+		{
+			statement.setString(parameter++, monitor.getSite());
+			statement.setString(parameter++, monitor.getMonitor());
+			statement.setString(parameter++, monitor.getStation());
+		}
+	}
+
+	private static String trimDegrees(String angle)
+	{
+		return angle == null ? null : angle.replace("degrees", "").trim();
+	}
+
+	/**
+	 * @return the DRMS time of the given UTC time.
+	 */
+	static double toDrmsTime(long millis)
+	{
+		long seconds = Math.floorDiv(millis, 1000L);
+		int offset = LEAP_OFFSETS[0];
+		for(int i = 0;i < LEAP_SECONDS.length && seconds >= LEAP_SECONDS[i];i++)
+		{
+			offset = LEAP_OFFSETS[i];
+		}
+		return millis / 1000.0 + offset - DRMS_EPOCH_SECONDS;
+	}
+
+	/**
+	 * @return the UTC time, in milliseconds, of the given DRMS time.
+	 */
+	static long fromDrmsTime(double drmsTime)
+	{
+		int offset = LEAP_OFFSETS[0];
+		for(int i = 0;i < LEAP_SECONDS.length && drmsTime >= LEAP_SECONDS[i] + LEAP_OFFSETS[i] - DRMS_EPOCH_SECONDS;i++)
+		{
+			offset = LEAP_OFFSETS[i];
+		}
+		return Math.round((drmsTime - offset + DRMS_EPOCH_SECONDS) * 1000);
+	}
+
+	/**
+	 * @return an SQL expression of the UTC seconds since 1970.01.01 of a DRMS time column.
+	 */
+	private static String toUtcSeconds(String column)
+	{
+		StringBuilder expression = new StringBuilder("(").append(column).append(" + ").append(DRMS_EPOCH_SECONDS).append(" - CASE");
+		for(int i = LEAP_SECONDS.length - 1;i > 0;i--)
+		{
+			expression.append(" WHEN ").append(column).append(" >= ").append(LEAP_SECONDS[i] + LEAP_OFFSETS[i] - DRMS_EPOCH_SECONDS)
+					.append(" THEN ").append(LEAP_OFFSETS[i]);
+		}
+		return expression.append(" ELSE ").append(LEAP_OFFSETS[0]).append(" END)").toString();
+	}
+
+	public synchronized void close()
+	{
+		//Synchronized so a check of the generation already running finishes first.
+		closed = true;
+		generationTimer.cancel();
+		pool.close();
+	}
+}
@@ -3,102 +3,216 @@ package edu.stanford.sid.database;
 import edu.stanford.sid.*;
 import edu.stanford.sid.util.CalendarUtil;
 
+import java.io.IOException;
+
 import java.text.DateFormat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.Scanner;
 import java.util.HashMap;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletContext;
 
 import edu.stanford.sid.util.*;
 
-import net.sf.ehcache.*;
-
 /**
  * This class is a implementation of the DataFileIndex that is backed by the show_info interface to DRMS.
  * 
+ * The index keeps a local mirror of the DRMS metadata, and answers every query from it
+ * without running show_info.  The records of the data series are pulled once when the
+ * index is created, then every MIRROR_INTERVAL_SECONDS only the records with a recnum
+ * above the highest one already pulled are.  DRMS does not say when a record is deleted,
+ * so the whole series is pulled again every MIRROR_RELOAD_MILLIS.  The transmitter,
+ * monitor and site tables are small, and are loaded whole every TABLE_REFRESH_SECONDS.
+ * 
+ * The mirror is only kept in memory, so until the first pull of the whole series has
+ * finished, after every restart, queries of the data series are answered by show_info
+ * queries narrowed to their time range or monitors, as they were before the mirror.  The
+ * first pull may take up to show_info-mirror-timeout seconds.
+ * 
+ * show_info is run through a ProcessExecutor, which runs at most show_info-concurrency
+ * processes at once and kills any that run past their deadline.
+ * 
  * @author Scott Winegarden scottw@sun.stanford.edu
  *
  */
 public class ShowInfoDataFileIndex
 extends DataFileIndex
 {
-	//Date format used by the time-convert program for converting between TAI and UTC (used by showinfo)
-	private static final String TIME_CONVERT_DATE_STRING = "yyyy.MM.dd_HH:mm:ss.SSS_Z";
+	//Date format used by show_info for times.
 	private static final String SHOW_INFO_DATE_STRING = "yyyy.MM.dd_HH:mm:ss_Z";
+	
+	//Date format of the times in show_info queries.
+	private static final String TIME_CONVERT_DATE_STRING = "yyyy.MM.dd_HH:mm:ss.SSS_Z";
 		
 
 	private static String DATA_SERIES_ID = "sid_awe.sid";
 	private static String MONITOR_SERIES_ID = "sid_awe.monitors";
 	private static String SITE_SERIES_ID = "sid_awe.sites";
+	private static String TRANSMITTER_SERIES_ID = "sid_awe.transmitters";
 	
 	private static final String SHOW_INFO_PARAMETER_1 = "-a";
 	private static final String SHOW_INFO_PARAMETER_2 = "-P";
 	private static final String SHOW_INFO_PARAMETER_3 = "seg=file_seg";
-	private static final String SHOW_INFO_DATA_FORMAT_STRING = DATA_SERIES_ID + "[? UTC_EndTime > $(%s) and UTC_StartTime < $(%s) ?]";
+	private static final String SHOW_INFO_RECNUM_PARAMETER = "-r";
+	private static final String SHOW_INFO_MIRROR_FORMAT_STRING = "%s[? recnum > %d ?]";
+	private static final String SHOW_INFO_RANGE_FORMAT_STRING = "%s[? UTC_EndTime > $(%s) and UTC_StartTime < $(%s) ?]";
+	private static final String SHOW_INFO_DAYS_FORMAT_STRING = "%s[? recnum in (select distinct on (UTC_StartTime, UTC_EndTime) recnum from %s%s) ?]";
 	
 	private static final int DEFAULT_SHOW_INFO_TIMEOUT = 30000;
+	
+	// How many show_info processes may run at once, unless show_info-concurrency is set.
+	private static final int DEFAULT_SHOW_INFO_CONCURRENCY = 4;
+	
+	// How long a pull of the data series may take, unless show_info-mirror-timeout is set.
+	// The first one pulls every record.
+	private static final int DEFAULT_MIRROR_TIMEOUT_SECONDS = 10 * 60;
+	
+	// How often new records of the data series are pulled.
+	private static final int MIRROR_INTERVAL_SECONDS = 60;
+	
+	// How often the whole data series is pulled again, to drop deleted records.
+	private static final long MIRROR_RELOAD_MILLIS = 24L * 60 * 60 * 1000;
+	
+	// How long requests for recent data are collected before one pull is started for all of them.
+	private static final int PULL_BATCH_MILLIS = 20;
+	
+	// How old the last pull may be before a request for data after it starts another.
+	private static final int PULL_FRESHNESS_MILLIS = 10 * 1000;
+	
+	// How often the transmitter, monitor and site tables are loaded again.
+	private static final int TABLE_REFRESH_SECONDS = 60 * 10;
+	
+	// How old the monitor list may be served, unless monitor-max-staleness is set.
+	private static final int DEFAULT_MONITOR_MAX_STALENESS_SECONDS = 60 * 60;
 
 	
 	private String showInfoExecutable;
 	
-	// These are the Ehcache caches used to provide performance improvements.
-	private Cache transmitterCache;
-	private Cache monitorCache;
-	private Cache dataFileCache;
+	/**
+	 * Runs show_info, a limited number of processes at a time.
+	 */
+	private ProcessExecutor showInfoExecutor;
 	
 	/**
-	 * If this class is constructed with the first line of a ShowInfo response, it can then be
-	 * called with the key of a requested value to tell what index a split string of values that
-	 * key is located in.
+	 * How long a pull of the data series may take.
 	 */
-	private class ShowInfoLinePositions
+	private long mirrorTimeout;
+	
+	/**
+	 * The local copy of the records of the data series.
+	 */
+	private static class Replica
 	{
-		private java.util.List<String> linePositions;
-		public ShowInfoLinePositions(String headerLine)
-		{
-			//Show Info provides a like like:
-			//Frequency	Latitude	Longitude	SampleRate	StationID	TimeZone	UTC_EndTime	UTC_Offset	MonitorID	Site	UTC_StartTime
-			linePositions = java.util.Arrays.asList(headerLine.split("\\t"));
-		}
+		private IntervalIndex intervals = new IntervalIndex();
+		private DayBitmapIndex days = new DayBitmapIndex();
+		
+		/**
+		 * The current record of each monitor and start time, the prime key of the
+		 * data series.  A new version of a record has a higher recnum, and replaces
+		 * the one before.  Only the mirror task uses it.
+		 */
+		private HashMap<String, DataFile> byKey = new HashMap<String, DataFile>();
+		
+		/**
+		 * The highest recnum pulled so far.
+		 */
+		private long watermark = 0;
 		
-		int getIndexOf(String id)
+		/**
+		 * Adds a record pulled from the data series.
+		 */
+		void add(DataFile dataFile, long recnum)
 		{
-			return linePositions.indexOf(id);
+			String key = String.format("%s$%s$%s$%d", dataFile.getMonitor(), dataFile.getSite(), dataFile.getStation(), dataFile.getStartMillis());
+			String path = dataFile.getFile().getPath();
+			
+			DataFile previous = byKey.put(key, dataFile);
+			if(previous != null && !previous.getFile().getPath().equals(path))
+			{
+				intervals.remove(previous.getFile().getPath());
+				days.remove(previous, intervals);
+			}
+			
+			DataFile replaced = intervals.get(path);
+			intervals.add(dataFile);
+			if(replaced != null) days.remove(replaced, intervals);
+			days.add(dataFile);
+			
+			watermark = Math.max(watermark, recnum);
 		}
 	}
 	
 	/**
-	 * This creates all of the caches needed for performance.
+	 * The mirror queries are answered from.  A reload builds a new one and
+	 * replaces it.
 	 */
-	private void createCaches()
-	{
-		CacheManager manager = CacheManager.create();
-		if(manager.getCache("transmitterCache") == null)
-			manager.addCache(new Cache("transmitterCache", 1000, false, true, 600, 600));
-		transmitterCache = manager.getCache("transmitterCache");
-		
-		if(manager.getCache("monitorCache") == null)
-			manager.addCache(new Cache("monitorCache", 5, false, false, 15, 30));
-		monitorCache = manager.getCache("monitorCache");
-
-		if(manager.getCache("dataFileCache") == null)
-			manager.addCache(new Cache("dataFileCache", 500, false, false, 60 * 15, 60 * 15));
-		dataFileCache = manager.getCache("dataFileCache");
-	}
+	private volatile Replica replica = new Replica();
 	
 	/**
-	 * Default constructor without a servlet context.
+	 * Counts the pulls that changed the mirror.
 	 */
-	private ShowInfoDataFileIndex()
-	{
-		createCaches();
-	}
+	private volatile long generation = 0;
+	
+	/**
+	 * True once the whole data series has been pulled.
+	 */
+	private volatile boolean mirrorComplete = false;
+	
+	/**
+	 * When the whole data series was last pulled, 0 before the first time.
+	 */
+	private long lastReload = 0;
+	
+	/**
+	 * When the last pull that succeeded started.
+	 */
+	private volatile long lastPull = 0;
+	
+	/**
+	 * Held while a pull changes the mirror, so the pulls of the mirror timer and
+	 * those started by requests never run at the same time.
+	 */
+	private final ReentrantLock pullLock = new ReentrantLock();
+	
+	/**
+	 * True while a pull started by requests for recent data is scheduled.
+	 */
+	private final AtomicBoolean recentPullScheduled = new AtomicBoolean();
+	
+	/**
+	 * Runs the pulls started by requests for recent data, apart from the mirror timer
+	 * so they never queue behind a reload.
+	 */
+	private final ScheduledExecutorService recentPuller = Executors.newSingleThreadScheduledExecutor(daemonThreads("show-info-recent"));
+	
+	/**
+	 * Loads the transmitter, monitor and site tables, apart from the mirror timer so a
+	 * load never waits for a pull or a reload of the data series.
+	 */
+	private final ScheduledExecutorService tableLoader = Executors.newSingleThreadScheduledExecutor(daemonThreads("show-info-tables"));
+	
+	/**
+	 * Pulls the data series in the background.
+	 */
+	private final Timer mirrorTimer = new Timer("show-info-mirror", true);
 	
 	/**
 	 * Creates a new JSOCDataFileIndex, pass the ServletContext of the calling servlet.
@@ -117,70 +231,147 @@ extends DataFileIndex
 		{
 			throw new RuntimeException("When using the show-info database you must include a show_info-executable path.");
 		}
-
-		createCaches();
+		
+		showInfoExecutor = new ProcessExecutor(context.getInitParameter("show_info-concurrency") == null ? DEFAULT_SHOW_INFO_CONCURRENCY :
+				Integer.parseInt(context.getInitParameter("show_info-concurrency")));
+		
+		mirrorTimeout = 1000L * (context.getInitParameter("show_info-mirror-timeout") == null ? DEFAULT_MIRROR_TIMEOUT_SECONDS :
+				Integer.parseInt(context.getInitParameter("show_info-mirror-timeout")));
+		
+		monitorMaxStaleness = 1000L * (context.getInitParameter("monitor-max-staleness") == null ? DEFAULT_MONITOR_MAX_STALENESS_SECONDS :
+				Integer.parseInt(context.getInitParameter("monitor-max-staleness")));
+		
+		tableLoader.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				loadTransmitters();
+				loadMonitors();
+				tablesLoaded.countDown();
+			}
+		}, 0, TABLE_REFRESH_SECONDS, TimeUnit.SECONDS);
+		
+		mirrorTimer.schedule(new TimerTask()
+		{
+			public void run()
+			{
+				pullDataSeries();
+			}
+		}, 0, MIRROR_INTERVAL_SECONDS * 1000L);
 	}
 	
+	/**
+	 * The whole transmitter table, by StationID.  It is replaced as a whole each time
+	 * it is loaded, so lookups never take a lock.
+	 */
+	private volatile Map<String, StationLatitudeLongitude> transmitters = Collections.emptyMap();
+	
+	/**
+	 * The monitors with data available, joined with their sites.  It is replaced as a
+	 * whole each time it is loaded.
+	 */
+	private volatile List<MonitorInfo> monitors = Collections.emptyList();
+	
+	/**
+	 * When the monitor list was last loaded, or 0 if it never was.
+	 */
+	private volatile long monitorsLoaded = 0;
+	
+	/**
+	 * How old the monitor list may be before a request waits for it to be loaded again.
+	 */
+	private long monitorMaxStaleness;
+	
+	/**
+	 * The load of the monitor list asked for by requests, if one is scheduled.
+	 * Guarded by this.
+	 */
+	private FutureTask<Object> monitorRefresh;
+	
+	/**
+	 * Counted down once the transmitter, monitor and site tables have been loaded for
+	 * the first time.
+	 */
+	private final CountDownLatch tablesLoaded = new CountDownLatch(1);
+	
 	/**
 	 * This method is used to retrieve the Longitude and Latitude for a given transmitter.
-	 *
+	 * 
+	 * The transmitter table is loaded with a single show_info call when the index is
+	 * created and again every TABLE_REFRESH_SECONDS, so a lookup is a map read.
+	 * Only the lookups made before the table is first loaded wait for it.
 	 */
 	public StationLatitudeLongitude getStationLatitudeLongitude(String id)
 	{
 		if(id == null) return null;
 		
-		StationLatitudeLongitude result = null;
-		
-		Element transmitterElement = transmitterCache.get(id);
-		
-		// Check the cache.
-		if(transmitterElement == null || transmitterElement.isExpired())
+		awaitTables();
+		return transmitters.get(id);
+	}
+	
+	/**
+	 * Waits for the first load of the tables, at most the show_info timeout.
+	 */
+	private void awaitTables()
+	{
+		try
 		{
-			try
+			tablesLoaded.await(DEFAULT_SHOW_INFO_TIMEOUT, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Loads the whole transmitter table from show_info.  If show_info fails the
+	 * table loaded before is kept.
+	 */
+	private void loadTransmitters()
+	{
+		try
+		{
+			final HashMap<String, StationLatitudeLongitude> table = new HashMap<String, StationLatitudeLongitude>();
+			
+			String[] parameters = {showInfoExecutable, TRANSMITTER_SERIES_ID + "[]", "-a"};
+			try(ProcessExecutor.Execution showInfo = showInfoExecutor.start(DEFAULT_SHOW_INFO_TIMEOUT, parameters))
 			{
-				String[] parameters = {showInfoExecutable, String.format("sid_awe.transmitters[%s]", id), "-a"};
-                final Process showInfo = Runtime.getRuntime().exec(parameters);
-                setTimeout(showInfo, DEFAULT_SHOW_INFO_TIMEOUT);
+				TabSeparatedReader reader = new TabSeparatedReader(showInfo.getInputStream());
+				final int stationColumn = reader.requireColumn("StationID");
+				final int latitudeColumn = reader.requireColumn("Latitude");
+				final int longitudeColumn = reader.requireColumn("Longitude");
 				
-				try(Scanner showInfoScanner = new Scanner(showInfo.getInputStream()))
+				reader.read(new TabSeparatedReader.RowHandler()
 				{
-					// 	Get the value positions from the first line.
-					ShowInfoLinePositions positions = new ShowInfoLinePositions( showInfoScanner.nextLine());
-					
-					while(showInfoScanner.hasNextLine())
+					public void row(TabSeparatedReader row)
 					{
-						try
-						{
-							String[] line = showInfoScanner.nextLine().split("\\t");
-							
-							result = new StationLatitudeLongitude(
-									line[positions.getIndexOf("StationID")],
-									Double.parseDouble(line[positions.getIndexOf("Latitude")]),
-									Double.parseDouble(line[positions.getIndexOf("Longitude")]));
-							
-							transmitterElement = new Element(id, result);
-							transmitterCache.put(transmitterElement);
-						}catch(Exception e){}
+						String station = row.get(stationColumn);
+						table.put(station, new StationLatitudeLongitude(station, row.getDouble(latitudeColumn), row.getDouble(longitudeColumn)));
 					}
-				}finally{
-					showInfo.destroy();
-				}
-			}catch(Exception e){}
+				});
+				logSkippedRows(parameters[1], reader);
+				
+				showInfo.waitFor();
+			}
+			
+			if(!table.isEmpty())
+			{
+				transmitters = Collections.unmodifiableMap(table);
+			}
+		}catch(Exception e)
+		{
+			e.printStackTrace();
 		}
-		if(transmitterElement != null) result = (StationLatitudeLongitude)transmitterElement.getObjectValue();
-		else transmitterCache.put(new Element(id, null));
-		return result;
 	}
 	
 	/**
 	 * This method requests the data files from the JSOC database.
 	 * 
-	 * This method returns all the data files within the given time range.
+	 * This method returns all the data files within the given time range, from the
+	 * local mirror of the data series, or from show_info until the mirror is complete.
 	 */
 	public DataFileList getFilesFromTimeRange(Calendar startTime, Calendar endTime)
 	{
-		DateFormat timeConvertFormat = CalendarUtil.getSimpleDateFormat(TIME_CONVERT_DATE_STRING);
-		
 		//Check if we are requested for more than a week worth of data.  This could take up
 		//more memory than is available.
 		Calendar timeTest = (Calendar)startTime.clone();
@@ -191,267 +382,458 @@ extends DataFileIndex
 			throw new RuntimeException("Time range cannot be greater than one week.");
 		}
 		
-		ArrayList<DataFile> files = new ArrayList<DataFile>();
-		Element dataFileElement = dataFileCache.get(timeConvertFormat.format(startTime.getTime()) + timeConvertFormat.format(endTime.getTime()));
-		if(dataFileElement == null || dataFileElement.isExpired())
+		requestRecentRecords(endTime.getTimeInMillis());
+		
+		Replica current = mirrorComplete ? replica : queryRange(startTime, endTime);
+		return new DataFileList(current.intervals.query(startTime.getTimeInMillis(), endTime.getTimeInMillis()));
+	}
+	
+	/**
+	 * Starts a pull of the records above the watermark in the background, if a range
+	 * ends after the last pull and the last pull is older than PULL_FRESHNESS_MILLIS.
+	 * The request itself is answered from the mirror as it is.<p>
+	 * 
+	 * When a page is loaded, the page and each of its plots ask for the same recent
+	 * data at nearly the same time.  The first of them schedules a pull PULL_BATCH_MILLIS
+	 * later, and the requests that come before it runs do not schedule another.  The
+	 * pull only brings the records above the watermark, never reloads the mirror, and
+	 * is skipped if a pull of the mirror timer is running, since that pull brings the
+	 * same records.
+	 */
+	private void requestRecentRecords(long endMillis)
+	{
+		if(!mirrorComplete || endMillis <= lastPull || System.currentTimeMillis() - lastPull < PULL_FRESHNESS_MILLIS) return;
+		if(!recentPullScheduled.compareAndSet(false, true)) return;
+		
+		try
 		{
+			recentPuller.schedule(new Runnable()
+			{
+				public void run()
+				{
+					//Requests that come while this pull runs schedule the next one.
+					recentPullScheduled.set(false);
+					pullRecentRecords();
+				}
+			}, PULL_BATCH_MILLIS, TimeUnit.MILLISECONDS);
+		}catch(RejectedExecutionException e)
+		{
+			//The index is closed.
+		}
+	}
+	
+	/**
+	 * Pulls the records above the watermark into the mirror, unless another pull is
+	 * running or the last one is recent.
+	 */
+	private void pullRecentRecords()
+	{
+		long now = System.currentTimeMillis();
+		if(now - lastPull < PULL_FRESHNESS_MILLIS || !pullLock.tryLock()) return;
+		
+		try
+		{
+			if(pullDataSeries(replica, DEFAULT_SHOW_INFO_TIMEOUT) > 0) generation++;
+			lastPull = now;
+		}catch(Exception e)
+		{
+			e.printStackTrace();
+		}finally
+		{
+			pullLock.unlock();
+		}
+	}
+	
+	/**
+	 * Pulls the records of the data series above the watermark into the mirror, or
+	 * every record into a new mirror if it is time to reload it.  If show_info fails
+	 * the mirror is left as it was, and the next run tries again.  This runs on the
+	 * mirror timer, and is package-private for the tests.
+	 */
+	void pullDataSeries()
+	{
+		pullLock.lock();
+		
+		long now = System.currentTimeMillis();
+		boolean reload = lastReload == 0 || now - lastReload >= MIRROR_RELOAD_MILLIS;
+		Replica target = reload ? new Replica() : replica;
+		
+		try
+		{
+			int pulled = pullDataSeries(target, mirrorTimeout);
+			if(reload && pulled == 0 && replica.watermark > 0)
+			{
+				throw new IOException("The reload of " + DATA_SERIES_ID + " pulled no records, keeping the mirror");
+			}
+			lastPull = now;
+			
+			if(reload)
+			{
+				replica = target;
+				lastReload = now;
+				mirrorComplete = true;
+				generation++;
+			}else if(pulled > 0)
+			{
+				generation++;
+			}
+		}catch(Exception e)
+		{
+			e.printStackTrace();
+		}finally
+		{
+			pullLock.unlock();
+		}
+	}
+	
+	/**
+	 * Runs show_info for the records of the data series above the watermark of the
+	 * replica, and adds them to it.
+	 * 
+	 * @param timeoutMillis how long show_info may take.
+	 * @return the number of records pulled.
+	 * @throws Exception if show_info cannot be run, or does not finish.
+	 */
+	private int pullDataSeries(Replica target, long timeoutMillis)
+	throws Exception
+	{
+		return queryDataSeries(target, String.format(SHOW_INFO_MIRROR_FORMAT_STRING, DATA_SERIES_ID, target.watermark), timeoutMillis);
+	}
+	
+	/**
+	 * Answers a query of the data series with show_info, for the queries made before the
+	 * whole data series has been pulled into the mirror.  The records are added to a
+	 * replica of their own, so the query is answered the way the mirror answers it.
+	 * 
+	 * @return the records of the query, or no records if show_info failed.
+	 */
+	private Replica queryDirectly(String query)
+	{
+		Replica result = new Replica();
+		try
+		{
+			queryDataSeries(result, query, DEFAULT_SHOW_INFO_TIMEOUT);
+		}catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		return result;
+	}
+	
+	/**
+	 * Answers a query for the records overlapping a time range with show_info.
+	 */
+	private Replica queryRange(Calendar startTime, Calendar endTime)
+	{
+		DateFormat timeConvertFormat = CalendarUtil.getSimpleDateFormat(TIME_CONVERT_DATE_STRING);
+		return queryDirectly(String.format(SHOW_INFO_RANGE_FORMAT_STRING, DATA_SERIES_ID,
+				timeConvertFormat.format(startTime.getTime()), timeConvertFormat.format(endTime.getTime())));
+	}
+	
+	/**
+	 * Runs a show_info query of the data series, and adds the records it returns to the
+	 * replica.  The records do not come in recnum order, so they are only added once
+	 * show_info has finished, since a partial pull would move the watermark past records
+	 * it did not get, and are sorted by recnum first.
+	 * 
+	 * @param query the record set to query.
+	 * @param timeoutMillis how long show_info may take.
+	 * @return the number of records pulled.
+	 * @throws Exception if show_info cannot be run, or does not finish.
+	 */
+	private int queryDataSeries(Replica target, String query, long timeoutMillis)
+	throws Exception
+	{
+		final ArrayList<DataFile> files = new ArrayList<DataFile>();
+		final ArrayList<Long> recnums = new ArrayList<Long>();
+		
+		String[] parameters = {showInfoExecutable, query,
+				SHOW_INFO_PARAMETER_1, SHOW_INFO_RECNUM_PARAMETER, SHOW_INFO_PARAMETER_2, SHOW_INFO_PARAMETER_3};
+		
+		try(ProcessExecutor.Execution showInfo = showInfoExecutor.start(timeoutMillis, parameters))
+		{
+			TabSeparatedReader reader;
 			try
 			{
-				String[] parameters = {showInfoExecutable, String.format(SHOW_INFO_DATA_FORMAT_STRING, timeConvertFormat.format(startTime.getTime()), timeConvertFormat.format(endTime.getTime())), SHOW_INFO_PARAMETER_1, SHOW_INFO_PARAMETER_2, SHOW_INFO_PARAMETER_3};
-				
-				final Process showInfo = Runtime.getRuntime().exec(parameters);
-				setTimeout(showInfo, DEFAULT_SHOW_INFO_TIMEOUT);
-				
-				try(Scanner showInfoScanner = new Scanner(showInfo.getInputStream()))
+				reader = new TabSeparatedReader(showInfo.getInputStream());
+			}catch(IOException e)
+			{
+				throw new IOException("show_info returned nothing for " + parameters[1], e);
+			}
+			
+			final int recnumColumn = reader.requireColumn("recnum");
+			final int dataMinColumn = reader.requireColumn("DataMin");
+			final int dataMaxColumn = reader.requireColumn("DataMax");
+			final int longitudeColumn = reader.requireColumn("Longitude");
+			final int latitudeColumn = reader.requireColumn("Latitude");
+			final int monitorColumn = reader.requireColumn("MonitorID");
+			final int siteColumn = reader.requireColumn("Site");
+			final int stationColumn = reader.requireColumn("StationID");
+			final int endTimeColumn = reader.requireColumn("UTC_EndTime");
+			final int startTimeColumn = reader.requireColumn("UTC_StartTime");
+			final int pathColumn = reader.requireColumn("file_seg");
+			
+			final DateFormat showInfoFormat = CalendarUtil.getSimpleDateFormat(SHOW_INFO_DATE_STRING);
+			
+			reader.read(new TabSeparatedReader.RowHandler()
+			{
+				public void row(TabSeparatedReader row)
+				throws Exception
 				{
-					ShowInfoLinePositions positions = new ShowInfoLinePositions(showInfoScanner.nextLine());
+					long recnum = row.getLong(recnumColumn);
 					
-					DateFormat showInfoFormat = CalendarUtil.getSimpleDateFormat(SHOW_INFO_DATE_STRING);
+					String longitude = row.get(longitudeColumn).replace("degrees", "");
+					String latitude = row.get(latitudeColumn).replace("degrees", "");
 					
-					while(showInfoScanner.hasNextLine())
-					{
-						try
-						{
-							String line = showInfoScanner.nextLine();
-							String[] parts = line.split("\\t");
-							
-							String dataMin = parts[positions.getIndexOf("DataMin")];
-							String dataMax = parts[positions.getIndexOf("DataMax")];
-							
-							String longitude = parts[positions.getIndexOf("Longitude")];
-							String latitude = parts[positions.getIndexOf("Latitude")];
-							
-							longitude = longitude.replace("degrees", "");
-							latitude = latitude.replace("degrees", "");
-
-							String monitor = parts[positions.getIndexOf("MonitorID")];
-							String site = parts[positions.getIndexOf("Site")];
-							String station = parts[positions.getIndexOf("StationID")];
-							
-							String endTimeString = parts[positions.getIndexOf("UTC_EndTime")];
-							String startTimeString = parts[positions.getIndexOf("UTC_StartTime")];
-							
-							String path = parts[positions.getIndexOf("file_seg")];
-							
-							Calendar fileStartTime = CalendarUtil.getCalendar();
-							Calendar fileEndTime = CalendarUtil.getCalendar();
-							fileStartTime.setTime(showInfoFormat.parse(startTimeString));
-							fileEndTime.setTime(showInfoFormat.parse(endTimeString));
-							
-							files.add(new DataFile(path, site, monitor, station, fileStartTime, fileEndTime, longitude, latitude, dataMin, dataMax));
-						}catch(Exception e){}
-					}
-				}finally{
-					showInfo.destroy();
+					Calendar fileStartTime = CalendarUtil.getCalendar();
+					Calendar fileEndTime = CalendarUtil.getCalendar();
+					fileStartTime.setTime(showInfoFormat.parse(row.get(startTimeColumn)));
+					fileEndTime.setTime(showInfoFormat.parse(row.get(endTimeColumn)));
+					
+					files.add(new DataFile(row.get(pathColumn), row.get(siteColumn), row.get(monitorColumn), row.get(stationColumn),
+							fileStartTime, fileEndTime, longitude, latitude, row.get(dataMinColumn), row.get(dataMaxColumn)));
+					recnums.add(recnum);
 				}
-				
-				dataFileElement = new Element(timeConvertFormat.format(startTime.getTime()) + timeConvertFormat.format(endTime.getTime()), files);
-			}catch(Exception e)
+			});
+			logSkippedRows(parameters[1], reader);
+			
+			if(files.isEmpty() && reader.getSkippedRows() > 0)
 			{
-				e.printStackTrace();
+				throw new IOException("No record of " + parameters[1] + " could be parsed", reader.getSkipError());
 			}
-			if(dataFileElement != null) dataFileCache.put(dataFileElement);
+			
+			showInfo.waitFor();
 		}
 		
-		if(dataFileElement != null)
+		//Add the records in recnum order, so the newest version of a record replaces the others.
+		Integer[] order = new Integer[files.size()];
+		for(int i = 0;i < order.length;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
 		{
-			return new DataFileList((ArrayList<DataFile>)dataFileElement.getObjectValue());
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(recnums.get(a), recnums.get(b));
+			}
+		});
+		
+		for(int i : order)
+		{
+			target.add(files.get(i), recnums.get(i));
 		}
 		
-		return new DataFileList(new ArrayList<DataFile>());
+		return files.size();
+	}
+	
+	/**
+	 * Logs how many rows of the output of a show_info query could not be parsed,
+	 * with the error of the first, if any could not.
+	 */
+	private static void logSkippedRows(String query, TabSeparatedReader reader)
+	{
+		if(reader.getSkippedRows() == 0) return;
+		
+		System.err.println(String.format("Skipped %d rows of show_info %s that could not be parsed: %s",
+				reader.getSkippedRows(), query, reader.getSkipError()));
+	}
+	
+	/**
+	 * @return the executor show_info is run through, for its queue depth and counts.
+	 */
+	public ProcessExecutor getShowInfoExecutor()
+	{
+		return showInfoExecutor;
 	}
 	
 	public boolean isUpdateComplete()
 	{
-		//JSOC database is always updated.
-		return true;
+		//The mirror is complete once the whole data series has been pulled.
+		return mirrorComplete;
+	}
+	
+	/**
+	 * The generation moves on each time a pull changes the mirror.
+	 */
+	public long getGeneration()
+	{
+		return generation;
 	}
 	
 	/**
 	 * Retrieve unique monitor info from the database.
 	 * 
-	 * This method returns a collection with exactly one of each unique Site Monitor Station ID set.
+	 * This method returns a collection with exactly one of each unique Site Monitor Station ID set,
+	 * from the monitor and site tables loaded every TABLE_REFRESH_SECONDS.
+	 * 
+	 * The list loaded last is served as it is.  If it is older than TABLE_REFRESH_SECONDS,
+	 * because a load failed, one load is scheduled in the background for every request
+	 * that sees it, and only once it is older than monitor-max-staleness do requests wait
+	 * for that load, at most the show_info timeout.
 	 */
 	public Collection<MonitorInfo> getMonitors(Comparator<MonitorInfo> comparator)
 	{
-		ArrayList<MonitorInfo> monitors = new ArrayList<MonitorInfo>();
-
-		String[] monitorParameters = {showInfoExecutable, "-a", MONITOR_SERIES_ID + "[? DataAvailable = $$1$$ ?]"};		
-		String[] siteParameters = {showInfoExecutable, "-a", SITE_SERIES_ID + "[]"};
-		
-		Element monitorElement = monitorCache.get("monitors");
+		awaitTables();
 		
-		if(monitorElement == null || monitorElement.isExpired())
+		long age = System.currentTimeMillis() - monitorsLoaded;
+		if(age > TABLE_REFRESH_SECONDS * 1000L)
 		{
-        	try
-        	{
-        		final Process monitorProcess = Runtime.getRuntime().exec(monitorParameters);
-        		setTimeout(monitorProcess, DEFAULT_SHOW_INFO_TIMEOUT);
-        		final Process siteProcess = Runtime.getRuntime().exec(siteParameters);
-    			setTimeout(siteProcess, DEFAULT_SHOW_INFO_TIMEOUT);
-
-				String[] stationParameters = {showInfoExecutable, "-a", DATA_SERIES_ID + "[? recnum in (select distinct on (MonitorID, Site, StationID) recnum from " + DATA_SERIES_ID + ") ?]"};
-				
-				final Process stationProcess = Runtime.getRuntime().exec(stationParameters);
-				setTimeout(stationProcess, DEFAULT_SHOW_INFO_TIMEOUT);
-				
-        		try(Scanner monitorIn = new Scanner(monitorProcess.getInputStream());
-        			Scanner siteIn = new Scanner(siteProcess.getInputStream());
-        			Scanner stationIn = new Scanner(stationProcess.getInputStream()))
-        		{
-        			ShowInfoLinePositions positions = new ShowInfoLinePositions(monitorIn.nextLine());
-        			ShowInfoLinePositions sitePositions = new ShowInfoLinePositions(siteIn.nextLine());
-        			
-        			HashMap<String, String> siteMap = new HashMap<String, String>();
-        				
-        			while(siteIn.hasNextLine())
-        			{	
-        				String line = siteIn.nextLine();
-        				siteMap.put(line.split("\\t")[sitePositions.getIndexOf("Site")], line);
-        			}
-        				
-        			ShowInfoLinePositions stationPositions = new ShowInfoLinePositions(stationIn.nextLine());
-        			HashMap<String, ArrayList<String>> stationMap = new HashMap<String, ArrayList<String>>();
-        					
-        			while(stationIn.hasNextLine())
-        			{
-        				String[] line = stationIn.nextLine().split("\\t");
-        				String key = String.format("%s$%s", line[stationPositions.getIndexOf("MonitorID")], line[stationPositions.getIndexOf("Site")]);
-        				
-        				if(!stationMap.containsKey(key))
-        					stationMap.put(key, new ArrayList<String>());
-        				
-        				stationMap.get(key).add(line[stationPositions.getIndexOf("StationID")]);
-        			}
-        				
-        			while(monitorIn.hasNextLine())
-        			{
-        				try
-        				{
-        					String line = monitorIn.nextLine();
-        					String[] parts = line.split("\\t");
-        					String site = parts[positions.getIndexOf("Site")];
-        					String monitor = parts[positions.getIndexOf("MonitorID")];
-        					String longitude = parts[positions.getIndexOf("Longitude")];
-        					String latitude = parts[positions.getIndexOf("Latitude")];
-        						
-        					//String dataType = parts[positions.getIndexOf("DataType")];
-        						
-        					
-        					String location = "";
-        					String website = "";
-        					
-        					String station = parts[positions.getIndexOf("StationID")];
-        					String[] stations = station.split(",");
-        					
-        					if(siteMap.containsKey(site))
-        					{
-        						location = siteMap.get(site).split("\\t")[sitePositions.getIndexOf("Country")];
-        						website = siteMap.get(site).split("\\t")[sitePositions.getIndexOf("Website")];
-        					}
-        					
-        					for(String s : stations)
-        						monitors.add(new MonitorInfo(site,monitor, s, longitude, latitude, location, website));
-        				}catch(Exception e)
-        				{
-        					System.out.println("Error parsing Monitor Entry.");
-        					e.printStackTrace();
-        				}
-        			}
-        		}finally
-        		{
-        			siteProcess.destroy();
-        			monitorProcess.destroy();
-        			stationProcess.destroy();
-        		}
-        		
-        		monitorElement = new Element("monitors", monitors);
-        		monitorCache.put(monitorElement);
-        	}catch(Exception e)
-        	{
-        		e.printStackTrace();
-        	}
+			FutureTask<Object> refresh = refreshMonitors();
+			if(age > monitorMaxStaleness)
+			{
+				try
+				{
+					refresh.get(DEFAULT_SHOW_INFO_TIMEOUT, TimeUnit.MILLISECONDS);
+				}catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}catch(Exception e)
+				{
+					//Serve the list as it is.
+				}
+			}
 		}
-
-		if(monitorElement != null)
+		
+		ArrayList<MonitorInfo> mi = new ArrayList<MonitorInfo>(monitors);
+		if(comparator != null) Collections.sort(mi, comparator);
+		return mi;
+	}
+	
+	/**
+	 * Schedules a load of the monitor list on the table loader, so it never overlaps
+	 * the load of the tables, unless one is already scheduled.
+	 * 
+	 * @return the scheduled load.
+	 */
+	private synchronized FutureTask<Object> refreshMonitors()
+	{
+		if(monitorRefresh == null)
 		{
-			ArrayList<MonitorInfo> mi = (ArrayList<MonitorInfo>)monitorElement.getObjectValue();
-			Collections.sort(mi, comparator);
-			return mi;
+			final FutureTask<Object> task = new FutureTask<Object>(new Runnable()
+			{
+				public void run()
+				{
+					synchronized(ShowInfoDataFileIndex.this)
+					{
+						monitorRefresh = null;
+					}
+					
+					if(System.currentTimeMillis() - monitorsLoaded > TABLE_REFRESH_SECONDS * 1000L) loadMonitors();
+				}
+			}, null);
+			
+			monitorRefresh = task;
+			try
+			{
+				tableLoader.execute(task);
+			}catch(RejectedExecutionException e)
+			{
+				//The index is closed.
+				task.cancel(false);
+			}
 		}
-
-        return new java.util.ArrayList<MonitorInfo>();
+		return monitorRefresh;
 	}
 	
 	/**
-	 * This provides all the days that the given monitors have data for.
+	 * Loads the monitors with data available from show_info, with the country and
+	 * website of their sites.  If show_info fails the monitors loaded before are kept.
 	 */
-	public Collection<Calendar> getDaysWithData(Collection<MonitorInfo> monitors)
+	private void loadMonitors()
 	{
-		java.util.TreeSet<Calendar> daysWithData = new java.util.TreeSet<Calendar>();
-		
-		String[] calendarParameters = {showInfoExecutable, "-a", DATA_SERIES_ID + "[? recnum in (select distinct on (UTC_StartTime,UTC_EndTime) recnum from " + DATA_SERIES_ID + " " + generateMonitorFilter(monitors, true) + ") ?]"};
-		
-		DateFormat showInfoFormat = CalendarUtil.getSimpleDateFormat(SHOW_INFO_DATE_STRING);
+		final ArrayList<MonitorInfo> monitors = new ArrayList<MonitorInfo>();
+
+		String[] monitorParameters = {showInfoExecutable, "-a", MONITOR_SERIES_ID + "[? DataAvailable = $$1$$ ?]"};
+		String[] siteParameters = {showInfoExecutable, "-a", SITE_SERIES_ID + "[]"};
 		
 		try
 		{
-			final Process showInfo = Runtime.getRuntime().exec(calendarParameters);
-			setTimeout(showInfo, 30000);
+			//The country and website of each site.
+			final HashMap<String, String[]> siteMap = new HashMap<String, String[]>();
 			
+			try(ProcessExecutor.Execution siteProcess = showInfoExecutor.start(DEFAULT_SHOW_INFO_TIMEOUT, siteParameters))
+			{
+				TabSeparatedReader reader = new TabSeparatedReader(siteProcess.getInputStream());
+				final int siteColumn = reader.requireColumn("Site");
+				final int countryColumn = reader.requireColumn("Country");
+				final int websiteColumn = reader.requireColumn("Website");
+				
+				reader.read(new TabSeparatedReader.RowHandler()
+				{
+					public void row(TabSeparatedReader row)
+					{
+						siteMap.put(row.get(siteColumn), new String[]{row.get(countryColumn), row.get(websiteColumn)});
+					}
+				});
+				logSkippedRows(siteParameters[2], reader);
+				
+				siteProcess.waitFor();
+			}
 			
-			try(Scanner calendarIn = new Scanner(showInfo.getInputStream()))
+			try(ProcessExecutor.Execution monitorProcess = showInfoExecutor.start(DEFAULT_SHOW_INFO_TIMEOUT, monitorParameters))
 			{
-				ShowInfoLinePositions positions = new ShowInfoLinePositions(calendarIn.nextLine());
+				TabSeparatedReader reader = new TabSeparatedReader(monitorProcess.getInputStream());
+				final int siteColumn = reader.requireColumn("Site");
+				final int monitorColumn = reader.requireColumn("MonitorID");
+				final int longitudeColumn = reader.requireColumn("Longitude");
+				final int latitudeColumn = reader.requireColumn("Latitude");
+				final int stationColumn = reader.requireColumn("StationID");
 				
-				while(calendarIn.hasNextLine())
+				reader.read(new TabSeparatedReader.RowHandler()
 				{
-					try
+					public void row(TabSeparatedReader row)
+					throws Exception
 					{
-						String line = calendarIn.nextLine();
-						String[] parts = line.split("\\t");
+						String site = row.get(siteColumn);
+						String monitor = row.get(monitorColumn);
+						String longitude = row.get(longitudeColumn);
+						String latitude = row.get(latitudeColumn);
 						
-						String fileStartTimeString = parts[positions.getIndexOf("UTC_StartTime")];
-						String fileEndTimeString = parts[positions.getIndexOf("UTC_EndTime")];
+						String location = "";
+						String website = "";
 						
-						Calendar fileStartTime = CalendarUtil.getCalendar();
-						fileStartTime.setTime(showInfoFormat.parse(fileStartTimeString));
+						String[] stations = row.get(stationColumn).split(",");
 						
-						Calendar fileEndTime = CalendarUtil.getCalendar();
-						fileEndTime.setTime(showInfoFormat.parse(fileEndTimeString));
+						String[] siteInfo = siteMap.get(site);
+						if(siteInfo != null)
+						{
+							location = siteInfo[0];
+							website = siteInfo[1];
+						}
 						
-						daysWithData.addAll(CalendarUtil.getDaysInRange(fileStartTime, fileEndTime));
-					}
-					catch(Exception e)
-					{
-						//	ignored
+						for(String s : stations)
+							monitors.add(new MonitorInfo(site,monitor, s, longitude, latitude, location, website));
 					}
-				}
-			}finally
+				});
+				logSkippedRows(monitorParameters[2], reader);
+				
+				monitorProcess.waitFor();
+			}
+			
+			if(!monitors.isEmpty())
 			{
-				showInfo.destroy();
+				this.monitors = Collections.unmodifiableList(monitors);
+				monitorsLoaded = System.currentTimeMillis();
 			}
+		}catch(Exception e)
+		{
+			e.printStackTrace();
 		}
-		catch(Exception e){e.printStackTrace();}
-		return daysWithData;
 	}
 	
 	/**
-	 * Check if the given MonitorInfo collections contains a monitor that matches the monitorIndentifier.
+	 * This provides all the days that the given monitors have data for, from the day
+	 * bitmaps of the local mirror.  Until the mirror is complete the days come from a
+	 * show_info query of one record for each start and end time of the monitors.
 	 */
-	private static boolean monitorCollectionContains(Collection<MonitorInfo> monitors, String monitorIdentifier)
+	public Collection<Calendar> getDaysWithData(Collection<MonitorInfo> monitors)
 	{
-		for(MonitorInfo mi : monitors)
-		{
-			if(mi.equalsIdentifier(monitorIdentifier))
-				return true;
-		}
-		return false;
+		Replica current = mirrorComplete ? replica : queryDirectly(String.format(SHOW_INFO_DAYS_FORMAT_STRING,
+				DATA_SERIES_ID, DATA_SERIES_ID, generateMonitorFilter(monitors)));
+		return DayBitmapIndex.toCalendars(current.days.getDays(monitors), 0, Long.MAX_VALUE);
 	}
 	
 	/**
 	 * This method returs true if and only if there is one or more data files of the given monitor
-	 * in the specified time range.
+	 * in the specified time range.  If monitors is null or empty, any monitor will do.
 	 */
 	public boolean hasFilesInRange(Calendar startTime, Calendar endTime, Collection<MonitorInfo> monitors)
 	{
@@ -463,49 +845,19 @@ extends DataFileIndex
 		{
 			throw new RuntimeException("Time range cannot be greater than one week.");
 		}
-
-
-		try
-		{
-			DateFormat timeConvertFormat = CalendarUtil.getSimpleDateFormat(TIME_CONVERT_DATE_STRING);
-			String[] parameters = {showInfoExecutable, String.format(SHOW_INFO_DATA_FORMAT_STRING, timeConvertFormat.format(startTime.getTime()), timeConvertFormat.format(endTime.getTime())), SHOW_INFO_PARAMETER_1};
-			
-			final Process showInfo = Runtime.getRuntime().exec(parameters);
-			setTimeout(showInfo, 30000);
-			
-			try(Scanner showInfoScanner = new Scanner(showInfo.getInputStream()))
-			{
-				ShowInfoLinePositions positions = new ShowInfoLinePositions(showInfoScanner.nextLine());
-			
-
-				while(showInfoScanner.hasNextLine())
-				{
-					try
-					{
-						String line = showInfoScanner.nextLine();
-						String[] parts = line.split("\\t");
-						String monitor = String.format("%s$%s$%s",
-								parts[positions.getIndexOf("MonitorID")],
-								parts[positions.getIndexOf("Site")],
-								parts[positions.getIndexOf("StationID")]);
-						if(monitorCollectionContains(monitors, monitor)) return true;
-						
-					}catch(Exception e){
-					}
-					
-				}
-			}finally
-			{
-				showInfo.destroy();
-			}
-		}
-		catch(Exception e){e.printStackTrace();}
-
-		return false;
+		
+		Replica current = mirrorComplete ? replica : queryRange(startTime, endTime);
+		return current.days.hasFiles(startTime.getTimeInMillis(), endTime.getTimeInMillis(), monitors, current.intervals);
 	}
 	
-	private static String generateMonitorFilter(Collection<MonitorInfo> monitorCollection, boolean solo)
+	/**
+	 * @return a WHERE clause selecting the records of the given monitors, or an empty
+	 * string for every monitor if there are none.
+	 */
+	private static String generateMonitorFilter(Collection<MonitorInfo> monitorCollection)
 	{
+		if(monitorCollection == null || monitorCollection.isEmpty()) return "";
+		
 		//Find a safe SQL string separator to protect against code injection.
 		//Parameterized queries would be nice, but with ShowInfo being a command
 		//line program, it's not possible.
@@ -526,7 +878,7 @@ extends DataFileIndex
 			if(foundMatch)
 			{
 				ss = ss + "string";
-			} else
+			}else
 			{
 				safeStringSeparatorFound = true;
 			}
@@ -535,89 +887,43 @@ extends DataFileIndex
 		//Put the dollar signs around the string seperator.
 		ss = "$" + ss + "$";
 		
-		//Process the monitor filter.
-		String monitorFilter = "";
-		
-		if(monitorCollection.size() > 0)
+		StringBuilder monitorFilter = new StringBuilder(" WHERE (");
+		String separator = "";
+		for(MonitorInfo mi : monitorCollection)
 		{
-			MonitorInfo[] monitors = monitorCollection.toArray(new MonitorInfo[0]);
-
-			if(!solo)
-			{
-				monitorFilter = monitorFilter + " AND";
-			}else
-			{
-				monitorFilter = monitorFilter + " WHERE";
-			}
+			monitorFilter.append(separator);
+			separator = " OR ";
+			monitorFilter.append("(MonitorID=").append(ss).append(mi.getMonitor()).append(ss);
+			monitorFilter.append(" AND Site=").append(ss).append(mi.getSite()).append(ss);
 			
-			monitorFilter = monitorFilter + " (";
-			
-			for(int i = 0;i < monitors.length - 1;i++)
-			{
-				monitorFilter = monitorFilter + "(MonitorID=" + ss +
-					monitors[i].getMonitor() + ss +
-					" AND Site=" + ss +
-					monitors[i].getSite();
-				
-				//If there are not multiple stations this monitor is looking for, add
-				//the station to the selection.
-				if(!monitors[i].getStation().equalsIgnoreCase("multiple"))
-					monitorFilter = monitorFilter + ss + " AND StationID=" + ss +
-						monitors[i].getStation();
-				monitorFilter = monitorFilter + ss + ") OR ";
-			}
-			
-			monitorFilter = monitorFilter + "MonitorID=" + ss +
-				monitors[monitors.length - 1].getMonitor() + ss +
-				" AND Site="+ ss +
-				monitors[monitors.length - 1].getSite();
-			if(!monitors[monitors.length - 1].getStation().equalsIgnoreCase("multiple"))
-				monitorFilter = monitorFilter + ss + " AND StationID=" + ss +
-					monitors[monitors.length - 1].getStation();
-			monitorFilter = monitorFilter + ss + ")";
+			//If there are not multiple stations this monitor is looking for, add
+			//the station to the selection.
+			if(!mi.getStation().equalsIgnoreCase("multiple"))
+				monitorFilter.append(" AND StationID=").append(ss).append(mi.getStation()).append(ss);
+			monitorFilter.append(")");
 		}
-		
-		return monitorFilter;
+		return monitorFilter.append(")").toString();
 	}
 	
-	private java.util.Timer timeoutTimer = new java.util.Timer();
-	
-	/**
-	 * This is a timer task for killing the ShowInfo processes after a given
-	 * amount of time.
-	 * 
-	 * @author Scott Winegarden (scottw@sun.stanford.edu)
-	 *
-	 */
-	private class TimeoutTimerTask
-	extends java.util.TimerTask
-	{
-		private Process processToKill;
-		public TimeoutTimerTask(Process process)
-		{
-			this.processToKill = process;
-		}
-		
-		public void run()
-		{
-			processToKill.destroy();
-		}
-	}
-	
-	/**
-	 * Sets a timeout for the given process, at which point it will be
-	 * killed.
-	 * 
-	 * @param process process to kill.
-	 * @param milliseconds how long to wait to kill it.
-	 */
-	private void setTimeout(Process process, int milliseconds)
+	public void close()
 	{
-		timeoutTimer.schedule(new TimeoutTimerTask(process), milliseconds);
+		//Close connections.  Show Info has no connections, so nothing to close.
+		mirrorTimer.cancel();
+		recentPuller.shutdownNow();
+		tableLoader.shutdownNow();
+		showInfoExecutor.shutdown();
 	}
 	
-	public void close()
+	private static ThreadFactory daemonThreads(final String name)
 	{
-		//Close connections.  Show Info has no connections, so nothing to close.
+		return new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
 	}
 }
@@ -27,11 +27,12 @@ import net.sf.ehcache.*;
  */
 public class GoesDataSource
 {
-	private static final String ARCHIVE_FILE_FORMAT = "yyyy'_events/'yyyyMMdd'events.txt'";
 	private static final String GOES_URL_DATE_FORMAT = "yyyy'/'yyyy'_events/'yyyyMMdd'events.txt'";
 	private static final String GOES_URL_FORMAT = "http://www.swpc.noaa.gov/ftpdir/warehouse/%s";
 	
-	private File _goesArchiveDirectory;
+	private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+	
+	private GoesEventStore store;
 	
 	private Cache goesFileCache;
 	
@@ -52,7 +53,13 @@ public class GoesDataSource
 	{
 		if(context.getInitParameter("goes-archive-directory") != null)
 		{
-			_goesArchiveDirectory = new File(context.getInitParameter("goes-archive-directory"));
+			File storeDirectory = new File(System.getProperty("java.io.tmpdir"), "sid-goes-events");
+			if(context.getInitParameter("goes-event-store-directory") != null)
+			{
+				storeDirectory = new File(context.getInitParameter("goes-event-store-directory"));
+			}
+			
+			store = new GoesEventStore(new File(context.getInitParameter("goes-archive-directory")), storeDirectory);
 		}
 		
 		CacheManager manager = CacheManager.create();
@@ -62,8 +69,7 @@ public class GoesDataSource
 	}
 	
 	/**
-	 * If the goes events file for the given day already exists in the local archive, load the file
-	 * from the disk, otherwise open the file from the GOES website.
+	 * Opens the goes events file for the given day from the GOES website.
 	 * 
 	 * @param date to download the goes data for.
 	 * @return an input stream that contains the goes event list.
@@ -72,104 +78,60 @@ public class GoesDataSource
 	private InputStream getGoesFileURL(Calendar date)
 	throws IOException
 	{
-		DateFormat archiveDateFormat = CalendarUtil.getSimpleDateFormat(ARCHIVE_FILE_FORMAT);
-		File archiveFile = new File(_goesArchiveDirectory, archiveDateFormat.format(date.getTime()));
-		
 		DateFormat urlFormat = CalendarUtil.getSimpleDateFormat(GOES_URL_DATE_FORMAT);
+		URL goesFileURL = new URL(String.format(GOES_URL_FORMAT, urlFormat.format(date.getTime())));
 		
-		//If said file does not exist, connect to the web and download the file.
-		if(!archiveFile.exists())
-		{
-			URL goesFileURL = new URL(String.format(GOES_URL_FORMAT, urlFormat.format(date.getTime())));
-			
-			return goesFileURL.openConnection().getInputStream();
-		}
-		
-		return new FileInputStream(archiveFile);
+		return goesFileURL.openConnection().getInputStream();
 	}
 	
 	/**
 	 * Gets a collection of GoesEvents for the given time range, at the given flare strength.
+	 * 
+	 * The events of days in the local archive come from the event store.  Days the archive
+	 * does not have yet are downloaded from the GOES website, and kept in the cache by UTC day.
 	 */
 	public Collection<GoesEvent> getListForRange(Calendar startTime, Calendar endTime, GoesFlareStrength minimumStrength)
 	{
 		//Our array for return values.
 		ArrayList<GoesEvent> fullEventList = new ArrayList<GoesEvent>();
 		
+		int minimum = minimumStrength == null ? 0 : minimumStrength.encode();
+		
+		if(store != null)
+		{
+			store.query(startTime.getTimeInMillis() / 1000, (endTime.getTimeInMillis() + 999) / 1000, minimum, fullEventList);
+		}
+		
 		for(Calendar date : CalendarUtil.getDaysInRange(startTime, endTime))
 		{
+			if(store != null && store.hasDay(date.getTimeInMillis() / 1000)) continue;
+			
 			//Try loading it from the cache.
-			Element goesFileElement = goesFileCache.get(date);
+			Long day = date.getTimeInMillis() / DAY_MILLIS;
+			Element goesFileElement = goesFileCache.get(day);
 			if(goesFileElement == null || goesFileElement.isExpired())
 			{
 				try
 				{
-					ArrayList<GoesEvent> eventList = new ArrayList<GoesEvent>();
-					
+					GoesEventStore.EventCollector events = new GoesEventStore.EventCollector();
 					
-					try(Scanner goesFileIn = new Scanner(getGoesFileURL(date)))
+					try(InputStream in = getGoesFileURL(date))
 					{
-						while(goesFileIn.hasNextLine())
-						{
-							String line = goesFileIn.nextLine();
-							if(!line.startsWith(":") && !line.startsWith("#") && line.length() > 0 && !line.equals("NO EVENT REPORTS."))
-							{
-								String strength = line.substring(58,62);
-								try
-								{
-									/*
-									 * An event line has fixed line positions, so substring works.
-									 * 
-									 * Example:
-									 * Event    Begin    Max       End  Obs  Q  Type  Loc/Frq   Particulars       Reg#
-									 */
-									String startString = line.substring(11, 15);
-									String maxString = line.substring(18, 22);
-									String endString = line.substring(28, 32);
-									
-									//We duplicate the input date and set hours and minutes form the flare info.
-									Calendar flareStartTime = CalendarUtil.duplicate(date);
-									flareStartTime.set(Calendar.HOUR, Integer.parseInt(startString.substring(0,2)));
-									flareStartTime.set(Calendar.MINUTE, Integer.parseInt(startString.substring(2,4)));
-									
-									Calendar flareMaxTime = CalendarUtil.duplicate(date);
-									flareMaxTime.set(Calendar.HOUR, Integer.parseInt(maxString.substring(0,2)));
-									flareMaxTime.set(Calendar.MINUTE, Integer.parseInt(maxString.substring(2,4)));
-									
-									Calendar flareEndTime = CalendarUtil.duplicate(date);
-									flareEndTime.set(Calendar.HOUR, Integer.parseInt(endString.substring(0,2)));
-									flareEndTime.set(Calendar.MINUTE, Integer.parseInt(endString.substring(2,4)));
-									
-									//Add it to the list of events.
-									//
-									//NOTE: It is here, in the "new GoesFlareStrength(strength)" that valid XRay events only
-									//are added to the list.  If the event does not have a valid XRay event strength, the
-									//constructor will throw an exception, and it will skip adding that event.
-									eventList.add(new GoesEvent(flareStartTime, flareMaxTime, flareEndTime, new GoesFlareStrength(strength)));
-								}catch(Exception e)
-								{
-									//ignored
-								}
-							}
-						}
+						GoesEventStore.parse(in, date.getTimeInMillis() / 1000, events);
 					}
 					
 					//Add the results to the cache.
-					goesFileElement = new Element(date, eventList);
+					goesFileElement = new Element(day, events);
 					goesFileCache.put(goesFileElement);
 				}catch(Exception e)
 				{
 					//ignored
 				}
 			}
-			if(goesFileElement != null) fullEventList.addAll((ArrayList<GoesEvent>)goesFileElement.getObjectValue());
-		}
-		
-		Iterator<GoesEvent> i = fullEventList.iterator();
-		while(i.hasNext())
-		{
-			GoesEvent event = i.next();
-			if(event.getStrength().compareTo(minimumStrength) < 0) i.remove();
+			if(goesFileElement != null)
+			{
+				((GoesEventStore.EventCollector)goesFileElement.getObjectValue()).addTo(fullEventList, minimum);
+			}
 		}
 		
 		return fullEventList;
@@ -0,0 +1,474 @@
+package edu.stanford.sid.eds;
+
+import edu.stanford.sid.util.CalendarUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local store of the GOES events in the archive directory.  The events files
+ * of each year are parsed once into a binary file of events sorted by start time,
+ * which is read back into a few primitive arrays, so a range query is a binary
+ * search and survives restarts.<p>
+ *
+ * A year file is laid out as follows:
+ *
+ * <pre>
+ * int   magic number
+ * int   format version
+ * int   year
+ * int   number of events files read
+ * long  latest modification time of the events files
+ * long  latest modification time of the year directory
+ * ...   6 longs, a bit for each day of the year that had an events file
+ * int   number of events
+ * ...   for each event: int start, int max and int end in seconds after the
+ *       start of the year, and int encoded flare strength
+ * </pre>
+ *
+ * A year file is rebuilt when the events files of its year change.  The archive
+ * is looked at again at most every CHECK_INTERVAL_MILLIS.
+ */
+class GoesEventStore
+{
+	private static final int MAGIC = 0x53494447; // "SIDG"
+	private static final int VERSION = 1;
+
+	private static final String YEAR_DIRECTORY_FORMAT = "%04d_events";
+	private static final String YEAR_FILE_FORMAT = "goes-%04d.events";
+
+	/**
+	 * How long a year is used before the archive is checked for changes.
+	 */
+	static final long CHECK_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+	private static final long DAY_SECONDS = 24 * 60 * 60;
+
+	/**
+	 * The events of one year, sorted by start time.
+	 */
+	private static class Year
+	{
+		private int year;
+		private long yearStartSeconds;
+		private int fileCount;
+		private long filesModified;
+		private long directoryModified;
+		private BitSet days = new BitSet(366);
+
+		private int[] starts = new int[0];
+		private int[] maxes = new int[0];
+		private int[] ends = new int[0];
+		private int[] strengths = new int[0];
+
+		/**
+		 * The longest event, to know how far before a range to look.
+		 */
+		private int maxDuration;
+
+		private volatile long checked;
+	}
+
+	private File archiveDirectory;
+	private File storeDirectory;
+
+	private ConcurrentHashMap<Integer, Year> years = new ConcurrentHashMap<Integer, Year>();
+
+	/**
+	 * Creates a store of the events files in the archive directory, keeping its
+	 * year files in the store directory.
+	 */
+	GoesEventStore(File archiveDirectory, File storeDirectory)
+	{
+		this.archiveDirectory = archiveDirectory;
+		this.storeDirectory = storeDirectory;
+	}
+
+	/**
+	 * @return true if the archive has an events file for the day starting at the
+	 * given UTC epoch second.
+	 */
+	boolean hasDay(long dayStartSeconds)
+	{
+		Calendar day = CalendarUtil.getCalendar();
+		day.setTimeInMillis(dayStartSeconds * 1000);
+		Year year = getYear(day.get(Calendar.YEAR));
+		return year.days.get(day.get(Calendar.DAY_OF_YEAR) - 1);
+	}
+
+	/**
+	 * Finds the events that overlap the given range and are at least as strong as
+	 * the given encoded strength.
+	 *
+	 * @param startSeconds the UTC epoch second the range starts at.
+	 * @param endSeconds the UTC epoch second the range ends at.
+	 * @param minimumStrength the weakest flare to return, as encoded by
+	 * GoesFlareStrength.encode.
+	 * @param events receives the events found.
+	 */
+	void query(long startSeconds, long endSeconds, int minimumStrength, List<GoesEvent> events)
+	{
+		Calendar calendar = CalendarUtil.getCalendar();
+		calendar.setTimeInMillis(startSeconds * 1000);
+		int firstYear = calendar.get(Calendar.YEAR);
+		calendar.setTimeInMillis((endSeconds - 1) * 1000);
+		int lastYear = calendar.get(Calendar.YEAR);
+
+		//An event that started at the end of the year before may reach into the range.
+		for(int y = firstYear - 1;y <= lastYear;y++)
+		{
+			Year year = getYear(y);
+
+			long from = startSeconds - year.yearStartSeconds - year.maxDuration;
+			int i = Arrays.binarySearch(year.starts, (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, from)));
+			if(i < 0)
+			{
+				i = -i - 1;
+			}else
+			{
+				//Step back to the first of several events with the same start.
+				while(i > 0 && year.starts[i - 1] == year.starts[i]) i--;
+			}
+
+			for(;i < year.starts.length;i++)
+			{
+				long eventStart = year.yearStartSeconds + year.starts[i];
+				if(eventStart >= endSeconds) break;
+				if(year.yearStartSeconds + year.ends[i] <= startSeconds) continue;
+				if(year.strengths[i] < minimumStrength) continue;
+
+				events.add(new GoesEvent(toCalendar(eventStart),
+						toCalendar(year.yearStartSeconds + year.ends[i]),
+						toCalendar(year.yearStartSeconds + year.maxes[i]),
+						GoesFlareStrength.decode(year.strengths[i])));
+			}
+		}
+	}
+
+	/**
+	 * Parses the events of a NOAA events file.  Only X-ray events with a valid
+	 * flare strength are kept.  An event that ends or peaks after midnight is
+	 * moved to the next day.
+	 *
+	 * @param in the events file.
+	 * @param dayStartSeconds the UTC epoch second the day of the file starts at.
+	 * @param events receives the start, max and end epoch seconds and encoded
+	 * strength of each event.
+	 */
+	static void parse(InputStream in, long dayStartSeconds, EventCollector events)
+	throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			if(line.startsWith(":") || line.startsWith("#") || line.length() == 0 || line.equals("NO EVENT REPORTS.")) continue;
+
+			try
+			{
+				/*
+				 * An event line has fixed line positions, so substring works.
+				 *
+				 * Example:
+				 * Event    Begin    Max       End  Obs  Q  Type  Loc/Frq   Particulars       Reg#
+				 */
+				int strength = new GoesFlareStrength(line.substring(58, 62)).encode();
+
+				long start = dayStartSeconds + parseTime(line, 11);
+				long max = dayStartSeconds + parseTime(line, 18);
+				long end = dayStartSeconds + parseTime(line, 28);
+				if(max < start) max += DAY_SECONDS;
+				if(end < start) end += DAY_SECONDS;
+
+				events.add(start, max, end, strength);
+			}catch(Exception e)
+			{
+				//Not an X-ray event, or not a complete one.
+			}
+		}
+	}
+
+	/**
+	 * Collects parsed events into growing primitive columns.
+	 */
+	static class EventCollector
+	{
+		private long[] starts = new long[256];
+		private long[] maxes = new long[256];
+		private long[] ends = new long[256];
+		private int[] strengths = new int[256];
+		private int size = 0;
+
+		void add(long start, long max, long end, int strength)
+		{
+			if(size == starts.length)
+			{
+				starts = Arrays.copyOf(starts, size * 2);
+				maxes = Arrays.copyOf(maxes, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				strengths = Arrays.copyOf(strengths, size * 2);
+			}
+			starts[size] = start;
+			maxes[size] = max;
+			ends[size] = end;
+			strengths[size] = strength;
+			size++;
+		}
+
+		/**
+		 * Adds the events at least as strong as the given encoded strength to
+		 * the list.
+		 */
+		void addTo(List<GoesEvent> events, int minimumStrength)
+		{
+			for(int i = 0;i < size;i++)
+			{
+				if(strengths[i] < minimumStrength) continue;
+				events.add(new GoesEvent(toCalendar(starts[i]), toCalendar(ends[i]), toCalendar(maxes[i]),
+						GoesFlareStrength.decode(strengths[i])));
+			}
+		}
+	}
+
+	/**
+	 * @return the seconds after midnight of the HHMM time at the given position.
+	 */
+	private static int parseTime(String line, int position)
+	{
+		int hours = Integer.parseInt(line.substring(position, position + 2));
+		int minutes = Integer.parseInt(line.substring(position + 2, position + 4));
+		return hours * 3600 + minutes * 60;
+	}
+
+	private static Calendar toCalendar(long epochSeconds)
+	{
+		Calendar calendar = CalendarUtil.getCalendar();
+		calendar.setTimeInMillis(epochSeconds * 1000);
+		return calendar;
+	}
+
+	/**
+	 * Gets the events of a year, reading its year file, or building it if the
+	 * events files of the year changed since it was written.
+	 */
+	private Year getYear(int y)
+	{
+		Year year = years.get(y);
+		if(year != null && System.currentTimeMillis() - year.checked < CHECK_INTERVAL_MILLIS) return year;
+
+		synchronized(this)
+		{
+			year = years.get(y);
+			if(year != null && System.currentTimeMillis() - year.checked < CHECK_INTERVAL_MILLIS) return year;
+
+			File directory = new File(archiveDirectory, String.format(YEAR_DIRECTORY_FORMAT, y));
+			File[] files = directory.listFiles();
+			if(files == null) files = new File[0];
+
+			int fileCount = 0;
+			long filesModified = 0;
+			for(File f : files)
+			{
+				if(!f.getName().endsWith("events.txt")) continue;
+				fileCount++;
+				filesModified = Math.max(filesModified, f.lastModified());
+			}
+
+			if(year == null || year.fileCount != fileCount || year.filesModified != filesModified
+					|| year.directoryModified != directory.lastModified())
+			{
+				File yearFile = new File(storeDirectory, String.format(YEAR_FILE_FORMAT, y));
+				year = read(yearFile);
+				if(year == null || year.year != y || year.fileCount != fileCount || year.filesModified != filesModified
+						|| year.directoryModified != directory.lastModified())
+				{
+					year = build(y, directory, files, fileCount, filesModified);
+					try
+					{
+						write(yearFile, year);
+					}catch(IOException e)
+					{
+						//A year file that cannot be written only costs the next start a parse.
+					}
+				}
+			}
+
+			year.checked = System.currentTimeMillis();
+			years.put(y, year);
+			return year;
+		}
+	}
+
+	/**
+	 * Parses every events file of a year into a Year.
+	 */
+	private static Year build(int y, File directory, File[] files, int fileCount, long filesModified)
+	{
+		Year year = new Year();
+		year.year = y;
+		year.yearStartSeconds = CalendarUtil.getCalendar(y, 0, 1).getTimeInMillis() / 1000;
+		year.fileCount = fileCount;
+		year.filesModified = filesModified;
+		year.directoryModified = directory.lastModified();
+
+		EventCollector collector = new EventCollector();
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(!name.endsWith("events.txt")) continue;
+
+			try
+			{
+				//The files are named yyyyMMddevents.txt.
+				Calendar day = CalendarUtil.getCalendar(Integer.parseInt(name.substring(0, 4)),
+						Integer.parseInt(name.substring(4, 6)) - 1, Integer.parseInt(name.substring(6, 8)));
+				try(InputStream in = new BufferedInputStream(new FileInputStream(f)))
+				{
+					parse(in, day.getTimeInMillis() / 1000, collector);
+				}
+				year.days.set(day.get(Calendar.DAY_OF_YEAR) - 1);
+			}catch(Exception e)
+			{
+				//Not an events file we can read.
+			}
+		}
+
+		//Sort the events by start time.
+		Integer[] order = new Integer[collector.size];
+		for(int i = 0;i < order.length;i++) order[i] = i;
+		final long[] starts = collector.starts;
+		Arrays.sort(order, new java.util.Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				return Long.compare(starts[a], starts[b]);
+			}
+		});
+
+		year.starts = new int[order.length];
+		year.maxes = new int[order.length];
+		year.ends = new int[order.length];
+		year.strengths = new int[order.length];
+		for(int i = 0;i < order.length;i++)
+		{
+			int e = order[i];
+			year.starts[i] = (int)(collector.starts[e] - year.yearStartSeconds);
+			year.maxes[i] = (int)(collector.maxes[e] - year.yearStartSeconds);
+			year.ends[i] = (int)(collector.ends[e] - year.yearStartSeconds);
+			year.strengths[i] = collector.strengths[e];
+			year.maxDuration = Math.max(year.maxDuration, year.ends[i] - year.starts[i]);
+		}
+
+		return year;
+	}
+
+	/**
+	 * Reads a year file.
+	 *
+	 * @return the year, or null if the file is missing or damaged.
+	 */
+	private static Year read(File yearFile)
+	{
+		if(!yearFile.exists()) return null;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(yearFile), 65536)))
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+			Year year = new Year();
+			year.year = in.readInt();
+			year.yearStartSeconds = CalendarUtil.getCalendar(year.year, 0, 1).getTimeInMillis() / 1000;
+			year.fileCount = in.readInt();
+			year.filesModified = in.readLong();
+			year.directoryModified = in.readLong();
+
+			long[] days = new long[6];
+			for(int i = 0;i < days.length;i++) days[i] = in.readLong();
+			year.days = BitSet.valueOf(days);
+
+			int count = in.readInt();
+			year.starts = new int[count];
+			year.maxes = new int[count];
+			year.ends = new int[count];
+			year.strengths = new int[count];
+			for(int i = 0;i < count;i++)
+			{
+				year.starts[i] = in.readInt();
+				year.maxes[i] = in.readInt();
+				year.ends[i] = in.readInt();
+				year.strengths[i] = in.readInt();
+				year.maxDuration = Math.max(year.maxDuration, year.ends[i] - year.starts[i]);
+			}
+			return year;
+		}catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a year file through a temporary file, so readers never see a
+	 * partially written one.
+	 */
+	private void write(File yearFile, Year year)
+	throws IOException
+	{
+		if(!storeDirectory.isDirectory() && !storeDirectory.mkdirs())
+		{
+			throw new IOException("Cannot create GOES event store directory: " + storeDirectory);
+		}
+
+		File temp = File.createTempFile(yearFile.getName(), ".temp", storeDirectory);
+		try
+		{
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536)))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(year.year);
+				out.writeInt(year.fileCount);
+				out.writeLong(year.filesModified);
+				out.writeLong(year.directoryModified);
+
+				long[] days = Arrays.copyOf(year.days.toLongArray(), 6);
+				for(long d : days) out.writeLong(d);
+
+				out.writeInt(year.starts.length);
+				for(int i = 0;i < year.starts.length;i++)
+				{
+					out.writeInt(year.starts[i]);
+					out.writeInt(year.maxes[i]);
+					out.writeInt(year.ends[i]);
+					out.writeInt(year.strengths[i]);
+				}
+			}
+
+			if(!temp.renameTo(yearFile))
+			{
+				yearFile.delete();
+				if(!temp.renameTo(yearFile))
+				{
+					throw new IOException("Cannot replace GOES year file: " + yearFile);
+				}
+			}
+		}finally
+		{
+			temp.delete();
+		}
+	}
+}
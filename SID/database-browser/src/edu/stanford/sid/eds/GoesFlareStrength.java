@@ -47,6 +47,30 @@ implements Comparable<GoesFlareStrength>
 		relativeStrength = Double.parseDouble(strength.substring(1,4));
 	}
 	
+	private GoesFlareStrength(FlareCategory category, double relativeStrength)
+	{
+		this.category = category;
+		this.relativeStrength = relativeStrength;
+	}
+	
+	/**
+	 * Encodes the flare strength as an int, with the category in the high bits and
+	 * tenths of the relative strength in the low bits, so encoded strengths compare
+	 * the same way the flare strengths do.
+	 */
+	int encode()
+	{
+		return category.ordinal() << 16 | (int)Math.round(relativeStrength * 10);
+	}
+	
+	/**
+	 * Decodes a flare strength encoded by encode.
+	 */
+	static GoesFlareStrength decode(int encoded)
+	{
+		return new GoesFlareStrength(FlareCategory.values()[encoded >>> 16], (encoded & 0xFFFF) / 10.0);
+	}
+	
 	/**
 	 * Compares two flare strengths.
 	 */
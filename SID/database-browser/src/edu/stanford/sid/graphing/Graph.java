@@ -9,8 +9,6 @@ import java.awt.Font;
 import java.awt.RenderingHints;
 import java.awt.geom.Rectangle2D;
 
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Map;
@@ -22,6 +20,9 @@ import java.util.TimeZone;
 
 import edu.stanford.sid.*;
 import edu.stanford.sid.database.MonitorInfo;
+import edu.stanford.sid.samples.PyramidLevel;
+import edu.stanford.sid.samples.SampleSet;
+import edu.stanford.sid.samples.SampleSidecar;
 import edu.stanford.sid.util.*;
 
 /**
@@ -342,7 +343,7 @@ public class Graph
 	 * This graphs the given data file in the given color.
 	 */
 	private void plotFile(Graphics g, DataFile f, Color c)
-	throws IOException, java.text.ParseException
+	throws IOException
 	{try{
 		g.setColor(c);
 		
@@ -362,75 +363,121 @@ public class Graph
         }catch(Exception e){//If there is any problem with this step assume Normal SID.
 		}
         
-        try(BufferedReader in = new BufferedReader(new FileReader(f.getFile())))
-        {
-		
-        	//Get the start seconds end seconds and width for the graph.
-        	long xStartSeconds = startTime.getTimeInMillis() / 1000;
-        	long xEndSeconds = endTime.getTimeInMillis() / 1000;
-        	int xWidthSeconds = (int) (xEndSeconds - xStartSeconds);
-		
-        	//This provides precision for the width and height.
-        	double xMod = g.getClipBounds().width / (double)xWidthSeconds;
-        	double yMod = (double)g.getClipBounds().height;
+        //Get the start seconds end seconds and width for the graph.
+        long xStartSeconds = startTime.getTimeInMillis() / 1000;
+        long xEndSeconds = endTime.getTimeInMillis() / 1000;
+        int xWidthSeconds = (int) (xEndSeconds - xStartSeconds);
 		
-        	//Set up some starting variables.
-        	int previousDataX = -1;
-        	int previousMin = Integer.MAX_VALUE;
-        	int previousMax = Integer.MIN_VALUE;
-        	int previousDataY = -1;
-		
-        	String line;
-		
-        	do
+        ColumnPlotter plotter = new ColumnPlotter(g, xStartSeconds, xWidthSeconds, yMin, yMax);
+        
+        //If a pixel spans enough seconds, draw from the pyramid level closest to the pixel width.
+        PyramidLevel level = SampleSidecar.getPyramidLevel(f, xWidthSeconds / (double)g.getClipBounds().width);
+        if(level != null)
+        {
+        	for(int i = 0;i < level.size();i++)
         	{
-        		in.mark(256); //mark(int) lets the input stream be reset() to the location it was marked at.
-        	}while(in.readLine().startsWith("#")); //Skip all lines with # at the start.
+        		long bucketStart = level.getStart(i);
+        		plotter.plot(bucketStart, level.getFirst(i));
+        		plotter.plot(bucketStart, level.getMin(i));
+        		plotter.plot(bucketStart, level.getMax(i));
+        		plotter.plot(bucketStart, level.getLast(i));
+        	}
+        }else
+        {
+        	SampleSet samples = SampleSidecar.getSamples(f);
+        	for(int i = 0;i < samples.size();i++)
+        	{
+        		plotter.plot(samples.getSeconds(i), samples.getValue(i));
+        	}
+        }
 		
-        	in.reset();
+        //When we are done, finish the graph by plotting the range of the last X location.
+        plotter.finish();
+	}finally{
+		g.dispose();
+	}}
+	
+	/**
+	 * Collapses the points of a file into one vertical line per pixel column, from
+	 * the smallest to the largest value in that column, joined to the next column
+	 * by a line from the last point of the column.
+	 */
+	private static class ColumnPlotter
+	{
+		private Graphics g;
+		private long xStartSeconds;
+		private double xMod;
+		private double yMod;
+		private int height;
+		private double yMin;
+		private double yMax;
+		
+		//Set up some starting variables.
+		private int previousDataX = -1;
+		private int previousMin = Integer.MAX_VALUE;
+		private int previousMax = Integer.MIN_VALUE;
+		private int previousDataY = -1;
+		
+		public ColumnPlotter(Graphics g, long xStartSeconds, int xWidthSeconds, double yMin, double yMax)
+		{
+			this.g = g;
+			this.xStartSeconds = xStartSeconds;
+			this.yMin = yMin;
+			this.yMax = yMax;
+			
+			//This provides precision for the width and height.
+			height = g.getClipBounds().height;
+			xMod = g.getClipBounds().width / (double)xWidthSeconds;
+			yMod = (double)height;
+		}
 		
-        	while(null != (line = in.readLine()))  // in.readLine() is stored in line, then if it is not null we enter the loop.
-        	{	
-        		//Parse the line into integers assuming -5 to 5 is the range.
-        		int dataSeconds = (int)(secondsFor(line) - xStartSeconds);
+		/**
+		 * Adds a point at the given epoch second to the graph.
+		 */
+		public void plot(long seconds, double value)
+		{
+			//Scale the point into the graph assuming yMin to yMax is the range.
+			int dataSeconds = (int)(seconds - xStartSeconds);
 			
-        		double dataPoint = (Double.parseDouble(line.substring(21)) - yMin) / (yMax - yMin);
-        		//Multiplying these integers wtih the X and Y modifiers gets us pixels.
-        		int x = (int)(dataSeconds * xMod);
-        		int y = (int)(g.getClipBounds().height - dataPoint * yMod);
+			double dataPoint = (value - yMin) / (yMax - yMin);
+			//Multiplying these integers wtih the X and Y modifiers gets us pixels.
+			int x = (int)(dataSeconds * xMod);
+			int y = (int)(height - dataPoint * yMod);
 			
-        		//If our previous X coordinate is different than our current, then we have moved right one pixel on the graph.
-        		if(previousDataX != x)
-        		{
-        			//If our previous Y datapoint is not -1 (the first), then we need to draw the range the previous X location,
-        			//then draw the line connecting the previous X to the current X.
-        			if(previousDataY != -1)
-        			{
-        				g.drawLine(previousDataX, previousMin, previousDataX, previousMax);
-        				g.drawLine(previousDataX, previousDataY, x, y);
-        			}
+			//If our previous X coordinate is different than our current, then we have moved right one pixel on the graph.
+			if(previousDataX != x)
+			{
+				//If our previous Y datapoint is not -1 (the first), then we need to draw the range the previous X location,
+				//then draw the line connecting the previous X to the current X.
+				if(previousDataY != -1)
+				{
+					g.drawLine(previousDataX, previousMin, previousDataX, previousMax);
+					g.drawLine(previousDataX, previousDataY, x, y);
+				}
 				
-        			//We now have a new previous min and max.
-        			previousMin = y;
-        			previousMax = y;
-        		}else
-        		{
-        			//Otherwise, update the min and max to reflect the new point.
-        			previousMin = Math.min(previousMin, y);
-        			previousMax = Math.max(previousMax, y);
-        		}			
+				//We now have a new previous min and max.
+				previousMin = y;
+				previousMax = y;
+			}else
+			{
+				//Otherwise, update the min and max to reflect the new point.
+				previousMin = Math.min(previousMin, y);
+				previousMax = Math.max(previousMax, y);
+			}
 			
-        		//Finally update the previousDataX and previousDataY.
-        		previousDataX = x;
-        		previousDataY = y;
-        	}
+			//Finally update the previousDataX and previousDataY.
+			previousDataX = x;
+			previousDataY = y;
+		}
 		
-        	//When we are done, finish the graph by plotting the range of the last X location.
-        	g.drawLine(previousDataX, previousMin, previousDataX, previousMax);
-        }
-	}finally{
-		g.dispose();
-	}}
+		/**
+		 * Draws the range of the last pixel column.
+		 */
+		public void finish()
+		{
+			g.drawLine(previousDataX, previousMin, previousDataX, previousMax);
+		}
+	}
 	
 	/**
 	 * This cycles through the overlays and draws them to the graph.
@@ -468,30 +515,5 @@ public class Graph
 		overlays.add(overlayToAdd);
 	}
 	
-	private Calendar temporaryCalendar = edu.stanford.sid.util.CalendarUtil.getCalendar();
-	private String dateHour;
-	private long dateHourSeconds;
 	private java.util.ArrayList<Overlay> overlays = new java.util.ArrayList<Overlay>();
-	
-	//Converts a valid SID file element's time into seconds UTC.
-	private long secondsFor(String s)
-	{
-		//If the year, month, day, hour, and minute don't equal the previous request, update the previous request.
-		//In 5 second data, this cuts the number of full integer parses, and calendar calculations down to 1/12.
-		if(!s.substring(0, 16).equals(dateHour))
-		{
-			dateHour = s.substring(0, 16);
-			temporaryCalendar.clear();
-			temporaryCalendar.set(Integer.parseInt(s.substring(0, 4)),
-								  Integer.parseInt(s.substring(5, 7)) - 1,
-								  Integer.parseInt(s.substring(8, 10)),
-								  Integer.parseInt(s.substring(11, 13)),
-								  Integer.parseInt(s.substring(14, 16)));
-			dateHourSeconds = temporaryCalendar.getTimeInMillis() / 1000;
-		}
-		
-		//Then parse the seconds and add it to the previous ymdh&m.
-		return dateHourSeconds +
-			   Integer.parseInt(s.substring(17, 19));
-	}
 }
@@ -1,11 +1,12 @@
 package edu.stanford.sid.graphing;
 
 import edu.stanford.sid.DataFile;
+import edu.stanford.sid.samples.SampleSet;
+import edu.stanford.sid.samples.SampleSidecar;
 
 import java.awt.*;
 import java.awt.image.*;
 import java.util.*;
-import java.io.*;
 	
 public class HourglassGraph
 {
@@ -36,33 +37,25 @@ public class HourglassGraph
 		{
 			if(!f.getStartTime().before(_startDate) && !f.getEndTime().after(_endDate))
 			{
-				try(BufferedReader in = new BufferedReader(new FileReader(f.getFile())))
+				try
 				{
-					
-					do
-					{
-						in.mark(256); //mark(int) lets the input stream be reset() to the location it was marked at.
-					}while(in.readLine().startsWith("#")); //Skip all lines with # at the start.
-					
-					in.reset();
+					SampleSet samples = SampleSidecar.getSamples(f);
 					
 					Graphics2D g = drawingImage.createGraphics();
 					
-					String line;
-					
 					ArrayList<Double> dataPointsForPixel = new ArrayList<Double>();
 					
 					int previousX = 0;
 					
-					while(null != (line = in.readLine()))  // in.readLine() is stored in line, then if it is not null we enter the loop.
+					for(int i = 0;i < samples.size();i++)
 					{
-						int dataSeconds = (int)(secondsFor(line) - firstDaySeconds);
+						int dataSeconds = (int)(samples.getSeconds(i) - firstDaySeconds);
 						
 						int day = dataSeconds / SECONDS_IN_DAY;
 						int secondsIntoDay = dataSeconds % SECONDS_IN_DAY;
 						
-						//double dataPoint = (Double.parseDouble(line.substring(21)) - 10000000.000) / 100000000.000;
-						double dataPoint = (Double.parseDouble(line.substring(21)) + 5d) / 10d;
+						//double dataPoint = (samples.getValue(i) - 10000000.000) / 100000000.000;
+						double dataPoint = (samples.getValue(i) + 5d) / 10d;
 						
 						
 						dataPointsForPixel.add(dataPoint);
@@ -97,30 +90,4 @@ public class HourglassGraph
 		
 		return drawingImage;
 	}
-	
-	private Calendar temporaryCalendar = edu.stanford.sid.util.CalendarUtil.getCalendar();
-	private String dateHour;
-	private long dateHourSeconds;
-	
-	//Converts a valid SID file element's time into seconds UTC.
-	private long secondsFor(String s)
-	{
-		//If the year, month, day, hour, and minute don't equal the previous request, update the previous request.
-		//In 5 second data, this cuts the number of full integer parses, and calendar calculations down to 1/12.
-		if(!s.substring(0, 16).equals(dateHour))
-		{
-			dateHour = s.substring(0, 16);
-			temporaryCalendar.clear();
-			temporaryCalendar.set(Integer.parseInt(s.substring(0, 4)),
-								  Integer.parseInt(s.substring(5, 7)) - 1,
-								  Integer.parseInt(s.substring(8, 10)),
-								  Integer.parseInt(s.substring(11, 13)),
-								  Integer.parseInt(s.substring(14, 16)));
-			dateHourSeconds = temporaryCalendar.getTimeInMillis() / 1000;
-		}
-		
-		//Then parse the seconds and add it to the previous ymdh&m.
-		return dateHourSeconds +
-			   Integer.parseInt(s.substring(17, 19));
-	}
 }
@@ -0,0 +1,85 @@
+package edu.stanford.sid.samples;
+
+/**
+ * One level of a SamplePyramid.  The samples of a data file are grouped into
+ * buckets of bucketSeconds aligned to the epoch, and each bucket that has samples
+ * keeps the minimum, maximum, first and last value in it.  Empty buckets are not
+ * stored, so gaps in the data stay gaps.
+ */
+public class PyramidLevel
+{
+	private int bucketSeconds;
+	private long[] starts;
+	private float[] min;
+	private float[] max;
+	private float[] first;
+	private float[] last;
+	private int size;
+
+	PyramidLevel(int bucketSeconds, long[] starts, float[] min, float[] max, float[] first, float[] last, int size)
+	{
+		this.bucketSeconds = bucketSeconds;
+		this.starts = starts;
+		this.min = min;
+		this.max = max;
+		this.first = first;
+		this.last = last;
+		this.size = size;
+	}
+
+	/**
+	 * @return the width of each bucket in seconds.
+	 */
+	public int getBucketSeconds()
+	{
+		return bucketSeconds;
+	}
+
+	/**
+	 * @return the number of buckets in the level.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the UTC epoch second the bucket at the given index starts at.
+	 */
+	public long getStart(int index)
+	{
+		return starts[index];
+	}
+
+	/**
+	 * @return the smallest value in the bucket.
+	 */
+	public float getMin(int index)
+	{
+		return min[index];
+	}
+
+	/**
+	 * @return the largest value in the bucket.
+	 */
+	public float getMax(int index)
+	{
+		return max[index];
+	}
+
+	/**
+	 * @return the first value in the bucket.
+	 */
+	public float getFirst(int index)
+	{
+		return first[index];
+	}
+
+	/**
+	 * @return the last value in the bucket.
+	 */
+	public float getLast(int index)
+	{
+		return last[index];
+	}
+}
@@ -0,0 +1,16 @@
+package edu.stanford.sid.samples;
+
+/**
+ * Receives the samples of a SID data file as they are parsed.  The parser calls
+ * sample once for each data line, in file order.
+ */
+public interface SampleHandler
+{
+	/**
+	 * Called for each sample in the data file.
+	 *
+	 * @param epochSecond the UTC epoch second of the sample.
+	 * @param value the value of the sample.
+	 */
+	public void sample(long epochSecond, double value);
+}
@@ -0,0 +1,285 @@
+package edu.stanford.sid.samples;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the data lines of a SID data file directly from a memory mapped copy of
+ * the file.  Each line has the form:
+ *
+ * <pre>
+ * 2006-07-05 00:00:05, 1.234567
+ * </pre>
+ *
+ * The parser walks the mapped bytes once, and passes each sample to a SampleHandler
+ * as a primitive epoch second and value, so no objects are created per line.  Comment
+ * lines, blank lines and lines that cannot be parsed are skipped.
+ */
+public class SampleParser
+{
+	private static final int SECONDS_IN_DAY = 60 * 60 * 24;
+
+	//Length of "yyyy-MM-dd HH:mm:ss".
+	private static final int TIMESTAMP_LENGTH = 19;
+
+	//Powers of ten that are exactly representable as doubles.
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private MappedByteBuffer buffer;
+	private int limit;
+
+	//The date of the previous line, so the day number is only recalculated when the date changes.
+	private int previousYear = -1;
+	private int previousMonth = -1;
+	private int previousDay = -1;
+	private long previousDaySeconds;
+
+	//The end of the number parsed by the last call to parseValue.
+	private int valueEnd;
+
+	/**
+	 * Parses the data file, passing each sample to the handler.
+	 *
+	 * @param file the data file to parse.
+	 * @param handler receives each sample in file order.
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	public static void parse(File file, SampleHandler handler)
+	throws IOException
+	{
+		try(RandomAccessFile in = new RandomAccessFile(file, "r");
+			FileChannel channel = in.getChannel())
+		{
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+			{
+				throw new IOException("Data file too large to map: " + file);
+			}
+			if(size == 0) return;
+
+			new SampleParser(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).parse(handler);
+		}
+	}
+
+	private SampleParser(MappedByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.limit = buffer.limit();
+	}
+
+	/**
+	 * Walks the buffer one line at a time.
+	 */
+	private void parse(SampleHandler handler)
+	{
+		int position = 0;
+		while(position < limit)
+		{
+			int lineEnd = position;
+			while(lineEnd < limit && buffer.get(lineEnd) != '\n')
+			{
+				lineEnd++;
+			}
+
+			if(buffer.get(position) != '#')
+			{
+				parseLine(position, lineEnd, handler);
+			}
+
+			position = lineEnd + 1;
+		}
+	}
+
+	/**
+	 * Parses a single data line between start and end, and passes it to the
+	 * handler if it is a valid sample.
+	 */
+	private void parseLine(int start, int end, SampleHandler handler)
+	{
+		if(end - start < TIMESTAMP_LENGTH + 2) return;
+
+		int year = digits(start, 4);
+		int month = digits(start + 5, 2);
+		int day = digits(start + 8, 2);
+		int hour = digits(start + 11, 2);
+		int minute = digits(start + 14, 2);
+		int second = digits(start + 17, 2);
+		if((year | month | day | hour | minute | second) < 0) return;
+
+		//Skip the separator between the time and the value.
+		int position = start + TIMESTAMP_LENGTH;
+		while(position < end && isSeparator(buffer.get(position)))
+		{
+			position++;
+		}
+		if(position == end) return;
+
+		double value = parseValue(position, end);
+		if(valueEnd == position) return;
+
+		if(year != previousYear || month != previousMonth || day != previousDay)
+		{
+			previousYear = year;
+			previousMonth = month;
+			previousDay = day;
+			previousDaySeconds = daysFromCivil(year, month, day) * SECONDS_IN_DAY;
+		}
+
+		handler.sample(previousDaySeconds + hour * 3600 + minute * 60 + second, value);
+	}
+
+	/**
+	 * @return the value of count decimal digits starting at position, or -1 if
+	 * any of them is not a digit.
+	 */
+	private int digits(int position, int count)
+	{
+		int value = 0;
+		for(int i = 0;i < count;i++)
+		{
+			int digit = buffer.get(position + i) - '0';
+			if(digit < 0 || digit > 9) return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static boolean isSeparator(byte b)
+	{
+		return b == ',' || b == ' ' || b == '\t';
+	}
+
+	/**
+	 * Parses a decimal number starting at position.  The end of the number is
+	 * left in valueEnd, which equals position if no number was found.  Numbers
+	 * that cannot be converted exactly from their digits fall back to
+	 * Double.parseDouble.
+	 */
+	private double parseValue(int position, int end)
+	{
+		int start = position;
+		boolean negative = false;
+
+		byte b = buffer.get(position);
+		if(b == '-' || b == '+')
+		{
+			negative = b == '-';
+			position++;
+		}
+
+		long mantissa = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean sawDigit = false;
+		boolean exact = true;
+
+		//Integer part.
+		while(position < end && (b = buffer.get(position)) >= '0' && b <= '9')
+		{
+			sawDigit = true;
+			if(significantDigits < 18)
+			{
+				mantissa = mantissa * 10 + (b - '0');
+				if(mantissa != 0) significantDigits++;
+			}else
+			{
+				exponent++;
+				exact = false;
+			}
+			position++;
+		}
+
+		//Fractional part.
+		if(position < end && buffer.get(position) == '.')
+		{
+			position++;
+			while(position < end && (b = buffer.get(position)) >= '0' && b <= '9')
+			{
+				sawDigit = true;
+				if(significantDigits < 18)
+				{
+					mantissa = mantissa * 10 + (b - '0');
+					if(mantissa != 0) significantDigits++;
+					exponent--;
+				}else
+				{
+					exact = false;
+				}
+				position++;
+			}
+		}
+
+		if(!sawDigit)
+		{
+			valueEnd = start;
+			return 0;
+		}
+
+		//Exponent.
+		if(position < end && ((b = buffer.get(position)) == 'e' || b == 'E'))
+		{
+			int exponentStart = position;
+			position++;
+			boolean negativeExponent = false;
+			if(position < end && ((b = buffer.get(position)) == '-' || b == '+'))
+			{
+				negativeExponent = b == '-';
+				position++;
+			}
+
+			int explicitExponent = 0;
+			boolean sawExponentDigit = false;
+			while(position < end && (b = buffer.get(position)) >= '0' && b <= '9')
+			{
+				sawExponentDigit = true;
+				if(explicitExponent < 10000) explicitExponent = explicitExponent * 10 + (b - '0');
+				position++;
+			}
+
+			if(sawExponentDigit)
+			{
+				exponent += negativeExponent ? -explicitExponent : explicitExponent;
+			}else
+			{
+				position = exponentStart;
+			}
+		}
+
+		valueEnd = position;
+
+		double value;
+		if(exact && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22)
+		{
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		//Rare case, let the JDK round it correctly.
+		byte[] text = new byte[position - start];
+		for(int i = 0;i < text.length;i++)
+		{
+			text[i] = buffer.get(start + i);
+		}
+		return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Converts a proleptic Gregorian date into days since 1970-01-01.
+	 */
+	private static long daysFromCivil(int year, int month, int day)
+	{
+		year -= month <= 2 ? 1 : 0;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
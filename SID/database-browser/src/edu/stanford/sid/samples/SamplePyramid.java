@@ -0,0 +1,271 @@
+package edu.stanford.sid.samples;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A multi-resolution summary of the samples of a data file.  Each level holds the
+ * minimum, maximum, first and last value of buckets twice as wide as the level
+ * below it, from MIN_BUCKET_SECONDS up to MAX_BUCKET_SECONDS.  A graph that spans
+ * many seconds per pixel can read the single level that matches its resolution
+ * instead of every sample of the file.<p>
+ *
+ * A pyramid file is laid out as follows:
+ *
+ * <pre>
+ * int   magic number
+ * int   format version
+ * long  length of the data file
+ * long  modification time of the data file
+ * int   number of levels
+ * ...   for each level: int bucket seconds, int bucket count, long offset of the level data
+ * ...   for each level: long epoch second of the first bucket, then for each bucket
+ *       int seconds after the first bucket, float min, float max, float first, float last
+ * </pre>
+ */
+public class SamplePyramid
+{
+	/**
+	 * The width of the buckets in the finest level.
+	 */
+	public static final int MIN_BUCKET_SECONDS = 1 << 4;
+
+	/**
+	 * The width of the buckets in the coarsest level.
+	 */
+	public static final int MAX_BUCKET_SECONDS = 1 << 16;
+
+	private static final int MAGIC = 0x53494450; // "SIDP"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 4;
+	private static final int LEVEL_ENTRY_LENGTH = 4 + 4 + 8;
+	private static final int BUCKET_LENGTH = 4 + 4 * 4;
+
+	private ArrayList<PyramidLevel> levels = new ArrayList<PyramidLevel>();
+
+	/**
+	 * Builds the pyramid for the given samples.  The samples are expected to be
+	 * in time order.
+	 */
+	public SamplePyramid(SampleSet samples)
+	{
+		PyramidLevel level = buildFirstLevel(samples);
+		levels.add(level);
+
+		while(level.getBucketSeconds() < MAX_BUCKET_SECONDS && level.size() > 1)
+		{
+			level = buildNextLevel(level);
+			levels.add(level);
+		}
+	}
+
+	/**
+	 * Groups the samples into buckets of MIN_BUCKET_SECONDS.
+	 */
+	private static PyramidLevel buildFirstLevel(SampleSet samples)
+	{
+		int capacity = Math.max(1, samples.size() / 4);
+		long[] starts = new long[capacity];
+		float[] min = new float[capacity];
+		float[] max = new float[capacity];
+		float[] first = new float[capacity];
+		float[] last = new float[capacity];
+		int size = 0;
+
+		for(int i = 0;i < samples.size();i++)
+		{
+			long start = Math.floorDiv(samples.getSeconds(i), (long)MIN_BUCKET_SECONDS) * MIN_BUCKET_SECONDS;
+			float value = samples.getValue(i);
+
+			if(size > 0 && starts[size - 1] == start)
+			{
+				min[size - 1] = Math.min(min[size - 1], value);
+				max[size - 1] = Math.max(max[size - 1], value);
+				last[size - 1] = value;
+			}else
+			{
+				if(size == starts.length)
+				{
+					starts = Arrays.copyOf(starts, size * 2);
+					min = Arrays.copyOf(min, size * 2);
+					max = Arrays.copyOf(max, size * 2);
+					first = Arrays.copyOf(first, size * 2);
+					last = Arrays.copyOf(last, size * 2);
+				}
+				starts[size] = start;
+				min[size] = value;
+				max[size] = value;
+				first[size] = value;
+				last[size] = value;
+				size++;
+			}
+		}
+
+		return new PyramidLevel(MIN_BUCKET_SECONDS, starts, min, max, first, last, size);
+	}
+
+	/**
+	 * Merges neighbouring buckets of a level into buckets twice as wide.
+	 */
+	private static PyramidLevel buildNextLevel(PyramidLevel previous)
+	{
+		int bucketSeconds = previous.getBucketSeconds() * 2;
+		int capacity = Math.max(1, previous.size());
+		long[] starts = new long[capacity];
+		float[] min = new float[capacity];
+		float[] max = new float[capacity];
+		float[] first = new float[capacity];
+		float[] last = new float[capacity];
+		int size = 0;
+
+		for(int i = 0;i < previous.size();i++)
+		{
+			long start = Math.floorDiv(previous.getStart(i), (long)bucketSeconds) * bucketSeconds;
+
+			if(size > 0 && starts[size - 1] == start)
+			{
+				min[size - 1] = Math.min(min[size - 1], previous.getMin(i));
+				max[size - 1] = Math.max(max[size - 1], previous.getMax(i));
+				last[size - 1] = previous.getLast(i);
+			}else
+			{
+				starts[size] = start;
+				min[size] = previous.getMin(i);
+				max[size] = previous.getMax(i);
+				first[size] = previous.getFirst(i);
+				last[size] = previous.getLast(i);
+				size++;
+			}
+		}
+
+		return new PyramidLevel(bucketSeconds, starts, min, max, first, last, size);
+	}
+
+	/**
+	 * Writes the pyramid to the given file, recording the length and modification
+	 * time of the data file it was built from.
+	 */
+	void write(File pyramidFile, File source)
+	throws IOException
+	{
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pyramidFile), 65536)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(levels.size());
+
+			long offset = HEADER_LENGTH + (long)LEVEL_ENTRY_LENGTH * levels.size();
+			for(PyramidLevel level : levels)
+			{
+				out.writeInt(level.getBucketSeconds());
+				out.writeInt(level.size());
+				out.writeLong(offset);
+				offset += 8 + (long)BUCKET_LENGTH * level.size();
+			}
+
+			for(PyramidLevel level : levels)
+			{
+				long base = level.size() > 0 ? level.getStart(0) : 0;
+				out.writeLong(base);
+				for(int i = 0;i < level.size();i++)
+				{
+					out.writeInt((int)(level.getStart(i) - base));
+					out.writeFloat(level.getMin(i));
+					out.writeFloat(level.getMax(i));
+					out.writeFloat(level.getFirst(i));
+					out.writeFloat(level.getLast(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a single level from a pyramid file.  The level read is the coarsest one
+	 * whose buckets are no wider than maximumBucketSeconds.
+	 *
+	 * @return the level, or null if the pyramid file is stale, damaged, or has no
+	 * level fine enough.
+	 */
+	static PyramidLevel readLevel(File pyramidFile, File source, double maximumBucketSeconds)
+	{
+		if(!pyramidFile.exists()) return null;
+
+		try(RandomAccessFile in = new RandomAccessFile(pyramidFile, "r"))
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+			if(in.readLong() != source.length() || in.readLong() != source.lastModified()) return null;
+
+			int levelCount = in.readInt();
+			int bucketSeconds = -1;
+			int size = 0;
+			long offset = 0;
+			for(int i = 0;i < levelCount;i++)
+			{
+				int levelBucketSeconds = in.readInt();
+				int levelSize = in.readInt();
+				long levelOffset = in.readLong();
+				if(levelBucketSeconds <= maximumBucketSeconds)
+				{
+					bucketSeconds = levelBucketSeconds;
+					size = levelSize;
+					offset = levelOffset;
+				}
+			}
+			if(bucketSeconds == -1) return null;
+
+			byte[] data = new byte[8 + BUCKET_LENGTH * size];
+			in.seek(offset);
+			in.readFully(data);
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+
+			long[] starts = new long[size];
+			float[] min = new float[size];
+			float[] max = new float[size];
+			float[] first = new float[size];
+			float[] last = new float[size];
+
+			long base = buffer.getLong();
+			for(int i = 0;i < size;i++)
+			{
+				starts[i] = base + buffer.getInt();
+				min[i] = buffer.getFloat();
+				max[i] = buffer.getFloat();
+				first[i] = buffer.getFloat();
+				last[i] = buffer.getFloat();
+			}
+
+			return new PyramidLevel(bucketSeconds, starts, min, max, first, last, size);
+		}catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the pyramid file exists and was written for the current
+	 * contents of the source file.
+	 */
+	static boolean isCurrent(File pyramidFile, File source)
+	{
+		if(!pyramidFile.exists()) return false;
+
+		try(RandomAccessFile in = new RandomAccessFile(pyramidFile, "r"))
+		{
+			return in.readInt() == MAGIC && in.readInt() == VERSION &&
+					in.readLong() == source.length() && in.readLong() == source.lastModified();
+		}catch(IOException e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package edu.stanford.sid.samples;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * The decoded samples of a single SID data file, stored as parallel primitive
+ * columns of UTC epoch seconds and sample values.  Samples are kept in the order
+ * they appear in the data file.<p>
+ *
+ * The columns are either arrays on the heap or, for the sample sets kept in the
+ * cache of the SampleSidecar, views of a single direct buffer outside of it.
+ */
+public class SampleSet
+{
+	/**
+	 * The bytes each sample takes in a direct buffer.
+	 */
+	static final int SAMPLE_BYTES = 8 + 4;
+
+	private LongBuffer seconds;
+	private FloatBuffer values;
+	private int size;
+
+	/**
+	 * Creates a sample set backed by the given columns.  Only the first size
+	 * entries of each column are used.
+	 */
+	public SampleSet(long[] seconds, float[] values, int size)
+	{
+		this(LongBuffer.wrap(seconds), FloatBuffer.wrap(values), size);
+	}
+
+	private SampleSet(LongBuffer seconds, FloatBuffer values, int size)
+	{
+		this.seconds = seconds;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * Copies the samples into a direct buffer, so they are kept outside of the
+	 * heap.  The seconds column comes first, followed by the values column.
+	 *
+	 * @return a sample set backed by a direct buffer.
+	 */
+	SampleSet toDirect()
+	{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1, size * SAMPLE_BYTES)).order(ByteOrder.nativeOrder());
+
+		LongBuffer directSeconds = buffer.asLongBuffer();
+		for(int i = 0;i < size;i++)
+		{
+			directSeconds.put(i, seconds.get(i));
+		}
+
+		buffer.position(size * 8);
+		FloatBuffer directValues = buffer.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		for(int i = 0;i < size;i++)
+		{
+			directValues.put(i, values.get(i));
+		}
+
+		return new SampleSet(directSeconds, directValues, size);
+	}
+
+	/**
+	 * @return true if the samples are kept outside of the heap.
+	 */
+	public boolean isDirect()
+	{
+		return seconds.isDirect();
+	}
+
+	/**
+	 * @return the number of samples in the set.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the UTC epoch second of the sample at the given index.
+	 */
+	public long getSeconds(int index)
+	{
+		return seconds.get(index);
+	}
+
+	/**
+	 * @return the value of the sample at the given index.
+	 */
+	public float getValue(int index)
+	{
+		return values.get(index);
+	}
+}
@@ -0,0 +1,568 @@
+package edu.stanford.sid.samples;
+
+import edu.stanford.sid.DataFile;
+import edu.stanford.sid.util.WeightedCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.ServletContext;
+
+/**
+ * The SampleSidecar keeps a binary copy of the samples of each SID data file, so
+ * that graphing a file does not need to parse its text.  The sidecar is written the
+ * first time the samples of a file are requested, and is rebuilt whenever the size
+ * or modification time of the data file no longer matches the values recorded in
+ * the sidecar.<p>
+ *
+ * A sidecar file is laid out as follows:
+ *
+ * <pre>
+ * int   magic number
+ * int   format version
+ * long  length of the data file
+ * long  modification time of the data file
+ * int   number of samples
+ * long  epoch second of the first sample
+ * ...   zigzag varint deltas between the epoch seconds of consecutive samples
+ * ...   one float for each sample value
+ * </pre>
+ *
+ * Next to each sidecar a SamplePyramid is kept, so that graphs spanning many
+ * seconds per pixel can read a summary of the samples instead of all of them.<p>
+ *
+ * The directory sidecars are stored in is set by the sample-cache-directory context
+ * parameter, and defaults to a directory in java.io.tmpdir.<p>
+ *
+ * Pyramid levels that have been read are kept in a WeightedCache, so the popular
+ * days do not go back to disk for every graph.  Its size in bytes is set by the
+ * pyramid-cache-bytes context parameter.<p>
+ *
+ * The samples of the popular days are kept in a second cache, in direct buffers
+ * outside of the heap, so graphs of today and yesterday neither read the sidecar
+ * nor fill the heap with large columns.  Its size in bytes is set by the
+ * sample-cache-bytes context parameter.  Evicted buffers are released when the
+ * garbage collector finds them, so -XX:MaxDirectMemorySize should leave room
+ * above the budget.
+ */
+public class SampleSidecar
+{
+	private static final int MAGIC = 0x53494453; // "SIDS"
+	private static final int VERSION = 1;
+
+	private static final String SIDECAR_EXTENSION = ".samples";
+	private static final String PYRAMID_EXTENSION = ".pyramid";
+
+	/**
+	 * The default size of the pyramid level cache.
+	 */
+	private static final long DEFAULT_PYRAMID_CACHE_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The default size of the sample cache.
+	 */
+	private static final long DEFAULT_SAMPLE_CACHE_BYTES = 64L * 1024 * 1024;
+
+	private static volatile File sidecarDirectory = new File(System.getProperty("java.io.tmpdir"), "sid-samples");
+
+	private static volatile WeightedCache<FileKey, PyramidLevel> levelCache = createLevelCache(DEFAULT_PYRAMID_CACHE_BYTES);
+
+	private static volatile WeightedCache<FileKey, SampleSet> sampleCache = createSampleCache(DEFAULT_SAMPLE_CACHE_BYTES);
+
+	/**
+	 * Sets the sidecar directory from the sample-cache-directory context parameter,
+	 * and the sizes of the pyramid level and sample caches from the pyramid-cache-bytes
+	 * and sample-cache-bytes context parameters, if the context provides them.
+	 */
+	public static void configure(ServletContext context)
+	{
+		String directory = context.getInitParameter("sample-cache-directory");
+		if(directory != null)
+		{
+			sidecarDirectory = new File(directory);
+		}
+
+		String cacheBytes = context.getInitParameter("pyramid-cache-bytes");
+		if(cacheBytes != null)
+		{
+			long maximumWeight = Long.parseLong(cacheBytes.trim());
+			synchronized(SampleSidecar.class)
+			{
+				if(levelCache.getMaximumWeight() != maximumWeight)
+				{
+					levelCache = createLevelCache(maximumWeight);
+				}
+			}
+		}
+
+		cacheBytes = context.getInitParameter("sample-cache-bytes");
+		if(cacheBytes != null)
+		{
+			long maximumWeight = Long.parseLong(cacheBytes.trim());
+			synchronized(SampleSidecar.class)
+			{
+				if(sampleCache.getMaximumWeight() != maximumWeight)
+				{
+					sampleCache = createSampleCache(maximumWeight);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the cache of pyramid levels, for reporting its counters.
+	 */
+	public static WeightedCache<?, ?> getLevelCache()
+	{
+		return levelCache;
+	}
+
+	/**
+	 * @return the cache of samples, for reporting its counters.
+	 */
+	public static WeightedCache<?, ?> getSampleCache()
+	{
+		return sampleCache;
+	}
+
+	/**
+	 * Gets the samples of the given data file from the sample cache, or else
+	 * reads them from its sidecar if the sidecar is current, and otherwise parses
+	 * the data file and writes a new sidecar.
+	 *
+	 * @param dataFile the data file to get the samples of.
+	 * @return the samples of the data file.
+	 * @throws IOException if the data file cannot be read.
+	 */
+	public static SampleSet getSamples(DataFile dataFile)
+	throws IOException
+	{
+		File source = dataFile.getFile();
+		FileKey key = new FileKey(source.getPath(), source.length(), source.lastModified(), 0);
+		WeightedCache<FileKey, SampleSet> cache = sampleCache;
+		SampleSet samples = cache.get(key);
+		if(samples != null) return samples;
+
+		samples = loadSamples(source);
+		//Only copy the samples off the heap if the cache will keep them.
+		if(cache.admits(key, samples)) cache.put(key, samples.toDirect());
+		return samples;
+	}
+
+	/**
+	 * Reads the samples of the given file from its sidecar, or parses them and
+	 * writes a new sidecar, without going through the sample cache.
+	 */
+	private static SampleSet loadSamples(File source)
+	throws IOException
+	{
+		File sidecar = getSidecarFile(source);
+
+		SampleSet samples = read(sidecar, source);
+		if(samples == null)
+		{
+			samples = parse(source);
+			try
+			{
+				write(sidecar, source, samples);
+			}catch(IOException e)
+			{
+				//A sidecar that cannot be written only costs the next request a parse.
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Gets the level of the pyramid of the given data file whose buckets are
+	 * closest to, but no wider than, the given number of seconds.  The pyramid is
+	 * built from the samples of the file if it does not exist or is stale.
+	 *
+	 * @param dataFile the data file to get the pyramid level of.
+	 * @param maximumBucketSeconds the widest buckets the caller can use, usually
+	 * the number of seconds a pixel spans.
+	 * @return the pyramid level, or null if even the finest level is too coarse,
+	 * in which case the samples should be used.
+	 * @throws IOException if the data file cannot be read.
+	 */
+	public static PyramidLevel getPyramidLevel(DataFile dataFile, double maximumBucketSeconds)
+	throws IOException
+	{
+		if(maximumBucketSeconds < SamplePyramid.MIN_BUCKET_SECONDS) return null;
+		
+		File source = dataFile.getFile();
+		
+		//Every maximum between two level widths selects the narrower level.
+		int bucketSeconds = Integer.highestOneBit((int)Math.min(maximumBucketSeconds, SamplePyramid.MAX_BUCKET_SECONDS));
+		FileKey key = new FileKey(source.getPath(), source.length(), source.lastModified(), bucketSeconds);
+		WeightedCache<FileKey, PyramidLevel> cache = levelCache;
+		PyramidLevel level = cache.get(key);
+		if(level != null) return level;
+		
+		File pyramidFile = getPyramidFile(source);
+		level = SamplePyramid.readLevel(pyramidFile, source, bucketSeconds);
+		if(level == null && !SamplePyramid.isCurrent(pyramidFile, source))
+		{
+			writePyramid(pyramidFile, source, new SamplePyramid(loadSamples(source)));
+			level = SamplePyramid.readLevel(pyramidFile, source, bucketSeconds);
+		}
+		if(level != null)
+		{
+			cache.put(key, level);
+		}
+		return level;
+	}
+	
+	/**
+	 * Identifies the samples, or a pyramid level, of one version of a data file.
+	 * The length and modification time are part of the key, so a key of a file
+	 * that has since changed is never found again, and ages out of the cache.
+	 */
+	private static final class FileKey
+	{
+		private final String path;
+		private final long length;
+		private final long lastModified;
+		
+		/**
+		 * The width of the buckets of the pyramid level, or 0 for the samples.
+		 */
+		private final int bucketSeconds;
+		
+		private FileKey(String path, long length, long lastModified, int bucketSeconds)
+		{
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.bucketSeconds = bucketSeconds;
+		}
+		
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof FileKey)) return false;
+			FileKey other = (FileKey)o;
+			return path.equals(other.path) && length == other.length
+					&& lastModified == other.lastModified && bucketSeconds == other.bucketSeconds;
+		}
+		
+		public int hashCode()
+		{
+			int hash = path.hashCode();
+			hash = 31 * hash + (int)(length ^ (length >>> 32));
+			hash = 31 * hash + (int)(lastModified ^ (lastModified >>> 32));
+			return 31 * hash + bucketSeconds;
+		}
+	}
+	
+	private static WeightedCache<FileKey, PyramidLevel> createLevelCache(long maximumWeight)
+	{
+		return new WeightedCache<FileKey, PyramidLevel>(maximumWeight, new WeightedCache.Weigher<FileKey, PyramidLevel>()
+		{
+			public long weigh(FileKey key, PyramidLevel level)
+			{
+				//A start and four values per bucket, plus the arrays and the key.
+				return 256 + key.path.length() * 2 + level.size() * (8L + 4 * 4);
+			}
+		});
+	}
+	
+	private static WeightedCache<FileKey, SampleSet> createSampleCache(long maximumWeight)
+	{
+		return new WeightedCache<FileKey, SampleSet>(maximumWeight, new WeightedCache.Weigher<FileKey, SampleSet>()
+		{
+			public long weigh(FileKey key, SampleSet samples)
+			{
+				//The direct buffer, plus its views and the key on the heap.
+				return 256 + key.path.length() * 2 + samples.size() * (long)SampleSet.SAMPLE_BYTES;
+			}
+		});
+	}
+	
+	/**
+	 * Makes sure the given data file has a current sidecar and pyramid.  This is
+	 * called by the index when it finds a file so the first graph of it does not
+	 * pay for the parse.
+	 */
+	public static void prepare(DataFile dataFile)
+	throws IOException
+	{
+		File source = dataFile.getFile();
+		boolean sidecarCurrent = isCurrent(getSidecarFile(source), source);
+		File pyramidFile = getPyramidFile(source);
+		boolean pyramidCurrent = SamplePyramid.isCurrent(pyramidFile, source);
+		
+		if(!sidecarCurrent || !pyramidCurrent)
+		{
+			SampleSet samples = loadSamples(source);
+			if(!pyramidCurrent)
+			{
+				writePyramid(pyramidFile, source, new SamplePyramid(samples));
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the sidecar and pyramid of the given data file.  This is called by the
+	 * index when it removes the file, so the sample cache directory does not keep
+	 * the samples of files that were deleted or renamed.
+	 */
+	public static void remove(File source)
+	{
+		getSidecarFile(source).delete();
+		getPyramidFile(source).delete();
+	}
+	
+	/**
+	 * Writes the pyramid through a temporary file, like the sidecar.
+	 */
+	private static void writePyramid(File pyramidFile, File source, SamplePyramid pyramid)
+	throws IOException
+	{
+		File temp = createTempFile(pyramidFile);
+		try
+		{
+			pyramid.write(temp, source);
+			replace(temp, pyramidFile);
+		}finally
+		{
+			temp.delete();
+		}
+	}
+	
+	/**
+	 * @return the file that holds the pyramid of the given data file.
+	 */
+	private static File getPyramidFile(File source)
+	{
+		return new File(sidecarDirectory, String.format("%s-%08x%s",
+				source.getName(), source.getAbsolutePath().hashCode(), PYRAMID_EXTENSION));
+	}
+	
+	/**
+	 * @return the sidecar file that holds the samples of the given data file.
+	 */
+	private static File getSidecarFile(File source)
+	{
+		return new File(sidecarDirectory, String.format("%s-%08x%s",
+				source.getName(), source.getAbsolutePath().hashCode(), SIDECAR_EXTENSION));
+	}
+
+	/**
+	 * @return true if the sidecar exists and was written for the current
+	 * contents of the source file.
+	 */
+	private static boolean isCurrent(File sidecar, File source)
+	{
+		if(!sidecar.exists()) return false;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 64)))
+		{
+			return readHeader(in, source) >= 0;
+		}catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the sidecar header and checks it against the source file.
+	 *
+	 * @return the number of samples in the sidecar, or -1 if the sidecar is stale.
+	 */
+	private static int readHeader(DataInputStream in, File source)
+	throws IOException
+	{
+		if(in.readInt() != MAGIC || in.readInt() != VERSION) return -1;
+		if(in.readLong() != source.length() || in.readLong() != source.lastModified()) return -1;
+		return in.readInt();
+	}
+
+	/**
+	 * Reads the samples from the sidecar.
+	 *
+	 * @return the samples, or null if the sidecar is missing, damaged or stale.
+	 */
+	private static SampleSet read(File sidecar, File source)
+	{
+		if(!sidecar.exists()) return null;
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 65536)))
+		{
+			int size = readHeader(in, source);
+			if(size < 0) return null;
+
+			long[] seconds = new long[size];
+			float[] values = new float[size];
+
+			if(size > 0)
+			{
+				seconds[0] = in.readLong();
+				for(int i = 1;i < size;i++)
+				{
+					seconds[i] = seconds[i - 1] + readDelta(in);
+				}
+				for(int i = 0;i < size;i++)
+				{
+					values[i] = in.readFloat();
+				}
+			}
+
+			return new SampleSet(seconds, values, size);
+		}catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the samples to the sidecar.  The sidecar is written to a temporary
+	 * file first, so that readers never see a partially written sidecar.
+	 */
+	private static void write(File sidecar, File source, SampleSet samples)
+	throws IOException
+	{
+		File temp = createTempFile(sidecar);
+		try
+		{
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536)))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(source.length());
+				out.writeLong(source.lastModified());
+				out.writeInt(samples.size());
+
+				if(samples.size() > 0)
+				{
+					out.writeLong(samples.getSeconds(0));
+					for(int i = 1;i < samples.size();i++)
+					{
+						writeDelta(out, samples.getSeconds(i) - samples.getSeconds(i - 1));
+					}
+					for(int i = 0;i < samples.size();i++)
+					{
+						out.writeFloat(samples.getValue(i));
+					}
+				}
+			}
+
+			replace(temp, sidecar);
+		}finally
+		{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Creates a temporary file next to the given file, creating the sidecar
+	 * directory if needed.
+	 */
+	private static File createTempFile(File target)
+	throws IOException
+	{
+		File directory = target.getParentFile();
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create sidecar directory: " + directory);
+		}
+		return File.createTempFile(target.getName(), ".temp", directory);
+	}
+
+	/**
+	 * Moves the finished temporary file over the target.
+	 */
+	private static void replace(File temp, File target)
+	throws IOException
+	{
+		if(!temp.renameTo(target))
+		{
+			target.delete();
+			if(!temp.renameTo(target))
+			{
+				throw new IOException("Cannot replace sidecar: " + target);
+			}
+		}
+	}
+
+	/**
+	 * Writes a signed delta as a zigzag encoded varint.  One second and five second
+	 * cadences fit in a single byte.
+	 */
+	private static void writeDelta(DataOutputStream out, long delta)
+	throws IOException
+	{
+		long zigzag = (delta << 1) ^ (delta >> 63);
+		while((zigzag & ~0x7FL) != 0)
+		{
+			out.writeByte((int)((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.writeByte((int)zigzag);
+	}
+
+	/**
+	 * Reads a delta written by writeDelta.
+	 */
+	private static long readDelta(DataInputStream in)
+	throws IOException
+	{
+		long zigzag = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			if(shift > 63) throw new EOFException("Malformed delta.");
+			b = in.readUnsignedByte();
+			zigzag |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		}while((b & 0x80) != 0);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Parses the samples out of the text of a SID data file.
+	 */
+	private static SampleSet parse(File source)
+	throws IOException
+	{
+		SampleCollector collector = new SampleCollector();
+		SampleParser.parse(source, collector);
+		return collector.toSampleSet();
+	}
+	
+	/**
+	 * Collects parsed samples into growing primitive columns.
+	 */
+	private static class SampleCollector
+	implements SampleHandler
+	{
+		private long[] seconds = new long[4096];
+		private float[] values = new float[4096];
+		private int size = 0;
+		
+		public void sample(long epochSecond, double value)
+		{
+			if(size == seconds.length)
+			{
+				seconds = Arrays.copyOf(seconds, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			seconds[size] = epochSecond;
+			values[size] = (float)value;
+			size++;
+		}
+		
+		public SampleSet toSampleSet()
+		{
+			return new SampleSet(seconds, values, size);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package edu.stanford.sid.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of JDBC connections shared by the threads of a servlet.<p>
+ *
+ * Connections are opened the first time they are needed, and kept open after
+ * they are returned for the next caller.  A caller that asks for a connection
+ * while all of them are in use waits in line, at most until its timeout, so a
+ * burst of requests queues instead of opening a connection each.  A connection
+ * that failed is closed rather than returned, and a new one is opened in its
+ * place.<p>
+ *
+ * A Lease must be closed, which returns its connection, so it is best used in a
+ * try-with-resources statement:
+ *
+ * <pre>
+ * try(ConnectionPool.Lease lease = pool.lease(30000))
+ * {
+ *     query(lease.getConnection());
+ * }catch(SQLException e)
+ * {
+ *     ...
+ * }
+ * </pre>
+ */
+public class ConnectionPool
+{
+	private final String url;
+	private final String user;
+	private final String password;
+
+	private final Semaphore permits;
+	private final int size;
+
+	/**
+	 * The open connections not in use.  Guarded by itself.
+	 */
+	private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * A connection lent to a caller.
+	 */
+	public class Lease
+	implements AutoCloseable
+	{
+		private Connection connection;
+		private boolean failed = false;
+
+		private Lease(Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		/**
+		 * @return the connection, which must not be closed by the caller.
+		 */
+		public Connection getConnection()
+		{
+			return connection;
+		}
+
+		/**
+		 * Marks the connection as failed, so it is closed instead of lent again.
+		 */
+		public void fail()
+		{
+			failed = true;
+		}
+
+		/**
+		 * Returns the connection to the pool, and lets the next caller in line
+		 * have it.
+		 */
+		public void close()
+		{
+			if(connection == null) return;
+
+			Connection returned = connection;
+			connection = null;
+
+			boolean keep = !failed && !closed;
+			try
+			{
+				if(keep && !returned.getAutoCommit()) returned.rollback();
+				if(keep) returned.clearWarnings();
+			}catch(SQLException e)
+			{
+				keep = false;
+			}
+
+			if(keep)
+			{
+				synchronized(idle)
+				{
+					idle.push(returned);
+				}
+			}else
+			{
+				closeQuietly(returned);
+			}
+			permits.release();
+		}
+	}
+
+	/**
+	 * Creates a pool.  No connection is opened until one is asked for.
+	 *
+	 * @param url the JDBC url of the database.
+	 * @param user the user to connect as, or null for none.
+	 * @param password the password of the user, or null for none.
+	 * @param size the most connections that are open at the same time.
+	 */
+	public ConnectionPool(String url, String user, String password, int size)
+	{
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.size = size;
+		this.permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Gets a connection, waiting in line if all of them are in use.
+	 *
+	 * @param timeoutMillis how long to wait for a connection.
+	 * @return the lease of the connection, which must be closed.
+	 * @throws SQLException if no connection was free before the timeout, or a
+	 * connection could not be opened.
+	 */
+	public Lease lease(long timeoutMillis)
+	throws SQLException
+	{
+		if(closed) throw new SQLException("The connection pool is closed");
+
+		queued.incrementAndGet();
+		try
+		{
+			if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				timeouts.incrementAndGet();
+				throw new SQLException(String.format("Timed out waiting for a connection, %d in line", queued.get()));
+			}
+		}catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection");
+		}finally
+		{
+			queued.decrementAndGet();
+		}
+
+		try
+		{
+			Connection connection;
+			synchronized(idle)
+			{
+				connection = idle.poll();
+			}
+
+			if(connection == null || connection.isClosed())
+			{
+				connection = user == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, user, password);
+				opened.incrementAndGet();
+			}
+
+			leases.incrementAndGet();
+			return new Lease(connection);
+		}catch(SQLException | RuntimeException e)
+		{
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of callers waiting for a connection.
+	 */
+	public int getQueueDepth()
+	{
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of connections in use.
+	 */
+	public int getActive()
+	{
+		return size - permits.availablePermits();
+	}
+
+	/**
+	 * @return the most connections that are open at the same time.
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of connections lent.
+	 */
+	public long getLeases()
+	{
+		return leases.get();
+	}
+
+	/**
+	 * @return the number of connections opened, including those opened again
+	 * after one failed.
+	 */
+	public long getOpened()
+	{
+		return opened.get();
+	}
+
+	/**
+	 * @return the number of callers that gave up waiting for a connection.
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	/**
+	 * Closes the connections not in use.  Connections in use are closed when
+	 * they are returned.
+	 */
+	public void close()
+	{
+		closed = true;
+		synchronized(idle)
+		{
+			for(Connection connection : idle)
+			{
+				closeQuietly(connection);
+			}
+			idle.clear();
+		}
+	}
+
+	public String toString()
+	{
+		return String.format("%d of %d in use, %d in line, %d leased, %d opened, %d timed out",
+				getActive(), size, getQueueDepth(), getLeases(), getOpened(), getTimeouts());
+	}
+
+	private static void closeQuietly(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}catch(SQLException e)
+		{
+			//The connection is being thrown away.
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package edu.stanford.sid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs external programs, at most a fixed number at a time.<p>
+ *
+ * A caller that asks to start a program while the limit is reached waits in
+ * line, so a burst of requests queues instead of starting a process each.
+ * Every execution has a deadline that covers both the wait and the run; a
+ * process still running at its deadline is killed.  The standard error of
+ * each process is drained on a separate thread, so a program that writes a
+ * lot of errors cannot block on a full pipe while the caller reads its
+ * output, and the end of it is kept for the exception if the program fails.<p>
+ *
+ * An Execution must be closed, which kills the process if it is still
+ * running and lets the next caller in line start, so it is best used in a
+ * try-with-resources statement:
+ *
+ * <pre>
+ * try(ProcessExecutor.Execution execution = executor.start(30000, command))
+ * {
+ *     read(execution.getInputStream());
+ *     execution.waitFor();
+ * }
+ * </pre>
+ */
+public class ProcessExecutor
+{
+	/**
+	 * How much of the end of standard error is kept.
+	 */
+	private static final int ERROR_TAIL_BYTES = 4096;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final Semaphore permits;
+	private final int maximumRunning;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * Kills the processes that reach their deadlines.
+	 */
+	private final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(daemonThreads("process-deadline"));
+
+	/**
+	 * Drains the standard error of the processes.
+	 */
+	private final ExecutorService drains = Executors.newCachedThreadPool(daemonThreads("process-stderr"));
+
+	/**
+	 * A running process.
+	 */
+	public class Execution
+	implements AutoCloseable
+	{
+		private final String name;
+		private final Process process;
+		private final long deadline;
+		private final ScheduledFuture<?> killer;
+		private final AtomicBoolean killed = new AtomicBoolean();
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private final byte[] errorTail = new byte[ERROR_TAIL_BYTES];
+		private long errorLength = 0;
+
+		private Execution(String[] command, long deadline)
+		throws IOException
+		{
+			this.name = command[0];
+			this.deadline = deadline;
+
+			process = new ProcessBuilder(command).start();
+			process.getOutputStream().close();
+
+			drains.execute(new Runnable()
+			{
+				public void run()
+				{
+					drainErrors();
+				}
+			});
+
+			killer = deadlines.schedule(new Runnable()
+			{
+				public void run()
+				{
+					if(process.isAlive() && killed.compareAndSet(false, true))
+					{
+						timeouts.incrementAndGet();
+						process.destroyForcibly();
+					}
+				}
+			}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return the standard output of the process.
+		 */
+		public InputStream getInputStream()
+		{
+			return process.getInputStream();
+		}
+
+		/**
+		 * Waits for the process to exit, at most until its deadline.
+		 *
+		 * @throws IOException if the process was killed at its deadline, or
+		 * exited with an error.
+		 * @throws InterruptedException if the thread was interrupted while
+		 * waiting.
+		 */
+		public void waitFor()
+		throws IOException, InterruptedException
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0 || !process.waitFor(remaining, TimeUnit.MILLISECONDS) || killed.get())
+			{
+				throw new IOException(name + " did not finish before its deadline");
+			}
+
+			if(process.exitValue() != 0)
+			{
+				throw new IOException(String.format("%s exited with %d: %s", name, process.exitValue(), getErrors()));
+			}
+		}
+
+		/**
+		 * @return the end of what the process wrote to standard error so far.
+		 */
+		public synchronized String getErrors()
+		{
+			int length = (int)Math.min(errorLength, ERROR_TAIL_BYTES);
+			int start = (int)((errorLength - length) % ERROR_TAIL_BYTES);
+			byte[] tail = new byte[length];
+			for(int i = 0;i < length;i++)
+			{
+				tail[i] = errorTail[(start + i) % ERROR_TAIL_BYTES];
+			}
+			return new String(tail, StandardCharsets.UTF_8).trim();
+		}
+
+		/**
+		 * Kills the process if it is still running, and lets the next caller
+		 * in line start its process.
+		 */
+		public void close()
+		{
+			if(!closed.compareAndSet(false, true)) return;
+
+			killer.cancel(false);
+			if(process.isAlive()) process.destroyForcibly();
+			permits.release();
+		}
+
+		/**
+		 * Reads standard error until the process closes it, keeping the end.
+		 */
+		private void drainErrors()
+		{
+			byte[] buffer = new byte[1024];
+			try(InputStream errors = process.getErrorStream())
+			{
+				int read;
+				while((read = errors.read(buffer)) >= 0)
+				{
+					synchronized(this)
+					{
+						for(int i = 0;i < read;i++)
+						{
+							errorTail[(int)(errorLength++ % ERROR_TAIL_BYTES)] = buffer[i];
+						}
+					}
+				}
+			}catch(IOException e)
+			{
+				//The process was killed.
+			}
+		}
+	}
+
+	/**
+	 * Creates an executor.
+	 *
+	 * @param maximumRunning the most processes that run at the same time.
+	 */
+	public ProcessExecutor(int maximumRunning)
+	{
+		this.maximumRunning = maximumRunning;
+		this.permits = new Semaphore(maximumRunning, true);
+	}
+
+	/**
+	 * Starts a program, waiting in line if the most processes are already
+	 * running.
+	 *
+	 * @param timeoutMillis how long the wait and the run may take together.
+	 * @param command the program and its arguments.
+	 * @return the running process, which must be closed.
+	 * @throws IOException if the deadline passed while waiting, or the program
+	 * cannot be started.
+	 * @throws InterruptedException if the thread was interrupted while waiting.
+	 */
+	public Execution start(long timeoutMillis, String... command)
+	throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		queued.incrementAndGet();
+		try
+		{
+			if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				timeouts.incrementAndGet();
+				throw new IOException(String.format("Timed out waiting to run %s, %d in line", command[0], queued.get()));
+			}
+		}finally
+		{
+			queued.decrementAndGet();
+		}
+
+		try
+		{
+			Execution execution = new Execution(command, deadline);
+			executions.incrementAndGet();
+			return execution;
+		}catch(IOException | RuntimeException e)
+		{
+			permits.release();
+			throw new IOException("Cannot run " + Arrays.toString(command), e);
+		}
+	}
+
+	/**
+	 * @return the number of callers waiting for a process to finish so they
+	 * can start theirs.
+	 */
+	public int getQueueDepth()
+	{
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of processes running.
+	 */
+	public int getRunning()
+	{
+		return maximumRunning - permits.availablePermits();
+	}
+
+	/**
+	 * @return the most processes that run at the same time.
+	 */
+	public int getMaximumRunning()
+	{
+		return maximumRunning;
+	}
+
+	/**
+	 * @return the number of processes started.
+	 */
+	public long getExecutions()
+	{
+		return executions.get();
+	}
+
+	/**
+	 * @return the number of processes killed at their deadline, and callers
+	 * that gave up waiting in line.
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	/**
+	 * Stops the threads of the executor.  Running processes are not killed.
+	 */
+	public void shutdown()
+	{
+		deadlines.shutdownNow();
+		drains.shutdown();
+	}
+
+	public String toString()
+	{
+		return String.format("%d of %d running, %d in line, %d started, %d timed out",
+				getRunning(), maximumRunning, getQueueDepth(), getExecutions(), getTimeouts());
+	}
+
+	private static ThreadFactory daemonThreads(final String name)
+	{
+		return new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,87 @@
+package edu.stanford.sid.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical computations.  The first thread to ask for
+ * a key runs the computation, and every thread that asks for the same key
+ * while it is running waits for it and gets the same result, or the same
+ * exception.  Once the computation finishes the key is forgotten, so nothing
+ * is cached; the next request for the key runs the computation again.<p>
+ *
+ * Callers share the result object, so it should not be modified, or each
+ * caller should work on a copy.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+public class SingleFlight<K, V>
+{
+	private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Runs the computation for the key, or waits for the one already running.
+	 *
+	 * @param key identifies the computation.
+	 * @param computation computes the result if no computation for the key is
+	 * running.
+	 * @return the result of the computation.
+	 * @throws Exception the exception thrown by the computation.
+	 */
+	public V execute(K key, Callable<V> computation)
+	throws Exception
+	{
+		FutureTask<V> task = new FutureTask<V>(computation);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+
+		if(running == null)
+		{
+			executions.incrementAndGet();
+			try
+			{
+				task.run();
+			}finally
+			{
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}else
+		{
+			coalesced.incrementAndGet();
+		}
+
+		try
+		{
+			return running.get();
+		}catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			if(e.getCause() instanceof Error) throw (Error)e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of computations that were run.
+	 */
+	public long getExecutions()
+	{
+		return executions.get();
+	}
+
+	/**
+	 * @return the number of requests that waited for a computation that was
+	 * already running instead of running their own.
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+}
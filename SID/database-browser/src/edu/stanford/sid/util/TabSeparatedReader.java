@@ -0,0 +1,328 @@
+package edu.stanford.sid.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reads tab separated text with a header line, such as the output of show_info,
+ * one row at a time.<p>
+ *
+ * The header is read when the reader is created, so each column is looked up
+ * by name once, and its ordinal used for every row.  A row is kept in a char
+ * buffer that is reused for the next row, with the offsets of its fields, so a
+ * field only becomes a String when it is asked for, and numeric fields are
+ * parsed straight from the buffer.  Rows are pushed to a RowHandler as they are
+ * read, so the whole output is never held in memory.<p>
+ *
+ * Columns the caller cannot do without should be looked up with requireColumn,
+ * so a renamed column fails the read instead of failing every row.  Rows the
+ * handler cannot take are skipped and counted, with the first error kept.
+ */
+public class TabSeparatedReader
+{
+	/**
+	 * Receives the rows of the reader.
+	 */
+	public interface RowHandler
+	{
+		/**
+		 * Called for each row.  The fields of the row can be read from the
+		 * reader until this returns.
+		 */
+		public void row(TabSeparatedReader row)
+		throws Exception;
+	}
+
+	private final Reader in;
+	private final char[] buffer = new char[65536];
+	private int bufferStart = 0;
+	private int bufferEnd = 0;
+	private boolean endOfInput = false;
+
+	private char[] line = new char[1024];
+	private int lineLength = 0;
+
+	private int[] fieldStarts = new int[32];
+	private int[] fieldEnds = new int[32];
+	private int fieldCount = 0;
+
+	private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+	private String[] header = new String[0];
+
+	private int skippedRows = 0;
+	private Exception skipError = null;
+
+	/**
+	 * Creates a reader, and reads the header line.
+	 *
+	 * @param in the tab separated text.
+	 * @throws IOException if the text cannot be read, or has no header line.
+	 */
+	public TabSeparatedReader(InputStream in)
+	throws IOException
+	{
+		this.in = new InputStreamReader(in);
+
+		if(!nextLine()) throw new IOException("No header line");
+
+		header = new String[fieldCount];
+		for(int i = 0;i < fieldCount;i++)
+		{
+			header[i] = get(i);
+			if(!columns.containsKey(header[i])) columns.put(header[i], i);
+		}
+	}
+
+	/**
+	 * @return the ordinal of the column with the given name in the header, or -1
+	 * if there is no such column.
+	 */
+	public int getColumn(String name)
+	{
+		Integer column = columns.get(name);
+		return column == null ? -1 : column;
+	}
+
+	/**
+	 * @return the ordinal of the column with the given name in the header.
+	 * @throws IOException if there is no such column.
+	 */
+	public int requireColumn(String name)
+	throws IOException
+	{
+		int column = getColumn(name);
+		if(column < 0)
+		{
+			throw new IOException(String.format("No column %s in the header %s", name, Arrays.toString(header)));
+		}
+		return column;
+	}
+
+	/**
+	 * @return the names of the columns in the header.
+	 */
+	public String[] getHeader()
+	{
+		return header.clone();
+	}
+
+	/**
+	 * Reads every row left, passing each to the handler.  A row the handler
+	 * throws an exception for is skipped, as a row that cannot be parsed, and
+	 * counted in getSkippedRows.
+	 *
+	 * @return the number of rows the handler took without an exception.
+	 * @throws IOException if the text cannot be read.
+	 */
+	public int read(RowHandler handler)
+	throws IOException
+	{
+		int rows = 0;
+		while(nextLine())
+		{
+			if(lineLength == 0) continue;
+
+			try
+			{
+				handler.row(this);
+				rows++;
+			}catch(Exception e)
+			{
+				//Skip rows that cannot be parsed.
+				if(skipError == null) skipError = e;
+				skippedRows++;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the number of rows read skipped because the handler threw an
+	 * exception for them.
+	 */
+	public int getSkippedRows()
+	{
+		return skippedRows;
+	}
+
+	/**
+	 * @return the exception of the first row skipped, or null if none was.
+	 */
+	public Exception getSkipError()
+	{
+		return skipError;
+	}
+
+	/**
+	 * @return the number of fields in the current row.
+	 */
+	public int getFieldCount()
+	{
+		return fieldCount;
+	}
+
+	/**
+	 * @return the field of the current row in the given column.
+	 * @throws IndexOutOfBoundsException if the row has no such field.
+	 */
+	public String get(int column)
+	{
+		check(column);
+		return new String(line, fieldStarts[column], fieldEnds[column] - fieldStarts[column]);
+	}
+
+	/**
+	 * @return the field of the current row in the given column, parsed as a
+	 * decimal long, ignoring spaces around it.
+	 * @throws NumberFormatException if the field is not a number.
+	 */
+	public long getLong(int column)
+	{
+		check(column);
+
+		int start = fieldStarts[column];
+		int end = fieldEnds[column];
+		while(start < end && line[start] == ' ') start++;
+		while(end > start && line[end - 1] == ' ') end--;
+
+		boolean negative = start < end && line[start] == '-';
+		if(negative || (start < end && line[start] == '+')) start++;
+		if(start == end || end - start > 18) return Long.parseLong(get(column).trim());
+
+		long value = 0;
+		for(int i = start;i < end;i++)
+		{
+			int digit = line[i] - '0';
+			if(digit < 0 || digit > 9) throw new NumberFormatException("Not a number: " + get(column));
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the field of the current row in the given column, parsed as a
+	 * double.
+	 * @throws NumberFormatException if the field is not a number.
+	 */
+	public double getDouble(int column)
+	{
+		return Double.parseDouble(get(column).trim());
+	}
+
+	/**
+	 * @return true if the field of the current row in the given column is the
+	 * given text, without making a String of the field.
+	 */
+	public boolean equals(int column, String text)
+	{
+		check(column);
+
+		int length = fieldEnds[column] - fieldStarts[column];
+		if(length != text.length()) return false;
+		for(int i = 0;i < length;i++)
+		{
+			if(line[fieldStarts[column] + i] != text.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private void check(int column)
+	{
+		if(column < 0 || column >= fieldCount)
+		{
+			throw new IndexOutOfBoundsException(String.format("No column %d in a row of %d fields", column, fieldCount));
+		}
+	}
+
+	/**
+	 * Reads the next line into the line buffer and finds its fields.
+	 *
+	 * @return false at the end of the input.
+	 */
+	private boolean nextLine()
+	throws IOException
+	{
+		lineLength = 0;
+		boolean read = false;
+
+		while(true)
+		{
+			if(bufferStart == bufferEnd)
+			{
+				if(endOfInput || !fill()) break;
+			}
+			read = true;
+
+			//Copy up to the end of the line, or of the buffer.
+			int end = bufferStart;
+			while(end < bufferEnd && buffer[end] != '\n') end++;
+
+			append(bufferStart, end);
+			if(end < bufferEnd)
+			{
+				bufferStart = end + 1;
+				break;
+			}
+			bufferStart = bufferEnd;
+		}
+
+		if(!read) return false;
+
+		if(lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+		split();
+		return true;
+	}
+
+	private boolean fill()
+	throws IOException
+	{
+		int n = in.read(buffer, 0, buffer.length);
+		if(n < 0)
+		{
+			endOfInput = true;
+			return false;
+		}
+		bufferStart = 0;
+		bufferEnd = n;
+		return true;
+	}
+
+	private void append(int start, int end)
+	{
+		int length = end - start;
+		if(lineLength + length > line.length)
+		{
+			line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+		}
+		System.arraycopy(buffer, start, line, lineLength, length);
+		lineLength += length;
+	}
+
+	/**
+	 * Finds the offsets of the fields of the line.
+	 */
+	private void split()
+	{
+		fieldCount = 0;
+		int start = 0;
+		for(int i = 0;i <= lineLength;i++)
+		{
+			if(i == lineLength || line[i] == '\t')
+			{
+				if(fieldCount == fieldStarts.length)
+				{
+					fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+					fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+				}
+				fieldStarts[fieldCount] = start;
+				fieldEnds[fieldCount] = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package edu.stanford.sid.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache that holds entries up to a budget of bytes rather than a
+ * number of entries.<p>
+ *
+ * Entries are kept in a ConcurrentHashMap, so get never takes a lock, and
+ * concurrent readers of popular entries do not contend with each other.  Each
+ * get stamps the entry with an access counter and counts the key in a
+ * frequency sketch.  When a put takes the cache over its budget, a few
+ * entries are sampled and the least recently used of them is the eviction
+ * candidate.  The new entry only stays if its key has been asked for more
+ * often than the candidate's (TinyLFU admission), so a burst of one-off
+ * requests cannot flush the entries that are used all the time.<p>
+ *
+ * The frequency sketch is a count-min sketch of four rows of small counters,
+ * which are halved after a number of increments so that the cache follows
+ * changes in popularity.  Its counters are updated without locking, a lost
+ * update only makes an estimate slightly low.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+public class WeightedCache<K, V>
+{
+	/**
+	 * Gives the number of bytes an entry takes.
+	 */
+	public interface Weigher<K, V>
+	{
+		public long weigh(K key, V value);
+	}
+
+	/**
+	 * The number of entries looked at to find an eviction candidate.
+	 */
+	private static final int EVICTION_SAMPLES = 8;
+
+	/**
+	 * The number of counters in each row of the frequency sketch.
+	 */
+	private static final int SKETCH_WIDTH = 1 << 14;
+
+	/**
+	 * The largest value of a sketch counter.
+	 */
+	private static final int MAX_FREQUENCY = 15;
+
+	private static class Node<V>
+	{
+		private final V value;
+		private final long weight;
+		private volatile long accessed;
+
+		private Node(V value, long weight, long accessed)
+		{
+			this.value = value;
+			this.weight = weight;
+			this.accessed = accessed;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Node<V>> map = new ConcurrentHashMap<K, Node<V>>();
+	private final Weigher<K, V> weigher;
+	private final long maximumWeight;
+
+	private final AtomicLong weight = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final byte[][] sketch = new byte[4][SKETCH_WIDTH];
+	private final AtomicLong sketchIncrements = new AtomicLong();
+
+	/**
+	 * Held while entries are evicted.  Readers never take it.
+	 */
+	private final Object evictionLock = new Object();
+	private Iterator<Map.Entry<K, Node<V>>> evictionCursor;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maximumWeight the number of bytes the entries may take.
+	 * @param weigher gives the number of bytes of each entry.
+	 */
+	public WeightedCache(long maximumWeight, Weigher<K, V> weigher)
+	{
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Gets a value from the cache.
+	 *
+	 * @return the value, or null if it is not in the cache.
+	 */
+	public V get(K key)
+	{
+		increment(key);
+
+		Node<V> node = map.get(key);
+		if(node == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		node.accessed = clock.incrementAndGet();
+		hits.incrementAndGet();
+		return node.value;
+	}
+
+	/**
+	 * Puts a value in the cache, replacing any value with the same key.  If
+	 * the cache goes over its budget, entries are evicted, and the new value
+	 * itself may be turned away if its key is used less than the entries it
+	 * would displace.
+	 */
+	public void put(K key, V value)
+	{
+		insert(key, value, true);
+	}
+
+	/**
+	 * Puts a value in the cache that is expected to be asked for soon, so it
+	 * is not turned away even if its key has not been used yet.  Other entries
+	 * are evicted to make room for it.
+	 */
+	public void prime(K key, V value)
+	{
+		insert(key, value, false);
+	}
+
+	/**
+	 * Checks whether a put of the value would keep it, so a caller can skip
+	 * building a costly copy of a value that would be turned away.  The value
+	 * given only has to weigh the same as the one that would be put.  The
+	 * answer is an estimate, since other threads may change the cache before
+	 * the put.
+	 *
+	 * @return true if the cache has room for the value, or its key has been
+	 * asked for more often than the entry it would displace.
+	 */
+	public boolean admits(K key, V value)
+	{
+		long entryWeight = weigher.weigh(key, value);
+		if(entryWeight > maximumWeight) return false;
+		if(weight.get() + entryWeight <= maximumWeight || map.containsKey(key)) return true;
+
+		synchronized(evictionLock)
+		{
+			Map.Entry<K, Node<V>> victim = sampleVictim(key);
+			return victim == null || frequency(key) > frequency(victim.getKey());
+		}
+	}
+
+	private void insert(K key, V value, boolean admit)
+	{
+		long entryWeight = weigher.weigh(key, value);
+		if(entryWeight > maximumWeight)
+		{
+			invalidate(key);
+			return;
+		}
+
+		Node<V> node = new Node<V>(value, entryWeight, clock.incrementAndGet());
+		Node<V> previous = map.put(key, node);
+		weight.addAndGet(entryWeight - (previous == null ? 0 : previous.weight));
+
+		if(weight.get() > maximumWeight)
+		{
+			evict(key, admit ? node : null);
+		}
+	}
+
+	/**
+	 * Removes a value from the cache.
+	 */
+	public void invalidate(K key)
+	{
+		Node<V> node = map.remove(key);
+		if(node != null)
+		{
+			weight.addAndGet(-node.weight);
+		}
+	}
+
+	/**
+	 * Removes every value from the cache.
+	 */
+	public void invalidateAll()
+	{
+		for(K key : map.keySet())
+		{
+			invalidate(key);
+		}
+	}
+
+	/**
+	 * @return the number of entries in the cache.
+	 */
+	public int size()
+	{
+		return map.size();
+	}
+
+	/**
+	 * @return the number of bytes the entries in the cache take.
+	 */
+	public long getWeight()
+	{
+		return weight.get();
+	}
+
+	/**
+	 * @return the number of bytes the entries may take.
+	 */
+	public long getMaximumWeight()
+	{
+		return maximumWeight;
+	}
+
+	/**
+	 * @return the number of gets that found their value.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of gets that did not find their value.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of entries removed to keep within the budget,
+	 * including new entries that were turned away.
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public String toString()
+	{
+		return String.format("%d entries, %d of %d bytes, %d hits, %d misses, %d evictions",
+				size(), getWeight(), maximumWeight, getHits(), getMisses(), getEvictions());
+	}
+
+	/**
+	 * Evicts entries until the cache is within its budget, or the new entry
+	 * is turned away.  If newNode is null the new entry is always kept.
+	 */
+	private void evict(K newKey, Node<V> newNode)
+	{
+		synchronized(evictionLock)
+		{
+			while(weight.get() > maximumWeight && !map.isEmpty())
+			{
+				Map.Entry<K, Node<V>> victim = sampleVictim(newKey);
+				if(victim == null)
+				{
+					//Only the new entry is left.
+					break;
+				}
+
+				if(newNode != null && map.get(newKey) == newNode && frequency(newKey) <= frequency(victim.getKey()))
+				{
+					//The new entry is used no more than the one it would replace.
+					remove(newKey, newNode);
+					return;
+				}
+
+				remove(victim.getKey(), victim.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Finds the least recently used of EVICTION_SAMPLES entries, continuing
+	 * from where the last eviction stopped looking.
+	 */
+	private Map.Entry<K, Node<V>> sampleVictim(K newKey)
+	{
+		Map.Entry<K, Node<V>> victim = null;
+		boolean restarted = false;
+
+		for(int i = 0;i < EVICTION_SAMPLES;)
+		{
+			if(evictionCursor == null || !evictionCursor.hasNext())
+			{
+				if(restarted) break;
+				evictionCursor = map.entrySet().iterator();
+				restarted = true;
+				continue;
+			}
+
+			Map.Entry<K, Node<V>> entry = evictionCursor.next();
+			i++;
+			if(entry.getKey().equals(newKey)) continue;
+			if(victim == null || entry.getValue().accessed < victim.getValue().accessed)
+			{
+				victim = entry;
+			}
+		}
+
+		return victim;
+	}
+
+	private void remove(K key, Node<V> node)
+	{
+		if(map.remove(key, node))
+		{
+			weight.addAndGet(-node.weight);
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a use of the key in the frequency sketch.
+	 */
+	private void increment(K key)
+	{
+		int hash = spread(key.hashCode());
+		for(int row = 0;row < sketch.length;row++)
+		{
+			int index = index(hash, row);
+			if(sketch[row][index] < MAX_FREQUENCY)
+			{
+				sketch[row][index]++;
+			}
+		}
+
+		if(sketchIncrements.incrementAndGet() % (SKETCH_WIDTH * 10) == 0)
+		{
+			age();
+		}
+	}
+
+	/**
+	 * @return the estimated number of recent uses of the key.
+	 */
+	private int frequency(K key)
+	{
+		int hash = spread(key.hashCode());
+		int frequency = MAX_FREQUENCY;
+		for(int row = 0;row < sketch.length;row++)
+		{
+			frequency = Math.min(frequency, sketch[row][index(hash, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves every counter, so old uses count for less than new ones.
+	 */
+	private void age()
+	{
+		for(byte[] row : sketch)
+		{
+			for(int i = 0;i < row.length;i++)
+			{
+				row[i] >>= 1;
+			}
+		}
+	}
+
+	private static int index(int hash, int row)
+	{
+		int h = hash * (0x9E3779B9 + 2 * row + 1);
+		h ^= h >>> 17;
+		return h & (SKETCH_WIDTH - 1);
+	}
+
+	private static int spread(int hash)
+	{
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
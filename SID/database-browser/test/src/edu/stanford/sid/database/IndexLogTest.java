@@ -0,0 +1,143 @@
+package edu.stanford.sid.database;
+
+import static org.junit.Assert.*;
+
+import edu.stanford.sid.DataFile;
+import edu.stanford.sid.util.CalendarUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Calendar;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays an IndexLog after it was closed cleanly, and after its segment was
+ * torn or corrupted.
+ */
+public class IndexLogTest
+{
+	private File directory;
+	private File segment;
+
+	@Before
+	public void createDirectory()
+	throws IOException
+	{
+		directory = Files.createTempDirectory("index-log").toFile();
+		segment = new File(directory, "segment-00000000.sidlog");
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		for(File f : directory.listFiles())
+		{
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void replaysTheRecordsOfTheLastRun()
+	throws Exception
+	{
+		IndexLog log = new IndexLog(directory);
+		log.add(dataFile("a.txt", 1), 10, 100);
+		log.add(dataFile("b.txt", 2), 20, 200);
+		log.add(dataFile("c.txt", 3), 30, 300);
+		log.remove(new File("b.txt").getPath());
+		log.close();
+
+		log = new IndexLog(directory);
+		assertEquals(2, log.size());
+		assertTrue(log.isCurrent(new File("a.txt"), 10, 100));
+		assertFalse(log.contains(new File("b.txt")));
+		assertTrue(log.isCurrent(new File("c.txt"), 30, 300));
+		assertEquals(1, log.getFiles(day(3), day(3) + 1).size());
+		log.close();
+	}
+
+	@Test
+	public void aTornRecordIsTruncated()
+	throws Exception
+	{
+		IndexLog log = new IndexLog(directory);
+		log.add(dataFile("a.txt", 1), 10, 100);
+		log.close();
+		long end = segment.length();
+
+		log = new IndexLog(directory);
+		log.add(dataFile("b.txt", 2), 20, 200);
+		log.close();
+
+		try(RandomAccessFile out = new RandomAccessFile(segment, "rw"))
+		{
+			out.setLength(segment.length() - 3);
+		}
+
+		log = new IndexLog(directory);
+		assertEquals(1, log.size());
+		assertTrue(log.contains(new File("a.txt")));
+		assertEquals(end, segment.length());
+		log.close();
+	}
+
+	@Test
+	public void aCorruptRecordIsTruncatedAndTheLogStaysUsable()
+	throws Exception
+	{
+		IndexLog log = new IndexLog(directory);
+		log.add(dataFile("a.txt", 1), 10, 100);
+		log.close();
+		long end = segment.length();
+
+		log = new IndexLog(directory);
+		log.add(dataFile("b.txt", 2), 20, 200);
+		log.add(dataFile("c.txt", 3), 30, 300);
+		log.close();
+
+		//Flip a bit in the body of the record of b.txt, leaving its length alone.
+		try(RandomAccessFile out = new RandomAccessFile(segment, "rw"))
+		{
+			out.seek(end + 20);
+			int b = out.read();
+			out.seek(end + 20);
+			out.write(b ^ 0x10);
+		}
+
+		log = new IndexLog(directory);
+		assertEquals(1, log.size());
+		assertTrue(log.contains(new File("a.txt")));
+		assertFalse(log.contains(new File("b.txt")));
+		assertFalse(log.contains(new File("c.txt")));
+		assertEquals(end, segment.length());
+
+		log.add(dataFile("c.txt", 3), 30, 300);
+		log.close();
+
+		log = new IndexLog(directory);
+		assertEquals(2, log.size());
+		assertTrue(log.isCurrent(new File("c.txt"), 30, 300));
+		log.close();
+	}
+
+	private static DataFile dataFile(String path, int day)
+	throws Exception
+	{
+		Calendar start = CalendarUtil.getCalendar();
+		start.setTimeInMillis(day(day));
+		Calendar end = CalendarUtil.getCalendar();
+		end.setTimeInMillis(day(day) + 3600000);
+		return new DataFile(path, "WSO", "S-0001", "NAA", start, end, "-122", "37", "-1", "1");
+	}
+
+	private static long day(int day)
+	{
+		return CalendarUtil.getCalendar(2010, 1, day).getTimeInMillis();
+	}
+}
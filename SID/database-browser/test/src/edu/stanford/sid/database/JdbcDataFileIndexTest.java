@@ -0,0 +1,281 @@
+package edu.stanford.sid.database;
+
+import static org.junit.Assert.*;
+
+import edu.stanford.sid.DataFile;
+import edu.stanford.sid.util.CalendarUtil;
+import edu.stanford.sid.util.StationLatitudeLongitude;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs every query of the JdbcDataFileIndex against an in-memory H2 database
+ * seeded with synthetic records of the SID series and SUMS.
+ */
+public class JdbcDataFileIndexTest
+{
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	private Connection connection;
+	private JdbcDataFileIndex index;
+
+	private final MonitorInfo naa = new MonitorInfo("WSO", "S-0001", "NAA", "-122", "37");
+	private final MonitorInfo nlk = new MonitorInfo("WSO", "S-0001", "NLK", "-122", "37");
+	private final MonitorInfo other = new MonitorInfo("ABC", "S-0002", "NAA", "10", "20");
+
+	@Before
+	public void seed()
+	throws SQLException
+	{
+		String url = "jdbc:h2:mem:sid" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+		connection = DriverManager.getConnection(url);
+
+		try(Statement statement = connection.createStatement())
+		{
+			statement.execute("CREATE SCHEMA sid_awe");
+			statement.execute("CREATE TABLE sid_awe.sid (recnum BIGINT, sunum BIGINT, slotnum INT, sg_000_file VARCHAR, " +
+					"monitorid VARCHAR, site VARCHAR, stationid VARCHAR, utc_starttime DOUBLE, utc_endtime DOUBLE, " +
+					"longitude VARCHAR, latitude VARCHAR, datamin VARCHAR, datamax VARCHAR)");
+			statement.execute("CREATE TABLE sum_main (ds_index BIGINT, online_loc VARCHAR)");
+			statement.execute("CREATE TABLE sid_awe.monitors (recnum BIGINT, site VARCHAR, monitorid VARCHAR, stationid VARCHAR, " +
+					"longitude VARCHAR, latitude VARCHAR, dataavailable INT)");
+			statement.execute("CREATE TABLE sid_awe.sites (recnum BIGINT, site VARCHAR, country VARCHAR, website VARCHAR)");
+			statement.execute("CREATE TABLE sid_awe.transmitters (recnum BIGINT, stationid VARCHAR, latitude DOUBLE, longitude DOUBLE)");
+
+			statement.execute("INSERT INTO sum_main VALUES (100, '/SUM1/D100'), (101, '/SUM1/D101'), (102, '/SUM2/D102'), (103, '/SUM2/D103')");
+
+			statement.execute("INSERT INTO sid_awe.monitors VALUES " +
+					"(1, 'WSO', 'S-0001', 'NAA,NLK', '-122', '37', 0), " +
+					"(2, 'WSO', 'S-0001', 'NAA,NLK', '-122.2', '37.4', 1), " +
+					"(3, 'ABC', 'S-0002', 'NAA', '10', '20', 0)");
+			statement.execute("INSERT INTO sid_awe.sites VALUES (1, 'WSO', 'US', 'http://old'), (2, 'WSO', 'USA', 'http://wso')");
+			statement.execute("INSERT INTO sid_awe.transmitters VALUES (1, 'NAA', 44.0, -67.0), (2, 'NAA', 44.6, -67.3)");
+		}
+
+		//The first version of the NAA record of 2010.01.01 is replaced by the second.
+		insertRecord(1, 100, "naa-v1.txt", naa, utc(2010, 1, 1), utc(2010, 1, 2));
+		insertRecord(2, 101, "naa-v2.txt", naa, utc(2010, 1, 1), utc(2010, 1, 2));
+		insertRecord(3, 101, "nlk.txt", nlk, utc(2010, 1, 2), utc(2010, 1, 3));
+		insertRecord(4, 102, "other.txt", other, utc(2010, 1, 5), utc(2010, 1, 6));
+
+		index = new JdbcDataFileIndex(context(url));
+	}
+
+	@After
+	public void close()
+	throws SQLException
+	{
+		index.close();
+		try(Statement statement = connection.createStatement())
+		{
+			statement.execute("SHUTDOWN");
+		}
+		connection.close();
+	}
+
+	@Test
+	public void filesFromTimeRangeUseTheNewestVersion()
+	{
+		List<DataFile> files = new ArrayList<DataFile>(index.getFilesFromTimeRange(calendar(utc(2010, 1, 1)), calendar(utc(2010, 1, 3))).getFiles());
+		Collections.sort(files, new java.util.Comparator<DataFile>()
+		{
+			public int compare(DataFile a, DataFile b)
+			{
+				return a.getStation().compareTo(b.getStation());
+			}
+		});
+
+		assertEquals(2, files.size());
+		assertEquals(new java.io.File("/SUM1/D101/S00000/naa-v2.txt"), files.get(0).getFile());
+		assertEquals(utc(2010, 1, 1), files.get(0).getStartMillis());
+		assertEquals(utc(2010, 1, 2), files.get(0).getEndMillis());
+		assertEquals("NLK", files.get(1).getStation());
+		assertEquals("WSO", files.get(1).getSite());
+		assertEquals("S-0001", files.get(1).getMonitor());
+	}
+
+	@Test
+	public void filesFromTimeRangeOnlyOverlapTheRange()
+	{
+		assertEquals(1, index.getFilesFromTimeRange(calendar(utc(2010, 1, 5) + 3600000), calendar(utc(2010, 1, 5) + 7200000)).getFiles().size());
+		assertEquals(0, index.getFilesFromTimeRange(calendar(utc(2010, 1, 3)), calendar(utc(2010, 1, 5))).getFiles().size());
+	}
+
+	@Test
+	public void hasFilesInRangeFiltersByMonitor()
+	{
+		Calendar start = calendar(utc(2010, 1, 1));
+		Calendar end = calendar(utc(2010, 1, 3));
+
+		assertTrue(index.hasFilesInRange(start, end, null));
+		assertTrue(index.hasFilesInRange(start, end, Arrays.asList(nlk)));
+		assertTrue(index.hasFilesInRange(start, end, Arrays.asList(other, naa)));
+		assertFalse(index.hasFilesInRange(start, end, Arrays.asList(other)));
+		assertTrue(index.hasFilesInRange(calendar(utc(2010, 1, 5)), calendar(utc(2010, 1, 6)), Arrays.asList(other)));
+	}
+
+	@Test
+	public void daysWithDataEndBeforeMidnight()
+	{
+		assertEquals(Arrays.asList(utc(2010, 1, 1), utc(2010, 1, 2), utc(2010, 1, 5)), millis(index.getDaysWithData(null)));
+		assertEquals(Arrays.asList(utc(2010, 1, 2)), millis(index.getDaysWithData(Arrays.asList(nlk))));
+		assertEquals(Arrays.asList(utc(2010, 1, 1), utc(2010, 1, 5)), millis(index.getDaysWithData(Arrays.asList(naa, other))));
+	}
+
+	@Test
+	public void daysWithDataSpanEveryDayOfARecord()
+	throws SQLException
+	{
+		MonitorInfo spanning = new MonitorInfo("LNG", "S-0003", "NAA", "0", "0");
+		insertRecord(5, 103, "long.txt", spanning, utc(2012, 6, 30), utc(2012, 7, 2) + 1000);
+		assertEquals(Arrays.asList(utc(2012, 6, 30), utc(2012, 7, 1), utc(2012, 7, 2)), millis(index.getDaysWithData(Arrays.asList(spanning))));
+	}
+
+	@Test
+	public void daysWithDataAreKeptUntilTheGenerationMoves()
+	throws SQLException
+	{
+		index.checkGeneration();
+		assertEquals(3, index.getDaysWithData(null).size());
+
+		insertRecord(5, 103, "new.txt", naa, utc(2010, 1, 7), utc(2010, 1, 8));
+		assertEquals(3, index.getDaysWithData(null).size());
+
+		index.checkGeneration();
+		assertEquals(4, index.getDaysWithData(null).size());
+		assertEquals(Arrays.asList(utc(2010, 1, 1), utc(2010, 1, 7)), millis(index.getDaysWithData(Arrays.asList(naa))));
+	}
+
+	@Test
+	public void monitorsAreAvailableAndJoinedWithTheirSite()
+	{
+		List<MonitorInfo> monitors = new ArrayList<MonitorInfo>(index.getMonitors(new java.util.Comparator<MonitorInfo>()
+		{
+			public int compare(MonitorInfo a, MonitorInfo b)
+			{
+				return a.getStation().compareTo(b.getStation());
+			}
+		}));
+
+		assertEquals(Arrays.asList(naa, nlk), monitors);
+		assertEquals("USA", monitors.get(0).getLocation());
+		assertEquals(37.4f, monitors.get(0).getLatitude(), 0.001f);
+	}
+
+	@Test
+	public void transmitterIsTheNewestVersion()
+	{
+		StationLatitudeLongitude naa = index.getStationLatitudeLongitude("NAA");
+		assertEquals("NAA", naa.id);
+		assertEquals(44.6, naa.latitude, 0.001);
+		assertEquals(-67.3, naa.longitude, 0.001);
+		assertNull(index.getStationLatitudeLongitude("XYZ"));
+	}
+
+	@Test
+	public void generationMovesWhenTheSeriesChanges()
+	throws SQLException
+	{
+		index.checkGeneration();
+		long generation = index.getGeneration();
+		assertTrue(generation > 0);
+
+		index.checkGeneration();
+		assertEquals(generation, index.getGeneration());
+
+		insertRecord(5, 103, "new.txt", naa, utc(2010, 1, 7), utc(2010, 1, 8));
+		index.checkGeneration();
+		assertEquals(generation + 1, index.getGeneration());
+	}
+
+	@Test
+	public void drmsTimesRoundTripAcrossLeapSeconds()
+	{
+		assertEquals(1041379234.0, JdbcDataFileIndex.toDrmsTime(utc(2010, 1, 1)), 0.0001);
+		for(long millis : new long[]{utc(1990, 1, 1), utc(2012, 7, 1) - 1000, utc(2012, 7, 1), utc(2017, 1, 1), utc(2020, 3, 4) + 123})
+		{
+			assertEquals(millis, JdbcDataFileIndex.fromDrmsTime(JdbcDataFileIndex.toDrmsTime(millis)));
+		}
+	}
+
+	private void insertRecord(long recnum, long sunum, String file, MonitorInfo monitor, long startMillis, long endMillis)
+	throws SQLException
+	{
+		try(PreparedStatement statement = connection.prepareStatement("INSERT INTO sid_awe.sid VALUES (?, ?, 0, ?, ?, ?, ?, ?, ?, '-122degrees', '37degrees', '-1', '1')"))
+		{
+			statement.setLong(1, recnum);
+			statement.setLong(2, sunum);
+			statement.setString(3, file);
+			statement.setString(4, monitor.getMonitor());
+			statement.setString(5, monitor.getSite());
+			statement.setString(6, monitor.getStation());
+			statement.setDouble(7, JdbcDataFileIndex.toDrmsTime(startMillis));
+			statement.setDouble(8, JdbcDataFileIndex.toDrmsTime(endMillis));
+			statement.execute();
+		}
+	}
+
+	private static long utc(int year, int month, int day)
+	{
+		Calendar c = CalendarUtil.getCalendar();
+		c.clear();
+		c.set(year, month - 1, day);
+		return c.getTimeInMillis();
+	}
+
+	private static Calendar calendar(long millis)
+	{
+		Calendar c = CalendarUtil.getCalendar();
+		c.setTimeInMillis(millis);
+		return c;
+	}
+
+	private static List<Long> millis(Collection<Calendar> calendars)
+	{
+		List<Long> millis = new ArrayList<Long>();
+		for(Calendar c : calendars)
+		{
+			millis.add(c.getTimeInMillis());
+		}
+		return millis;
+	}
+
+	private static ServletContext context(String url)
+	{
+		final Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("jdbc-url", url);
+		parameters.put("jdbc-driver", "org.h2.Driver");
+		parameters.put("jdbc-pool-size", "2");
+
+		return (ServletContext)Proxy.newProxyInstance(JdbcDataFileIndexTest.class.getClassLoader(), new Class<?>[]{ServletContext.class},
+				new InvocationHandler()
+				{
+					public Object invoke(Object proxy, Method method, Object[] arguments)
+					{
+						return method.getName().equals("getInitParameter") ? parameters.get(arguments[0]) : null;
+					}
+				});
+	}
+}
@@ -0,0 +1,384 @@
+package edu.stanford.sid.database;
+
+import static org.junit.Assert.*;
+
+import edu.stanford.sid.DataFile;
+import edu.stanford.sid.util.CalendarUtil;
+import edu.stanford.sid.util.StationLatitudeLongitude;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the ShowInfoDataFileIndex through a fake show_info script that serves
+ * the canned records of test/resources/show_info.  The script and its records are
+ * copied to a directory of their own for each test, so a test can append records,
+ * and hold or fail the queries of the data series.
+ */
+public class ShowInfoDataFileIndexTest
+{
+	private static final String[] FIXTURES = {"show_info", "sid.tsv", "monitors.tsv", "sites.tsv", "transmitters.tsv"};
+
+	private static final long MIRROR_WAIT_MILLIS = 10000;
+
+	private File directory;
+	private ShowInfoDataFileIndex index;
+
+	private final MonitorInfo naa = new MonitorInfo("WSO", "S-0001", "NAA", "-122", "37");
+	private final MonitorInfo nlk = new MonitorInfo("WSO", "S-0001", "NLK", "-122", "37");
+	private final MonitorInfo other = new MonitorInfo("ABC", "S-0002", "NAA", "10", "20");
+
+	@Before
+	public void copyFixtures()
+	throws IOException
+	{
+		File resources = new File(System.getProperty("test.resources", "test/resources"), "show_info");
+
+		directory = Files.createTempDirectory("show_info").toFile();
+		for(String name : FIXTURES)
+		{
+			Files.copy(new File(resources, name).toPath(), new File(directory, name).toPath());
+		}
+		new File(directory, "show_info").setExecutable(true);
+	}
+
+	@After
+	public void close()
+	{
+		if(index != null) index.close();
+		for(File f : directory.listFiles())
+		{
+			f.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void bulkPullMirrorsTheSeries()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+
+		assertEquals(Arrays.asList("sid_awe.sid[? recnum > 0 ?]"), dataQueries());
+		assertEquals(Arrays.asList("abc-0105.txt", "naa-0101.txt", "nlk-0102-v2.txt"), names(files(utc(2010, 1, 1), utc(2010, 1, 7))));
+
+		DataFile naaFile = files(utc(2010, 1, 1), utc(2010, 1, 2)).get(0);
+		assertEquals("WSO", naaFile.getSite());
+		assertEquals("S-0001", naaFile.getMonitor());
+		assertEquals("NAA", naaFile.getStation());
+		assertEquals(utc(2010, 1, 1), naaFile.getStartMillis());
+		assertEquals(utc(2010, 1, 2), naaFile.getEndMillis());
+
+		//Queries are answered from the mirror.
+		index.hasFilesInRange(calendar(utc(2010, 1, 1)), calendar(utc(2010, 1, 2)), null);
+		index.getDaysWithData(null);
+		assertEquals(1, dataQueries().size());
+	}
+
+	@Test
+	public void deltaPullOnlyAsksForRecordsAboveTheWatermark()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+		long generation = index.getGeneration();
+
+		appendRecord(5, naa, "2010.01.07_00:00:00", "2010.01.08_00:00:00", "/SUM1/D105/S00000/naa-0107.txt");
+		index.pullDataSeries();
+
+		assertEquals("sid_awe.sid[? recnum > 4 ?]", last(dataQueries()));
+		assertEquals(Arrays.asList("naa-0107.txt"), names(files(utc(2010, 1, 7), utc(2010, 1, 8))));
+		assertEquals(generation + 1, index.getGeneration());
+
+		//Nothing above the new watermark, nothing changes.
+		index.pullDataSeries();
+		assertEquals("sid_awe.sid[? recnum > 5 ?]", last(dataQueries()));
+		assertEquals(generation + 1, index.getGeneration());
+	}
+
+	@Test
+	public void newerRecnumReplacesTheRecordWithTheSameKey()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+
+		//The canned output lists recnum 4 before the version it replaces, recnum 2.
+		assertEquals(Arrays.asList("nlk-0102-v2.txt"), names(files(utc(2010, 1, 2), utc(2010, 1, 3))));
+		assertEquals("-2", files(utc(2010, 1, 2), utc(2010, 1, 3)).get(0).getMetadataValue("DataMin"));
+
+		appendRecord(5, naa, "2010.01.01_00:00:00", "2010.01.01_12:00:00", "/SUM1/D105/S00000/naa-0101-v2.txt");
+		index.pullDataSeries();
+
+		List<DataFile> files = files(utc(2010, 1, 1), utc(2010, 1, 2));
+		assertEquals(Arrays.asList("naa-0101-v2.txt"), names(files));
+		assertEquals(utc(2010, 1, 1) + 12 * 3600000L, files.get(0).getEndMillis());
+		assertFalse(index.hasFilesInRange(calendar(utc(2010, 1, 1) + 13 * 3600000L), calendar(utc(2010, 1, 2)), Arrays.asList(naa)));
+	}
+
+	@Test
+	public void rangeDaysAndMonitorQueriesOfTheMirror()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+		checkQueries();
+	}
+
+	@Test
+	public void tablesAreLoadedWhole()
+	throws Exception
+	{
+		open();
+
+		StationLatitudeLongitude nlkStation = index.getStationLatitudeLongitude("NLK");
+		assertEquals(48.2, nlkStation.latitude, 0.001);
+		assertEquals(-121.9, nlkStation.longitude, 0.001);
+		assertNull(index.getStationLatitudeLongitude("XYZ"));
+
+		List<MonitorInfo> monitors = new ArrayList<MonitorInfo>(index.getMonitors(new java.util.Comparator<MonitorInfo>()
+		{
+			public int compare(MonitorInfo a, MonitorInfo b)
+			{
+				return (a.getSite() + a.getStation()).compareTo(b.getSite() + b.getStation());
+			}
+		}));
+		assertEquals(Arrays.asList(other, naa, nlk), monitors);
+		assertEquals("USA", monitors.get(1).getLocation());
+	}
+
+	@Test
+	public void queriesAreAnsweredByShowInfoUntilTheMirrorIsComplete()
+	throws Exception
+	{
+		new File(directory, "hold").createNewFile();
+		open();
+
+		checkQueries();
+		assertFalse(index.isUpdateComplete());
+		assertEquals("sid_awe.sid[? UTC_EndTime > $(2010.01.05_00:00:00.000_+0000) and UTC_StartTime < $(2010.01.06_00:00:00.000_+0000) ?]",
+				last(dataQueries()));
+		assertTrue(dataQueries().contains("sid_awe.sid[? recnum in (select distinct on (UTC_StartTime, UTC_EndTime) recnum from sid_awe.sid " +
+				"WHERE ((MonitorID=$string$S-0001$string$ AND Site=$string$WSO$string$ AND StationID=$string$NLK$string$))) ?]"));
+
+		new File(directory, "hold").delete();
+		awaitMirror();
+
+		int queries = dataQueries().size();
+		checkQueries();
+		assertEquals(queries, dataQueries().size());
+	}
+
+	@Test
+	public void aFailedPullLeavesTheMirrorUnchanged()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+		long generation = index.getGeneration();
+
+		//show_info prints the new record, then exits with an error.
+		new File(directory, "fail").createNewFile();
+		appendRecord(5, naa, "2010.01.07_00:00:00", "2010.01.08_00:00:00", "/SUM1/D105/S00000/naa-0107.txt");
+		index.pullDataSeries();
+
+		assertEquals("sid_awe.sid[? recnum > 4 ?]", last(dataQueries()));
+		assertTrue(files(utc(2010, 1, 7), utc(2010, 1, 8)).isEmpty());
+		assertEquals(generation, index.getGeneration());
+		checkQueries();
+
+		//The watermark did not move, so the next pull gets the record.
+		new File(directory, "fail").delete();
+		index.pullDataSeries();
+		assertEquals("sid_awe.sid[? recnum > 4 ?]", last(dataQueries()));
+		assertEquals(Arrays.asList("naa-0107.txt"), names(files(utc(2010, 1, 7), utc(2010, 1, 8))));
+		assertEquals(generation + 1, index.getGeneration());
+	}
+
+	@Test
+	public void aPullOfRecordsThatCannotBeParsedLeavesTheMirrorUnchanged()
+	throws Exception
+	{
+		open();
+		awaitMirror();
+		long generation = index.getGeneration();
+
+		appendRecord(5, naa, "not a time", "2010.01.08_00:00:00", "/SUM1/D105/S00000/naa-0107.txt");
+		index.pullDataSeries();
+
+		assertEquals(generation, index.getGeneration());
+		assertEquals("sid_awe.sid[? recnum > 4 ?]", last(dataQueries()));
+		checkQueries();
+	}
+
+	@Test
+	public void aFailedFirstPullIsTriedAgain()
+	throws Exception
+	{
+		new File(directory, "fail").createNewFile();
+		open();
+
+		long deadline = System.currentTimeMillis() + MIRROR_WAIT_MILLIS;
+		while(dataQueries().isEmpty() && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(20);
+		}
+		Thread.sleep(200);
+		assertFalse(index.isUpdateComplete());
+		assertTrue(files(utc(2010, 1, 1), utc(2010, 1, 7)).isEmpty());
+
+		new File(directory, "fail").delete();
+		index.pullDataSeries();
+		assertTrue(index.isUpdateComplete());
+		assertEquals("sid_awe.sid[? recnum > 0 ?]", last(dataQueries()));
+		checkQueries();
+	}
+
+	/**
+	 * Checks the answers to the queries of the data series for the canned records.
+	 */
+	private void checkQueries()
+	throws Exception
+	{
+		assertEquals(Arrays.asList("naa-0101.txt", "nlk-0102-v2.txt"), names(files(utc(2010, 1, 1), utc(2010, 1, 3))));
+		assertEquals(Arrays.asList("abc-0105.txt"), names(files(utc(2010, 1, 5) + 3600000, utc(2010, 1, 5) + 7200000)));
+		assertTrue(files(utc(2010, 1, 3), utc(2010, 1, 5)).isEmpty());
+
+		assertEquals(Arrays.asList(utc(2010, 1, 1), utc(2010, 1, 2), utc(2010, 1, 5)), millis(index.getDaysWithData(null)));
+		assertEquals(Arrays.asList(utc(2010, 1, 2)), millis(index.getDaysWithData(Arrays.asList(nlk))));
+
+		Calendar start = calendar(utc(2010, 1, 1));
+		Calendar end = calendar(utc(2010, 1, 3));
+		assertTrue(index.hasFilesInRange(start, end, null));
+		assertTrue(index.hasFilesInRange(start, end, Arrays.asList(nlk)));
+		assertFalse(index.hasFilesInRange(start, end, Arrays.asList(other)));
+		assertTrue(index.hasFilesInRange(calendar(utc(2010, 1, 5)), calendar(utc(2010, 1, 6)), Arrays.asList(other)));
+	}
+
+	private void open()
+	{
+		final Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("show_info-executable", new File(directory, "show_info").getAbsolutePath());
+		parameters.put("show_info-concurrency", "2");
+		parameters.put("show_info-mirror-timeout", "30");
+
+		index = new ShowInfoDataFileIndex((ServletContext)Proxy.newProxyInstance(ShowInfoDataFileIndexTest.class.getClassLoader(),
+				new Class<?>[]{ServletContext.class}, new InvocationHandler()
+				{
+					public Object invoke(Object proxy, Method method, Object[] arguments)
+					{
+						return method.getName().equals("getInitParameter") ? parameters.get(arguments[0]) : null;
+					}
+				}));
+	}
+
+	private void awaitMirror()
+	throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + MIRROR_WAIT_MILLIS;
+		while(!index.isUpdateComplete())
+		{
+			assertTrue("The mirror was not pulled", System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+	private void appendRecord(long recnum, MonitorInfo monitor, String start, String end, String path)
+	throws IOException
+	{
+		String record = String.format("%d\t-1\t1\t-122degrees\t37degrees\t%s\t%s\t%s\t%s_+0000\t%s_+0000\t%s%n",
+				recnum, monitor.getMonitor(), monitor.getSite(), monitor.getStation(), end, start, path);
+		Files.write(new File(directory, "sid.tsv").toPath(), record.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * @return the queries of the data series show_info was run for, in order.
+	 */
+	private List<String> dataQueries()
+	throws IOException
+	{
+		List<String> queries = new ArrayList<String>();
+		File log = new File(directory, "queries.log");
+		if(!log.exists()) return queries;
+
+		for(String query : Files.readAllLines(log.toPath(), StandardCharsets.UTF_8))
+		{
+			if(query.startsWith("sid_awe.sid[")) queries.add(query);
+		}
+		return queries;
+	}
+
+	private List<DataFile> files(long startMillis, long endMillis)
+	{
+		List<DataFile> files = new ArrayList<DataFile>(index.getFilesFromTimeRange(calendar(startMillis), calendar(endMillis)).getFiles());
+		Collections.sort(files, new java.util.Comparator<DataFile>()
+		{
+			public int compare(DataFile a, DataFile b)
+			{
+				return a.getFile().getName().compareTo(b.getFile().getName());
+			}
+		});
+		return files;
+	}
+
+	private static List<String> names(List<DataFile> files)
+	{
+		List<String> names = new ArrayList<String>();
+		for(DataFile file : files)
+		{
+			names.add(file.getFile().getName());
+		}
+		return names;
+	}
+
+	private static String last(List<String> list)
+	{
+		return list.get(list.size() - 1);
+	}
+
+	private static long utc(int year, int month, int day)
+	{
+		Calendar c = CalendarUtil.getCalendar();
+		c.clear();
+		c.set(year, month - 1, day);
+		return c.getTimeInMillis();
+	}
+
+	private static Calendar calendar(long millis)
+	{
+		Calendar c = CalendarUtil.getCalendar();
+		c.setTimeInMillis(millis);
+		return c;
+	}
+
+	private static List<Long> millis(Collection<Calendar> calendars)
+	{
+		List<Long> millis = new ArrayList<Long>();
+		for(Calendar c : calendars)
+		{
+			millis.add(c.getTimeInMillis());
+		}
+		return millis;
+	}
+}
@@ -0,0 +1,56 @@
+package edu.stanford.sid.samples;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the throughput of the SampleParser.  Run it with ant benchmark, with
+ * benchmark.files set to the data files to parse.<p>
+ *
+ * Each of the data files is parsed repeatedly, and the throughput in samples per
+ * second is printed against TARGET_SAMPLES_PER_SECOND.
+ */
+public class SampleParserBenchmark
+{
+	/**
+	 * The throughput the parser is expected to reach on a single core.
+	 */
+	private static final double TARGET_SAMPLES_PER_SECOND = 5000000;
+
+	/**
+	 * @param args paths of data files to parse.
+	 */
+	public static void main(String[] args)
+	throws IOException
+	{
+		final long[] count = new long[1];
+		final double[] checksum = new double[1];
+		SampleHandler handler = new SampleHandler()
+		{
+			public void sample(long epochSecond, double value)
+			{
+				count[0]++;
+				checksum[0] += value;
+			}
+		};
+
+		//Warm up the JIT before measuring.
+		for(int i = 0;i < 5;i++)
+			for(String path : args)
+				SampleParser.parse(new File(path), handler);
+
+		count[0] = 0;
+		int iterations = 20;
+		long start = System.nanoTime();
+		for(int i = 0;i < iterations;i++)
+			for(String path : args)
+				SampleParser.parse(new File(path), handler);
+		long elapsed = System.nanoTime() - start;
+
+		double samplesPerSecond = count[0] / (elapsed / 1e9);
+		System.out.format("%d samples in %.1f ms: %.0f samples/sec (target %.0f) %s%n",
+				count[0], elapsed / 1e6, samplesPerSecond, TARGET_SAMPLES_PER_SECOND,
+				samplesPerSecond >= TARGET_SAMPLES_PER_SECOND ? "PASS" : "FAIL");
+		System.out.format("checksum %f%n", checksum[0]);
+	}
+}
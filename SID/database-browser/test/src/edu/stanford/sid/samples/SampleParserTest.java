@@ -0,0 +1,197 @@
+package edu.stanford.sid.samples;
+
+import static org.junit.Assert.*;
+
+import edu.stanford.sid.util.CalendarUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the numbers and times the SampleParser reads from data lines against
+ * Double.parseDouble and a SimpleDateFormat from CalendarUtil.
+ */
+public class SampleParserTest
+{
+	private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+	private File file;
+
+	private final List<Long> seconds = new ArrayList<Long>();
+	private final List<Double> values = new ArrayList<Double>();
+
+	@Before
+	public void createFile()
+	throws IOException
+	{
+		file = File.createTempFile("samples", ".csv");
+	}
+
+	@After
+	public void deleteFile()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void valuesMatchDoubleParseDouble()
+	throws Exception
+	{
+		String[] texts = {
+			"0", "1", "-1", "+2.5", "1.234567", "-0.000123", "0.1", "0.30000000000000004",
+			"123456789012345678", "1234567890123456789", "12345678901234567890.5", "9007199254740993",
+			"0.0000000000000000000000012", "1e-5", "-1.5E+3", "2.5e22", "2.5e23", "4.9e-324",
+			"1.7976931348623157e308", "1e400", "000123.4500", "3.", ".5"
+		};
+
+		StringBuilder lines = new StringBuilder();
+		for(String text : texts)
+		{
+			lines.append("2010-01-01 00:00:00, ").append(text).append('\n');
+		}
+
+		Random random = new Random(2010);
+		List<String> randomTexts = new ArrayList<String>();
+		for(int i = 0;i < 20000;i++)
+		{
+			double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 6);
+			String text;
+			switch(i % 4)
+			{
+				case 0: text = Double.toString(value); break;
+				case 1: text = String.format(Locale.US, "%.6f", value); break;
+				case 2: text = String.format(Locale.US, "%.17g", value); break;
+				default: text = String.format(Locale.US, "%.3e", value); break;
+			}
+			randomTexts.add(text);
+			lines.append("2010-01-01 00:00:00, ").append(text).append('\n');
+		}
+
+		parse(lines.toString());
+
+		assertEquals(texts.length + randomTexts.size(), values.size());
+		for(int i = 0;i < texts.length;i++)
+		{
+			assertEquals(texts[i], Double.doubleToLongBits(Double.parseDouble(texts[i])), Double.doubleToLongBits(values.get(i)));
+		}
+		for(int i = 0;i < randomTexts.size();i++)
+		{
+			String text = randomTexts.get(i);
+			assertEquals(text, Double.doubleToLongBits(Double.parseDouble(text)), Double.doubleToLongBits(values.get(texts.length + i)));
+		}
+	}
+
+	@Test
+	public void timesMatchTheDateFormat()
+	throws Exception
+	{
+		DateFormat format = CalendarUtil.getSimpleDateFormat(TIMESTAMP_FORMAT);
+
+		List<String> texts = new ArrayList<String>();
+		texts.add("1970-01-01 00:00:00");
+		texts.add("2000-02-29 23:59:59");
+		texts.add("2000-03-01 00:00:00");
+		texts.add("2012-06-30 23:59:59");
+		texts.add("2012-07-01 00:00:00");
+		texts.add("2100-03-01 12:00:00");
+
+		Random random = new Random(2006);
+		long first = format.parse("1990-01-01 00:00:00").getTime() / 1000;
+		long last = format.parse("2040-01-01 00:00:00").getTime() / 1000;
+		long second = first;
+		for(int i = 0;i < 20000;i++)
+		{
+			//Runs of lines a few seconds apart, as in a data file, from random days.
+			second = i % 50 == 0 ? first + (long)(random.nextDouble() * (last - first)) : second + 1 + random.nextInt(60);
+			texts.add(format.format(new Date(second * 1000)));
+		}
+
+		StringBuilder lines = new StringBuilder();
+		for(String text : texts)
+		{
+			lines.append(text).append(", 1.0\n");
+		}
+
+		parse(lines.toString());
+
+		assertEquals(texts.size(), seconds.size());
+		for(int i = 0;i < texts.size();i++)
+		{
+			assertEquals(texts.get(i), format.parse(texts.get(i)).getTime() / 1000, (long)seconds.get(i));
+		}
+	}
+
+	@Test
+	public void separatorsAndLineEndsAreAccepted()
+	throws IOException, ParseException
+	{
+		parse("2010-01-01 00:00:01, 1.5\n" +
+				"2010-01-01 00:00:02\t2.5\n" +
+				"2010-01-01 00:00:03 ,  -3.5\r\n" +
+				"2010-01-01 00:00:04,4.5");
+
+		long midnight = CalendarUtil.getSimpleDateFormat(TIMESTAMP_FORMAT).parse("2010-01-01 00:00:00").getTime() / 1000;
+		assertEquals(4, values.size());
+		for(int i = 0;i < 4;i++)
+		{
+			assertEquals(midnight + i + 1, (long)seconds.get(i));
+		}
+		assertEquals(1.5, values.get(0), 0);
+		assertEquals(2.5, values.get(1), 0);
+		assertEquals(-3.5, values.get(2), 0);
+		assertEquals(4.5, values.get(3), 0);
+	}
+
+	@Test
+	public void commentsAndBadLinesAreSkipped()
+	throws IOException
+	{
+		parse("# Site = WSO\n" +
+				"#2010-01-01 00:00:00, 9\n" +
+				"\n" +
+				"2010-01-01 00:00:01, 1\n" +
+				"2010-01-0x 00:00:02, 2\n" +
+				"2010-01-01 00:00:03, abc\n" +
+				"2010-01-01 00:00:04,\n" +
+				"2010-01-01\n" +
+				"2010-01-01 00:00:05, 5\n");
+
+		assertEquals(2, values.size());
+		assertEquals(1, values.get(0), 0);
+		assertEquals(5, values.get(1), 0);
+		assertEquals(4, seconds.get(1) - seconds.get(0));
+	}
+
+	private void parse(String text)
+	throws IOException
+	{
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))
+		{
+			out.write(text);
+		}
+
+		SampleParser.parse(file, new SampleHandler()
+		{
+			public void sample(long epochSecond, double value)
+			{
+				seconds.add(epochSecond);
+				values.add(value);
+			}
+		});
+	}
+}